@@ -22,18 +22,18 @@ import jloda.seq.BlastMode;
 import jloda.util.Basic;
 import jloda.util.StringUtils;
 import malt.align.AlignerOptions;
+import malt.align.AnchorChainer;
 import malt.align.BandedAligner;
 import malt.data.*;
 import malt.io.*;
 import malt.util.FixedSizePriorityQueue;
+import malt.util.IntObjectMap;
 import malt.util.Utilities;
 import megan.genes.GeneItemAccessor;
 
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * the main alignment engine. This runs in its own thread. It grabs the next read from the read queue and writes
@@ -59,6 +59,13 @@ public class AlignmentEngine {
     private final FileWriterRanked unalignedReadsWriter;
     private final RMA6Writer rmaWriter;
 
+    // first mate of a pair, kept until the second mate has been aligned:
+    private boolean firstMateSaved;
+    private String firstMateHeader;
+    private String firstMateSequence;
+    private ReadMatch[] firstMateMatches = new ReadMatch[0];
+    private int firstMateNumberOfMatches;
+
     private final GeneItemAccessor geneTableAccess;
 
     // parameters
@@ -68,11 +75,12 @@ public class AlignmentEngine {
     private final double percentIdentity;
 
     // xdrop heuristic:
-    private final int xDrop;
+    private final boolean useUngappedFilter;
     private final int minUngappedRawScore;
 
     // keep track of all used references:
     private final BitSet alignedReferenceIds;
+    private final boolean addSAMReadGroup; // SAM lines are tagged with the read group declared in the header
 
     // used for stats:
     private long countSequencesProcessed;
@@ -80,18 +88,31 @@ public class AlignmentEngine {
     private long countSeedMatches;
     private long countHashSeedMismatches;
     private long countAlignments;
+    private long countUngappedFiltered; // number of seed matches discarded by ungapped extension
+    private long seedLookupFootprint; // bytes used by this thread for seed lookups
 
     // used in inner loop:
     private final FixedSizePriorityQueue<ReadMatch> matchesQueue;
     private final ReadMatch[] recycledMatchesArray;
     private final BandedAligner aligner;
-    private final Map<Integer, SeedMatchArray> refIndex2ASeedMatches;
+    private final IntObjectMap<SeedMatchArray> refIndex2ASeedMatches;
 
     private final ReadMatch[] readMatchesForRefIndex;
 
     private SeedMatchArray[] seedArrays;   // used in inner loop to keep track of seed matches per reference sequence
     private int seedArraysLength = 0;
 
+    // used in long-read mode:
+    private final AnchorChainer anchorChainer;
+    private final Row longReadRow;
+    private final int minChainScore;
+
+    // set up when the outer loop is first run:
+    private DataForInnerLoop dataForInnerLoop;
+    private byte[][][] seedBytes;
+    private FastARecord query;
+    private FastARecord mate;
+
     static private QuerySequence2MatchesCache querySequence2MatchesCache = null;
 
     /**
@@ -116,6 +137,7 @@ public class AlignmentEngine {
         this.shift = maltOptions.getShift();
 
         this.alignedReferenceIds = (maltOptions.isSparseSAM() ? null : new BitSet());
+        this.addSAMReadGroup = (matchOutputFormat == MaltOptions.MatchOutputFormat.SAM && !maltOptions.isSparseSAM());
 
         seedShapes = new SeedShape[tables.length];
         for (int t = 0; t < tables.length; t++) {
@@ -131,18 +153,30 @@ public class AlignmentEngine {
         percentIdentity = maltOptions.getMinProportionIdentity();
 
         // ungapped alignment parameters:
-        xDrop = alignerOptions.getUngappedXDrop(maltOptions.getMode());
-        minUngappedRawScore = alignerOptions.getUngappedMinRawScore(maltOptions.getMode());
+        useUngappedFilter = alignerOptions.isUseUngappedFilter();
+        // this is a heuristic: a gapped alignment can score higher than the best ungapped extension of its seed, so
+        // seeds of valid alignments may be discarded. Capping at the min raw score only avoids thresholds above that of the final alignment
+        minUngappedRawScore = (int) Math.min(alignerOptions.getUngappedMinRawScore(maltOptions.getMode()), minRawScore);
 
         // data structures used in inner loop:
         matchesQueue = new FixedSizePriorityQueue<>(maltOptions.getMaxAlignmentsPerQuery(), ReadMatch.createComparator());
         recycledMatchesArray = new ReadMatch[maltOptions.getMaxAlignmentsPerQuery()];
-        refIndex2ASeedMatches = new HashMap<>(10000, 0.9f);
+        refIndex2ASeedMatches = new IntObjectMap<>(10000);
         readMatchesForRefIndex = new ReadMatch[maltOptions.getMaxAlignmentsPerReference()];
         for (int i = 0; i < readMatchesForRefIndex.length; i++)
             readMatchesForRefIndex[i] = new ReadMatch();
 
         seedArrays = resizeAndConstructEntries(new SeedMatchArray[0], 1000, maltOptions.getMaxSeedsPerReference());
+
+        if (maltOptions.isLongReads()) {
+            anchorChainer = new AnchorChainer();
+            longReadRow = new Row();
+            minChainScore = 2 * seedShapes[0].getLength();
+        } else {
+            anchorChainer = null;
+            longReadRow = null;
+            minChainScore = 0;
+        }
     }
 
     /**
@@ -150,51 +184,89 @@ public class AlignmentEngine {
      */
     void runOuterLoop() {
         try {
+            while (runOuterLoopOnNextBatch()) ;
+        } catch (Exception ex) {
+            Basic.caught(ex);
+            System.exit(1);  // just die...
+        }
+    }
+
+    /**
+     * runs the outer loop on the next batch of input reads only. This allows a thread to alternate between the engines of different jobs,
+     * without leaving any reads of a batch unprocessed
+     *
+     * @return true, if there might be more input
+     */
+    boolean runOuterLoopOnNextBatch() throws IOException {
+        if (dataForInnerLoop == null) {
             final int maxFramesPerQuery = Utilities.getMaxFramesPerQuery(maltOptions.getMode(), maltOptions.isDoForward(), maltOptions.isDoReverse());
 
             // setup thread specific data-structure:
-            final DataForInnerLoop dataForInnerLoop = new DataForInnerLoop(maltOptions.getMode(), maltOptions.isDoForward(), maltOptions.isDoReverse(), maxFramesPerQuery, tables.length);
+            dataForInnerLoop = new DataForInnerLoop(maltOptions.getMode(), maltOptions.isDoForward(), maltOptions.isDoReverse(), maxFramesPerQuery, tables.length, !maltOptions.isLongReads());
 
             // setup buffers for seeds.
-            final byte[][][] seedBytes = new byte[maxFramesPerQuery][tables.length][];
+            seedBytes = new byte[maxFramesPerQuery][tables.length][];
             for (int s = 0; s < maxFramesPerQuery; s++) {
                 for (int t = 0; t < tables.length; t++) {
                     seedBytes[s][t] = seedShapes[t].createBuffer(); // shape-specific buffer
                 }
             }
+            query = FastAReader.createFastARecord(1024, isWantQualityValues());
+            mate = (fastAReader.isPaired() ? FastAReader.createFastARecord(1024, isWantQualityValues()) : null);
+        }
 
-            // iterate over all available queries, this method is thread-safe
-            final FastARecord query = FastAReader.createFastARecord(1024, isWantQualityValues());
-            while (fastAReader.readAsFastA(query)) {
-                if (querySequence2MatchesCache != null && querySequence2MatchesCache.contains(query.getSequence(), query.getSequenceLength())) {
-                    runInnerLoop(query, 0, null); // query is cached, no need to compute frames etc
-                } else {
-                    // determine all frames to use:
-                    dataForInnerLoop.computeFrames(query.getSequence(), query.getQualityValues(), query.getSequenceLength());
-
-                    // find seed matches for all frames and using all seed tables:
-                    int totalSize = 0;
-                    for (int s = 0; s < dataForInnerLoop.numberOfFrames; s++) {  // for each frame of query
-                        for (int t = 0; t < tables.length; t++) {  // consider each seed table
-                            final ReferencesHashTableAccess table = tables[t];
-                            final SeedShape seedShape = table.getSeedShape();
-                            int top = dataForInnerLoop.frameSequenceLength[s] - seedShape.getLength() + 1;
-                            for (int qOffset = 0; qOffset < dataForInnerLoop.frameSequenceLength[s]; qOffset += shift) {  // consider all offsets
-                                if (qOffset < top) {
-                                    final byte[] seed = seedShape.getSeed(dataForInnerLoop.frameSequence[s], qOffset, seedBytes[s][t]);
-                                    totalSize += table.lookup(seed, dataForInnerLoop.frameXTableXSeed2Reference[s][t][qOffset]);
-                                } else
-                                    dataForInnerLoop.frameXTableXSeed2Reference[s][t][qOffset].setEmpty();
-                            }
-                        }
+        // iterate over all queries of the batch, this method is thread-safe
+        do {
+            if (fastAReader.isPaired()) { // both mates of a pair are aligned by this thread
+                if (!fastAReader.readPair(query, mate))
+                    break;
+                processQuery(query, dataForInnerLoop, seedBytes);
+                processQuery(mate, dataForInnerLoop, seedBytes);
+            } else {
+                if (!fastAReader.readAsFastA(query))
+                    break;
+                processQuery(query, dataForInnerLoop, seedBytes);
+            }
+            if (!fastAReader.hasBufferedRecords())
+                return true;
+        }
+        while (true);
+
+        seedLookupFootprint = dataForInnerLoop.getFootprint();
+        return false;
+    }
+
+    /**
+     * determines all possible seed matches for a query and then calls the inner loop
+     */
+    private void processQuery(final FastARecord query, final DataForInnerLoop dataForInnerLoop, final byte[][][] seedBytes) throws IOException {
+        if (querySequence2MatchesCache != null && querySequence2MatchesCache.contains(query.getSequence(), query.getSequenceLength())) {
+            runInnerLoop(query, 0, null); // query is cached, no need to compute frames etc
+        } else {
+            // determine all frames to use:
+            dataForInnerLoop.computeFrames(query.getSequence(), query.getQualityValues(), query.getSequenceLength());
+
+            // find seed matches for all frames and using all seed tables:
+            dataForInnerLoop.hitArena.clear();
+            int totalSize = 0;
+            if (maltOptions.isLongReads()) // stream the seed matches directly into the per-reference anchor lists
+                totalSize = collectLongReadSeedMatches(dataForInnerLoop, seedBytes);
+            else for (int s = 0; s < dataForInnerLoop.numberOfFrames; s++) {  // for each frame of query
+                for (int t = 0; t < tables.length; t++) {  // consider each seed table
+                    final ReferencesHashTableAccess table = tables[t];
+                    final SeedShape seedShape = table.getSeedShape();
+                    int top = dataForInnerLoop.frameSequenceLength[s] - seedShape.getLength() + 1;
+                    for (int qOffset = 0; qOffset < dataForInnerLoop.frameSequenceLength[s]; qOffset += shift) {  // consider all offsets
+                        if (qOffset < top) {
+                            final byte[] seed = seedShape.getSeed(dataForInnerLoop.frameSequence[s], qOffset, seedBytes[s][t]);
+                            totalSize += table.lookup(seed, dataForInnerLoop.frameXTableXSeed2Reference[s][t][qOffset], dataForInnerLoop.hitArena);
+                        } else
+                            dataForInnerLoop.frameXTableXSeed2Reference[s][t][qOffset].setEmpty();
                     }
-                    // run the inner loop
-                    runInnerLoop(query, totalSize, dataForInnerLoop);
                 }
             }
-        } catch (Exception ex) {
-            Basic.caught(ex);
-            System.exit(1);  // just die...
+            // run the inner loop
+            runInnerLoop(query, totalSize, dataForInnerLoop);
         }
     }
 
@@ -218,186 +290,20 @@ public class AlignmentEngine {
         {
             if (totalSize > 0) { // have some seeds to look at
                 try {
-                    // key a list of seed arrays that we reuse and reset here:
-                    if (seedArraysLength > 0) {
-                        for (int i = 0; i < seedArraysLength; i++) {
-                            seedArrays[i].clear();
-                        }
-                        seedArraysLength = 0;
-                    }
-
-                    // determine all the seeds to be used, map each ref-index to its seeds, seeds know which frame of the query was used
-                    for (int s = 0; s < dataForInnerLoop.numberOfFrames; s++) {
-                        for (int t = 0; t < seedShapes.length; t++) { // for each seed-shape specific hash table
-                            for (int qOffset = 0; qOffset < dataForInnerLoop.frameSequenceLength[s]; qOffset += shift) {
-                                final Row matchLocations = dataForInnerLoop.frameXTableXSeed2Reference[s][t][qOffset];  // all locations of a particular seed
-                                int seedMatchesUsed = 0;
-
-                                for (int a = 0; a < matchLocations.size(); a += 2) {
-                                    countSeedMatches++;
-                                    final int refIndex = matchLocations.get(a);
-                                    final int refOffset = matchLocations.get(a + 1);
-
-                                    // todo: debugging
-                                    if (refIndex >= referencesDB.getNumberOfSequences()) {
-                                        System.err.println("matchLocations=" + matchLocations);
-                                        throw new IOException("refIndex=" + refIndex + ": out of bounds: " + referencesDB.getNumberOfSequences());
-                                    }
-
-                                    final byte[] referenceSequence = referencesDB.getSequence(refIndex);
-
-                                    try {
-                                        if (seedShapes[t].equalSequences(dataForInnerLoop.frameSequence[s], qOffset, referenceSequence, refOffset)) {
-                                            if (seedMatchesUsed++ >= maltOptions.getMaxSeedsPerOffsetPerFrame()) {
-                                                break;  // exceeded the maximum number of seeds per frame
-                                            }
-
-                                            SeedMatchArray set = refIndex2ASeedMatches.get(refIndex);
-                                            if (set == null) {
-                                                if (seedArraysLength >= seedArrays.length) {
-                                                    //System.err.println("seedArray: " + seedArrays.length + " -> " + (2 * seedArraysLength));
-                                                    seedArrays = resizeAndConstructEntries(seedArrays, 2 * seedArraysLength, maltOptions.getMaxSeedsPerReference());
-                                                }
-                                                set = seedArrays[seedArraysLength++];
-                                                refIndex2ASeedMatches.put(refIndex, set);
-                                            }
-                                            if (set.size() < maltOptions.getMaxSeedsPerReference()) {
-                                                set.setNext(qOffset, refOffset, s, seedShapes[t].getLength());
-                                                // else System.err.println("SKIPPED");
-                                            }
-                                        } else
-                                            countHashSeedMismatches++;
-                                    } catch (Exception ex) {
-                                        Basic.caught(ex);
-                                    }
-                                }
-                            }
-                        }
-                    }
-
-                    // try to align each seed
-
-                    for (Integer refIndex : refIndex2ASeedMatches.keySet()) {
-                        SeedMatch previous = null;
-                        final SeedMatchArray seedMatches = refIndex2ASeedMatches.get(refIndex);
-                        seedMatches.sort();
-                        int numberOfReadMatchesForRefIndex = 0;  // we keep a short array of best hits for the given reference index
-
-                        for (int i = 0; i < seedMatches.size(); i++) {
-                            SeedMatch seedMatch = seedMatches.get(i);
-                            if (!seedMatch.follows(previous)) {   // ignore back-to-back matches
-                                // todo: debugging
-                                if (refIndex >= referencesDB.getNumberOfSequences()) {
-									System.err.println("seedMatch=" + seedMatch);
-                                    throw new IOException("refIndex=" + refIndex + ": out of bounds: " + referencesDB.getNumberOfSequences());
-                                }
-                                final byte[] referenceSequence = referencesDB.getSequence(refIndex);
-                                final byte[] sequence = dataForInnerLoop.frameSequence[seedMatch.getRank()];
-                                int length = dataForInnerLoop.frameSequenceLength[seedMatch.getRank()];
-
-                                if (aligner.quickCheck(sequence, length, referenceSequence, referenceSequence.length, seedMatch.getQueryOffset(), seedMatch.getReferenceOffset())) {
-
-                                    aligner.computeAlignment(sequence, length, referenceSequence, referenceSequence.length, seedMatch.getQueryOffset(), seedMatch.getReferenceOffset(), seedMatch.getSeedLength());
-
-                                    if (aligner.getRawScore() >= minRawScore) {  // have found match with sufficient rawScore
-                                        // compute bitscore and expected score
-                                        aligner.computeBitScoreAndExpected();
-
-                                        if (aligner.getBitScore() >= minBitScore && aligner.getExpected() <= maxExpected) {
-                                            ReadMatch readMatch;
-                                            boolean foundPlaceToKeepThisMatch;
-                                            boolean incrementedNumberOfReadMatchesForRefIndex = false;
-
-                                            if (readMatchesForRefIndex.length == 1) {  // only allowing one hit per reference...
-                                                readMatch = readMatchesForRefIndex[0];
-                                                numberOfReadMatchesForRefIndex = 1;
-                                                foundPlaceToKeepThisMatch = true;
-                                                incrementedNumberOfReadMatchesForRefIndex = true;
-                                            } else {  //allow more than one hit
-                                                // ensure that this match does not overlap an existing match of same or better quality
-                                                boolean overlap = false;
-                                                for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
-                                                    readMatch = readMatchesForRefIndex[z];
-                                                    if (readMatch.getBitScore() >= aligner.getBitScore() && readMatch.overlap(aligner.getStartReference(), aligner.getEndReference())) {
-                                                        overlap = true;
-                                                        break;
-                                                    }
-                                                }
-                                                if (overlap)
-                                                    continue;
-
-                                                // keep this match, if array not full:
-                                                if (numberOfReadMatchesForRefIndex < readMatchesForRefIndex.length) {
-                                                    readMatch = readMatchesForRefIndex[numberOfReadMatchesForRefIndex++];
-                                                    foundPlaceToKeepThisMatch = true;
-                                                    incrementedNumberOfReadMatchesForRefIndex = true;
-                                                } else {  // otherwise replace one with lower rawScore
-                                                    foundPlaceToKeepThisMatch = false;
-                                                    readMatch = null;
-                                                    for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
-                                                        readMatch = readMatchesForRefIndex[z];
-                                                        if (aligner.getBitScore() > readMatch.getBitScore()) {
-                                                            foundPlaceToKeepThisMatch = true;
-                                                            break;
-                                                        }
-                                                    }
-                                                }
-                                            }
-
-                                            if (foundPlaceToKeepThisMatch) {
-                                                final byte[] referenceHeader;
-                                                if (geneTableAccess == null)
-                                                    referenceHeader = referencesDB.getHeader(refIndex);
-                                                else {
-                                                    int start = aligner.getStartReference();
-                                                    if (start == -1) {
-                                                        aligner.computeAlignmentByTraceBack();
-                                                        start = aligner.getStartReference();
-                                                    }
-                                                    int end = aligner.getEndReference();
-													referenceHeader = geneTableAccess.annotateRefString(StringUtils.toString(referencesDB.getHeader(refIndex)), refIndex, start, end).getBytes();
-                                                    //System.err.println(Basic.toString(referenceHeader));
-                                                }
-
-                                                byte[] text = null;
-                                                byte[] rma6Text = null;
-                                                if (matchesWriter != null) {
-                                                    switch (matchOutputFormat) {
-                                                        case Text -> {
-                                                            text = aligner.getAlignmentText(dataForInnerLoop, seedMatch.getRank());
-                                                        }
-                                                        case Tab -> {
-                                                            text = aligner.getAlignmentTab(dataForInnerLoop, null, referenceHeader, seedMatch.getRank()); // don't pass queryHeader, it is added below
-                                                        }
-                                                        case SAM -> {
-                                                            rma6Text = text = aligner.getAlignmentSAM(dataForInnerLoop, null, query.getSequence(), referenceHeader, seedMatch.getRank()); // don't pass queryHeader, it is added below
-                                                        }
-                                                    }
-                                                }
-                                                if (rmaWriter != null && rma6Text == null) {
-                                                    rma6Text = aligner.getAlignmentSAM(dataForInnerLoop, null, query.getSequence(), referenceHeader, seedMatch.getRank()); // don't pass queryHeader, it is added below
-                                                }
-                                                if (percentIdentity > 0) // need to filter by percent identity. Can't do this earlier because number of matches not known until alignment has been computed
-                                                {
-                                                    if (text == null && rma6Text == null)  // haven't computed alignment, so number of matches not yet computed
-                                                        aligner.computeAlignmentByTraceBack(); // compute number of matches
-                                                    if (aligner.getIdentities() < percentIdentity * aligner.getAlignmentLength()) {  // too few identities
-                                                        if (incrementedNumberOfReadMatchesForRefIndex)
-                                                            numberOfReadMatchesForRefIndex--; // undo increment, won't be saving this match
-                                                        continue;
-                                                    }
-                                                }
-                                                readMatch.set(aligner.getBitScore(), refIndex, text, rma6Text, aligner.getStartReference(), aligner.getEndReference());
-                                            }
-                                            previous = seedMatch;
-                                        }
-                                    }
+                    if (maltOptions.isLongReads()) { // seed matches have already been collected by the outer loop
+                        alignChains(query, dataForInnerLoop);
+                    } else {
+                        clearSeedMatches();
+
+                        // determine all the seeds to be used, map each ref-index to its seeds, seeds know which frame of the query was used
+                        for (int s = 0; s < dataForInnerLoop.numberOfFrames; s++) {
+                            for (int t = 0; t < seedShapes.length; t++) { // for each seed-shape specific hash table
+                                for (int qOffset = 0; qOffset < dataForInnerLoop.frameSequenceLength[s]; qOffset += shift) {
+                                    addSeedMatches(dataForInnerLoop.frameXTableXSeed2Reference[s][t][qOffset], s, t, qOffset, dataForInnerLoop, maltOptions.getMaxSeedsPerReference());
                                 }
                             }
                         }
-                        for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
-                            matchesQueue.add(readMatchesForRefIndex[z].getCopy());
-                        }
+                        alignSeedMatches(query, dataForInnerLoop);
                     }
                 } finally {
                     // erase the seed sets
@@ -412,6 +318,10 @@ public class AlignmentEngine {
                 for (int i = numberOfMatches - 1; i >= 0; i--) {  // places matches into array ordered by descending score
                     recycledMatchesArray[i] = matchesQueue.poll();
                 }
+                for (int i = 0; i < numberOfMatches; i++) {
+                    if (recycledMatchesArray[i].isDeferred())
+                        computeDeferredText(recycledMatchesArray[i], query, dataForInnerLoop);
+                }
                 matchesArray = recycledMatchesArray; // we reuse the matches array in the case that we are not using matches cache
             }
             // if use caching, save, even if no matches found!
@@ -445,10 +355,18 @@ public class AlignmentEngine {
                         }
                         matchesWriter.writeByRank(threadNumber, query.getId(), strings);
                     }
+                    case BAM -> {
+                        byte[] queryNamePlusTab = BlastTextHelper.getQueryNamePlusTab(query);
+                        byte[][] records = new byte[numberOfMatches][];
+                        for (int i = 0; i < numberOfMatches; i++) {
+                            records[i] = BAMHelper.makeRecord(queryNamePlusTab, matchesArray[i].getText());
+                        }
+                        matchesWriter.writeByRank(threadNumber, query.getId(), records);
+                    }
                 }
             }
             if (rmaWriter != null) {
-                rmaWriter.processMatches(query.getHeaderString(), query.getSequenceString(), matchesArray, numberOfMatches);
+                writeRMA6(query, matchesArray, numberOfMatches);
             }
 
             if (alignedReferenceIds != null) {
@@ -473,8 +391,8 @@ public class AlignmentEngine {
                     matchesWriter.skipByRank(threadNumber, query.getId());
                 }
             }
-            if (rmaWriter != null && maltOptions.isSaveUnalignedToRMA()) {
-                rmaWriter.processMatches(query.getHeaderString(), query.getSequenceString(), matchesArray, 0);
+            if (rmaWriter != null) {
+                writeRMA6(query, matchesArray, 0);
             }
             if (alignedReadsWriter != null) {
                 alignedReadsWriter.skipByRank(threadNumber, query.getId());
@@ -485,6 +403,328 @@ public class AlignmentEngine {
         }
     }
 
+    /**
+     * writes a query and its matches to the RMA6 file. For paired reads, the first mate is kept until the second mate has been
+     * aligned, so that both mates can be added next to each other and linked
+     */
+    private void writeRMA6(final FastARecord query, final ReadMatch[] matchesArray, final int numberOfMatches) throws IOException {
+        final boolean save = (numberOfMatches > 0 || maltOptions.isSaveUnalignedToRMA());
+        if (!fastAReader.isPaired()) {
+            if (save)
+                rmaWriter.processMatches(query.getHeaderString(), query.getSequenceString(), matchesArray, numberOfMatches);
+        } else if (query.getId() % 2 == 1) { // first mate
+            firstMateSaved = save;
+            if (save) {
+                firstMateHeader = query.getHeaderString();
+                firstMateSequence = query.getSequenceString();
+                if (firstMateMatches.length < numberOfMatches)
+                    firstMateMatches = new ReadMatch[numberOfMatches];
+                for (int i = 0; i < numberOfMatches; i++)
+                    firstMateMatches[i] = matchesArray[i].getCopy();
+                firstMateNumberOfMatches = numberOfMatches;
+            }
+        } else if (firstMateSaved && save) {
+            rmaWriter.processMatchesOfPair(firstMateHeader, firstMateSequence, firstMateMatches, firstMateNumberOfMatches,
+                    query.getHeaderString(), query.getSequenceString(), matchesArray, numberOfMatches);
+        } else if (firstMateSaved) {
+            rmaWriter.processMatches(firstMateHeader, firstMateSequence, firstMateMatches, firstMateNumberOfMatches);
+        } else if (save) {
+            rmaWriter.processMatches(query.getHeaderString(), query.getSequenceString(), matchesArray, numberOfMatches);
+        }
+    }
+
+    /**
+     * try to align each seed match, reporting the best matches for each reference
+     */
+    private void alignSeedMatches(final FastARecord query, final DataForInnerLoop dataForInnerLoop) throws IOException {
+        for (int k = 0; k < refIndex2ASeedMatches.size(); k++) {
+            final int refIndex = refIndex2ASeedMatches.getKey(k);
+            SeedMatch previous = null;
+            final SeedMatchArray seedMatches = refIndex2ASeedMatches.getValue(k);
+            seedMatches.sort();
+            int numberOfReadMatchesForRefIndex = 0;  // we keep a short array of best hits for the given reference index
+
+            for (int i = 0; i < seedMatches.size(); i++) {
+                SeedMatch seedMatch = seedMatches.get(i);
+                if (!seedMatch.follows(previous)) {   // ignore back-to-back matches
+                    // todo: debugging
+                    if (refIndex >= referencesDB.getNumberOfSequences()) {
+                        System.err.println("seedMatch=" + seedMatch);
+                        throw new IOException("refIndex=" + refIndex + ": out of bounds: " + referencesDB.getNumberOfSequences());
+                    }
+                    final byte[] referenceSequence = referencesDB.getSequence(refIndex);
+                    final byte[] sequence = dataForInnerLoop.frameSequence[seedMatch.getRank()];
+                    int length = dataForInnerLoop.frameSequenceLength[seedMatch.getRank()];
+
+                    if (aligner.quickCheck(sequence, length, referenceSequence, referenceSequence.length, seedMatch.getQueryOffset(), seedMatch.getReferenceOffset())) {
+                        if (useUngappedFilter && aligner.computeUngappedXDropScore(sequence, length, referenceSequence, referenceSequence.length,
+                                seedMatch.getQueryOffset(), seedMatch.getReferenceOffset(), seedMatch.getSeedLength()) < minUngappedRawScore) {
+                            countUngappedFiltered++;
+                            continue;
+                        }
+
+                        aligner.computeAlignment(sequence, length, referenceSequence, referenceSequence.length, seedMatch.getQueryOffset(), seedMatch.getReferenceOffset(), seedMatch.getSeedLength());
+
+                        if (aligner.getRawScore() >= minRawScore) {  // have found match with sufficient rawScore
+                            // compute bitscore and expected score
+                            aligner.computeBitScoreAndExpected();
+
+                            if (aligner.getBitScore() >= minBitScore && aligner.getExpected() <= maxExpected) {
+                                ReadMatch readMatch;
+                                boolean foundPlaceToKeepThisMatch;
+                                boolean incrementedNumberOfReadMatchesForRefIndex = false;
+
+                                if (readMatchesForRefIndex.length == 1) {  // only allowing one hit per reference...
+                                    readMatch = readMatchesForRefIndex[0];
+                                    numberOfReadMatchesForRefIndex = 1;
+                                    foundPlaceToKeepThisMatch = true;
+                                    incrementedNumberOfReadMatchesForRefIndex = true;
+                                } else {  //allow more than one hit
+                                    // ensure that this match does not overlap an existing match of same or better quality
+                                    boolean overlap = false;
+                                    for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
+                                        readMatch = readMatchesForRefIndex[z];
+                                        if (readMatch.getBitScore() >= aligner.getBitScore() && readMatch.overlap(aligner.getStartReference(), aligner.getEndReference())) {
+                                            overlap = true;
+                                            break;
+                                        }
+                                    }
+                                    if (overlap)
+                                        continue;
+
+                                    // keep this match, if array not full:
+                                    if (numberOfReadMatchesForRefIndex < readMatchesForRefIndex.length) {
+                                        readMatch = readMatchesForRefIndex[numberOfReadMatchesForRefIndex++];
+                                        foundPlaceToKeepThisMatch = true;
+                                        incrementedNumberOfReadMatchesForRefIndex = true;
+                                    } else {  // otherwise replace one with lower rawScore
+                                        foundPlaceToKeepThisMatch = false;
+                                        readMatch = null;
+                                        for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
+                                            readMatch = readMatchesForRefIndex[z];
+                                            if (aligner.getBitScore() > readMatch.getBitScore()) {
+                                                foundPlaceToKeepThisMatch = true;
+                                                break;
+                                            }
+                                        }
+                                    }
+                                }
+
+                                if (foundPlaceToKeepThisMatch) {
+                                    if (!hasEnoughIdentities()) {
+                                        if (incrementedNumberOfReadMatchesForRefIndex)
+                                            numberOfReadMatchesForRefIndex--; // undo increment, won't be saving this match
+                                        continue;
+                                    }
+                                    // trace back and text are only computed if the match is reported:
+                                    readMatch.setDeferred(aligner.getBitScore(), refIndex, seedMatch.getRank(), seedMatch.getQueryOffset(), seedMatch.getReferenceOffset(), seedMatch.getSeedLength());
+                                }
+                                previous = seedMatch;
+                            }
+                        }
+                    }
+                }
+            }
+            for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
+                matchesQueue.add(readMatchesForRefIndex[z].getCopy());
+            }
+        }
+    }
+
+    /**
+     * long-read mode: chain the seed matches of each reference and align along the best chains
+     */
+    private void alignChains(final FastARecord query, final DataForInnerLoop dataForInnerLoop) throws IOException {
+        for (int k = 0; k < refIndex2ASeedMatches.size(); k++) {
+            final int refIndex = refIndex2ASeedMatches.getKey(k);
+            final SeedMatchArray seedMatches = refIndex2ASeedMatches.getValue(k);
+            seedMatches.sort();
+            final int numberOfChains = anchorChainer.computeChains(seedMatches.matches, seedMatches.size(), minChainScore, readMatchesForRefIndex.length);
+            final int[] chainAnchors = anchorChainer.getChainAnchors();
+            final byte[] referenceSequence = referencesDB.getSequence(refIndex);
+
+            int numberOfReadMatchesForRefIndex = 0;
+            for (int c = 0; c < numberOfChains; c++) {
+                final int rank = seedMatches.get(chainAnchors[anchorChainer.getChainStart(c)]).getRank();
+                aligner.computeChainedAlignment(dataForInnerLoop.frameSequence[rank], dataForInnerLoop.frameSequenceLength[rank], referenceSequence, referenceSequence.length,
+                        seedMatches.matches, chainAnchors, anchorChainer.getChainStart(c), anchorChainer.getChainEnd(c));
+
+                if (aligner.getRawScore() >= minRawScore) {
+                    aligner.computeBitScoreAndExpected();
+                    if (aligner.getBitScore() >= minBitScore && aligner.getExpected() <= maxExpected && hasEnoughIdentities()) {
+                        // text is only computed if the match is reported:
+                        readMatchesForRefIndex[numberOfReadMatchesForRefIndex++].setDeferred(aligner.getBitScore(), refIndex, rank, aligner.getStartQuery(),
+                                aligner.getStartReference(), aligner.getEndReference(), aligner.getRawScore(), aligner.getEditTranscript());
+                    }
+                }
+            }
+            for (int z = 0; z < numberOfReadMatchesForRefIndex; z++) {
+                matchesQueue.add(readMatchesForRefIndex[z].getCopy());
+            }
+        }
+    }
+
+    /**
+     * does the current alignment have enough identities? Computes the trace back, if filtering by percent identity
+     */
+    private boolean hasEnoughIdentities() {
+        if (percentIdentity > 0) { // need to filter by percent identity. Can't do this earlier because number of matches not known until alignment has been computed
+            aligner.ensureAlignment(); // compute number of matches
+            return aligner.getIdentities() >= percentIdentity * aligner.getAlignmentLength();
+        }
+        return true;
+    }
+
+    /**
+     * recover the alignment of a deferred read match, either from its edit transcript or by recomputing it from its seed,
+     * and set the output text
+     */
+    private void computeDeferredText(final ReadMatch readMatch, final FastARecord query, final DataForInnerLoop dataForInnerLoop) throws IOException {
+        final int rank = readMatch.getFrameRank();
+        final byte[] referenceSequence = referencesDB.getSequence(readMatch.getReferenceId());
+        if (readMatch.getEditTranscript() != null) {
+            aligner.computeAlignmentFromEditTranscript(dataForInnerLoop.frameSequence[rank], dataForInnerLoop.frameSequenceLength[rank], referenceSequence, referenceSequence.length,
+                    readMatch.getQueryOffset(), readMatch.getReferenceOffset(), readMatch.getEditTranscript(), readMatch.getRawScore());
+        } else {
+            aligner.computeAlignment(dataForInnerLoop.frameSequence[rank], dataForInnerLoop.frameSequenceLength[rank], referenceSequence, referenceSequence.length,
+                    readMatch.getQueryOffset(), readMatch.getReferenceOffset(), readMatch.getSeedLength());
+            aligner.computeAlignmentByTraceBack();
+        }
+        aligner.computeBitScoreAndExpected();
+        setReadMatchText(readMatch, readMatch.getReferenceId(), query, dataForInnerLoop, rank);
+    }
+
+    /**
+     * set the output text and reference coordinates of the read match from the current alignment
+     */
+    private void setReadMatchText(final ReadMatch readMatch, final int refIndex, final FastARecord query, final DataForInnerLoop dataForInnerLoop, final int rank) throws IOException {
+        final byte[] referenceHeader;
+        if (geneTableAccess == null)
+            referenceHeader = referencesDB.getHeader(refIndex);
+        else {
+            int start = aligner.getStartReference();
+            if (start == -1) {
+                aligner.computeAlignmentByTraceBack();
+                start = aligner.getStartReference();
+            }
+            int end = aligner.getEndReference();
+            referenceHeader = geneTableAccess.annotateRefString(StringUtils.toString(referencesDB.getHeader(refIndex)), refIndex, start, end).getBytes();
+            //System.err.println(Basic.toString(referenceHeader));
+        }
+
+        byte[] text = null;
+        byte[] rma6Text = null;
+        if (matchesWriter != null) {
+            switch (matchOutputFormat) {
+                case Text -> {
+                    text = aligner.getAlignmentText(dataForInnerLoop, rank);
+                }
+                case Tab -> {
+                    text = aligner.getAlignmentTab(dataForInnerLoop, null, referenceHeader, rank); // don't pass queryHeader, it is added below
+                }
+                case SAM -> {
+                    text = aligner.getAlignmentSAM(dataForInnerLoop, null, query.getSequence(), referenceHeader, rank, addSAMReadGroup); // don't pass queryHeader, it is added below
+                    rma6Text = (addSAMReadGroup ? Arrays.copyOf(text, text.length - SAMHelper.READ_GROUP_TAG.length()) : text);
+                }
+                case BAM -> {
+                    text = aligner.getAlignmentBAM(dataForInnerLoop, query.getSequence(), refIndex, rank); // read name is added below
+                }
+            }
+        }
+        if (rmaWriter != null && rma6Text == null) {
+            rma6Text = aligner.getAlignmentSAM(dataForInnerLoop, null, query.getSequence(), referenceHeader, rank); // don't pass queryHeader, it is added below
+        }
+        readMatch.setText(text, rma6Text, aligner.getStartReference(), aligner.getEndReference(), (float) aligner.getExpected(), aligner.getPercentIdentity());
+    }
+
+    /**
+     * clear the seed match arrays that we reuse for each query
+     */
+    private void clearSeedMatches() {
+        if (seedArraysLength > 0) {
+            for (int i = 0; i < seedArraysLength; i++) {
+                seedArrays[i].clear();
+            }
+            seedArraysLength = 0;
+        }
+        refIndex2ASeedMatches.clear();
+    }
+
+    /**
+     * add the seed matches of one row, i.e. all locations of a seed at the given query offset, to the seed matches of the references
+     *
+     * @param maxSeedsPerReference maximum number of seed matches kept per reference
+     * @return number of locations in row
+     */
+    private int addSeedMatches(final Row matchLocations, final int s, final int t, final int qOffset, final DataForInnerLoop dataForInnerLoop, final int maxSeedsPerReference) throws IOException {
+        int seedMatchesUsed = 0;
+
+        for (int a = 0; a < matchLocations.size(); a += 2) {
+            countSeedMatches++;
+            final int refIndex = matchLocations.get(a);
+            final int refOffset = matchLocations.get(a + 1);
+
+            // todo: debugging
+            if (refIndex >= referencesDB.getNumberOfSequences()) {
+                System.err.println("matchLocations=" + matchLocations);
+                throw new IOException("refIndex=" + refIndex + ": out of bounds: " + referencesDB.getNumberOfSequences());
+            }
+
+            final byte[] referenceSequence = referencesDB.getSequence(refIndex);
+
+            try {
+                if (seedShapes[t].equalSequences(dataForInnerLoop.frameSequence[s], qOffset, referenceSequence, refOffset)) {
+                    if (seedMatchesUsed++ >= maltOptions.getMaxSeedsPerOffsetPerFrame()) {
+                        break;  // exceeded the maximum number of seeds per frame
+                    }
+
+                    SeedMatchArray set = refIndex2ASeedMatches.get(refIndex);
+                    if (set == null) {
+                        if (seedArraysLength >= seedArrays.length) {
+                            //System.err.println("seedArray: " + seedArrays.length + " -> " + (2 * seedArraysLength));
+                            seedArrays = resizeAndConstructEntries(seedArrays, 2 * seedArraysLength, maltOptions.getMaxSeedsPerReference());
+                        }
+                        set = seedArrays[seedArraysLength++];
+                        refIndex2ASeedMatches.put(refIndex, set);
+                    }
+                    if (set.size() < maxSeedsPerReference) {
+                        set.setNext(qOffset, refOffset, s, seedShapes[t].getLength());
+                        // else System.err.println("SKIPPED");
+                    }
+                } else
+                    countHashSeedMismatches++;
+            } catch (Exception ex) {
+                Basic.caught(ex);
+            }
+        }
+        return matchLocations.size();
+    }
+
+    /**
+     * long-read mode: look up the seeds of all frames and tables one query offset at a time and add the seed matches
+     * directly to the per-reference anchor lists, so that memory is linear in the number of anchors
+     *
+     * @return number of seed table hits
+     */
+    private int collectLongReadSeedMatches(final DataForInnerLoop dataForInnerLoop, final byte[][][] seedBytes) throws IOException {
+        clearSeedMatches();
+        int totalSize = 0;
+        for (int s = 0; s < dataForInnerLoop.numberOfFrames; s++) {
+            final int maxSeedsPerReference = Math.max(maltOptions.getMaxSeedsPerReference(), dataForInnerLoop.frameSequenceLength[s]);
+            for (int t = 0; t < tables.length; t++) {
+                final SeedShape seedShape = seedShapes[t];
+                final int top = dataForInnerLoop.frameSequenceLength[s] - seedShape.getLength() + 1;
+                for (int qOffset = 0; qOffset < top; qOffset += shift) {
+                    dataForInnerLoop.hitArena.clear(); // the row is consumed immediately
+                    final byte[] seed = seedShape.getSeed(dataForInnerLoop.frameSequence[s], qOffset, seedBytes[s][t]);
+                    if (tables[t].lookup(seed, longReadRow, dataForInnerLoop.hitArena) > 0)
+                        totalSize += addSeedMatches(longReadRow, s, t, qOffset, dataForInnerLoop, maxSeedsPerReference);
+                }
+            }
+        }
+        return totalSize;
+    }
+
     /**
      * finish up after outer loop completed
      */
@@ -524,6 +764,28 @@ public class AlignmentEngine {
         return total;
     }
 
+    /**
+     * compute total number of seed matches discarded by ungapped extension, each saving a banded alignment
+     */
+    static long getTotalUngappedFiltered(final AlignmentEngine[] alignmentEngines) {
+        long total = 0;
+        for (AlignmentEngine alignmentEngine : alignmentEngines) {
+            total += alignmentEngine.countUngappedFiltered;
+        }
+        return total;
+    }
+
+    /**
+     * compute maximum number of bytes used for seed lookups by any one thread
+     */
+    static long getMaxSeedLookupFootprint(final AlignmentEngine[] alignmentEngines) {
+        long max = 0;
+        for (AlignmentEngine alignmentEngine : alignmentEngines) {
+            max = Math.max(max, alignmentEngine.seedLookupFootprint);
+        }
+        return max;
+    }
+
     BitSet getAlignedReferenceIds() {
         return alignedReferenceIds;
     }
@@ -558,11 +820,11 @@ public class AlignmentEngine {
     /**
      * do we want to collect and save quality values?
      *
-     * @return true, if mode is BLASTN, output format is SAM and input file is fastQ
+     * @return true, if mode is BLASTN, output format is SAM or BAM and input file is fastQ
      */
     private boolean isWantQualityValues() {
         return (maltOptions.getMode() == BlastMode.BlastN &&
-                maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM && fastAReader.isFastQ());
+                (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM || maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.BAM) && fastAReader.isFastQ());
     }
 
     /**
@@ -585,6 +847,8 @@ public class AlignmentEngine {
         }
 
         void setNext(int queryOffset, int referenceOffset, int rank, int seedLength) {
+            if (size == matches.length) // only happens in long-read mode
+                matches = SeedMatch.resizeAndConstructEntries(matches, Math.max(16, 2 * size));
             matches[size++].set(queryOffset, referenceOffset, rank, seedLength);
         }
 
@@ -0,0 +1,268 @@
+/*
+ * AlignmentJob.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt;
+
+import jloda.util.FileLineIterator;
+import jloda.util.FileUtils;
+import jloda.util.StringUtils;
+import jloda.util.progress.ProgressPercentage;
+import malt.align.AlignerOptions;
+import malt.data.ReferencesDBAccess;
+import malt.data.ReferencesHashTableAccess;
+import malt.io.*;
+import malt.util.Utilities;
+import megan.genes.GeneItemAccessor;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * the reader, writers and alignment engines used to align one input file
+ * Daniel Huson, 10.2026
+ */
+class AlignmentJob {
+    private final AlignerOptions alignerOptions;
+    private final MaltOptions maltOptions;
+    private final String rmaOutputFile;
+    private final String matchesOutputFile;
+    private final String alignedReadsOutputFile;
+    private final String unalignedReadsOutputFile;
+    private final ReferencesDBAccess referencesDB;
+    private final ReferencesHashTableAccess[] tables;
+    private final GeneItemAccessor geneTableAccess;
+
+    private final FastAReader fastAReader;
+    private final String matchesOutputFileUsed;
+    private final boolean usingTemporarySAMOutputFile;
+    private final boolean usingTemporaryBAMRecordsFile;
+    private final FileWriterRanked matchesWriter;
+    private final RMA6Writer rmaWriter;
+    private final FileWriterRanked alignedReadsWriter;
+    private final FileWriterRanked unalignedReadsWriter;
+
+    private final AlignmentEngine[] alignmentEngines;
+
+    private long countReads;
+    private long countAlignedReads;
+    private long countAlignments;
+
+    /**
+     * opens the input file and all output files
+     */
+    AlignmentJob(final AlignerOptions alignerOptions, final MaltOptions maltOptions, final String infile, final String mateFile, final String rmaOutputFile,
+                 final String matchesOutputFile,
+                 final String alignedReadsOutputFile, final String unalignedReadsOutputFile,
+                 final ReferencesDBAccess referencesDB, final ReferencesHashTableAccess[] tables,
+                 final GeneItemAccessor geneTableAccess) throws IOException {
+        this.alignerOptions = alignerOptions;
+        this.maltOptions = maltOptions;
+        this.rmaOutputFile = rmaOutputFile;
+        this.matchesOutputFile = matchesOutputFile;
+        this.alignedReadsOutputFile = alignedReadsOutputFile;
+        this.unalignedReadsOutputFile = unalignedReadsOutputFile;
+        this.referencesDB = referencesDB;
+        this.tables = tables;
+        this.geneTableAccess = geneTableAccess;
+
+        fastAReader = new FastAReader(infile, mateFile, maltOptions.isInterleavedReads(), maltOptions.getQueryAlphabet(), new ProgressPercentage("+++++ Aligning file: " + infile), maltOptions.getNumberOfCompressionThreads());
+
+        if (matchesOutputFile != null && maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM && !maltOptions.isSparseSAM()) {
+            // body is written to a temporary file, the header and @SQ lines are prepended once all reads have been aligned
+            if (SAMHelper.canWriteSAMFileByConcatenation(matchesOutputFile)) { // body must be compressed like the final file
+                var temporaryFile = FileUtils.getTemporaryFileName(matchesOutputFile).replaceAll("\\.gz$", "");
+                matchesOutputFileUsed = (matchesOutputFile.endsWith(".gz") ? temporaryFile + ".gz" : temporaryFile);
+            } else
+                matchesOutputFileUsed = FileUtils.getTemporaryFileName(matchesOutputFile);
+			usingTemporarySAMOutputFile = true;
+            usingTemporaryBAMRecordsFile = false;
+        } else if (matchesOutputFile != null && maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.BAM) {
+            // records refer to references by database index, these are mapped to @SQ entries once all reads have been aligned.
+            // The records are block-gzip compressed, so that the temporary file takes about as much space as the final file
+            matchesOutputFileUsed = FileUtils.getTemporaryFileName(matchesOutputFile) + ".gz";
+            usingTemporarySAMOutputFile = false;
+            usingTemporaryBAMRecordsFile = true;
+        } else {
+            matchesOutputFileUsed = matchesOutputFile;
+            usingTemporarySAMOutputFile = false;
+            usingTemporaryBAMRecordsFile = false;
+        }
+
+        matchesWriter = (matchesOutputFileUsed != null ? new FileWriterRanked(matchesOutputFileUsed, maltOptions.getNumberOfThreads(), 1, maltOptions.getNumberOfCompressionThreads(), usingTemporaryBAMRecordsFile) : null);
+        rmaWriter = (rmaOutputFile != null ? new RMA6Writer(maltOptions, rmaOutputFile) : null);
+        alignedReadsWriter = (alignedReadsOutputFile != null ? new FileWriterRanked(alignedReadsOutputFile, maltOptions.getNumberOfThreads(), 1, maltOptions.getNumberOfCompressionThreads()) : null);
+        unalignedReadsWriter = (unalignedReadsOutputFile != null ? new FileWriterRanked(unalignedReadsOutputFile, maltOptions.getNumberOfThreads(), 1, maltOptions.getNumberOfCompressionThreads()) : null);
+
+        if (matchesWriter == null && rmaWriter == null && alignedReadsWriter == null && unalignedReadsWriter == null)
+            System.err.println("Warning: no output specified");
+
+        if (matchesWriter != null) {
+            if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.Text)
+                matchesWriter.writeFirst(BlastTextHelper.getBlastTextHeader(maltOptions.getMode()));
+            else if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM && !usingTemporarySAMOutputFile) {
+                matchesWriter.writeFirst(SAMHelper.getSAMHeader(maltOptions.getMode(), maltOptions.getCommandLine()));
+            }
+        }
+
+        alignmentEngines = new AlignmentEngine[maltOptions.getNumberOfThreads()];
+    }
+
+    /**
+     * gets the alignment engine for the given thread number, creating it, if necessary. An engine must only be run by one thread at a time
+     *
+     * @return alignment engine
+     */
+    AlignmentEngine getAlignmentEngine(int threadNumber) throws IOException {
+        if (alignmentEngines[threadNumber] == null)
+            alignmentEngines[threadNumber] = new AlignmentEngine(threadNumber, maltOptions, alignerOptions, referencesDB, tables, fastAReader,
+                    matchesWriter, rmaWriter, alignedReadsWriter, unalignedReadsWriter, geneTableAccess);
+        return alignmentEngines[threadNumber];
+    }
+
+    /**
+     * closes the input file and completes all output files, once all alignment engines have finished
+     */
+    void finish() throws IOException {
+        fastAReader.close();
+
+        final AlignmentEngine[] alignmentEngines = Arrays.stream(this.alignmentEngines).filter(Objects::nonNull).toArray(AlignmentEngine[]::new);
+
+        if (matchesWriter != null) {
+            if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.Text)
+                matchesWriter.writeLast(BlastTextHelper.FILE_FOOTER_BLAST);
+            matchesWriter.close();
+            System.err.println("Alignments written to file: " + matchesOutputFileUsed);
+        }
+        if (rmaWriter != null) {
+            rmaWriter.close(maltOptions.getContaminantsFile());
+            System.err.println("Analysis written to file: " + rmaOutputFile);
+        }
+
+        // if using temporary file, prepend header and @SQ lines
+        if (usingTemporarySAMOutputFile) {
+            var header = new StringBuilder(SAMHelper.getSAMHeader(maltOptions.getMode(), maltOptions.getCommandLine()));
+            {
+                var allIds = new BitSet();
+                for (var engine : alignmentEngines) {
+                    allIds.or(engine.getAlignedReferenceIds());
+                }
+                for (var r = allIds.nextSetBit(0); r != -1; r = allIds.nextSetBit(r + 1)) {
+                    header.append("@SQ\tSN:").append(StringUtils.toString(Utilities.getFirstWordSkipLeadingGreaterSign(referencesDB.getHeader(r))))
+                            .append("\tLN:").append(referencesDB.getSequenceLength(r)).append('\n');
+                }
+            }
+
+            if (SAMHelper.canWriteSAMFileByConcatenation(matchesOutputFile)) {
+                SAMHelper.writeSAMFile(matchesOutputFile, header.toString(), matchesOutputFileUsed);
+            } else { // copy matches
+                var w = new BufferedWriter(new OutputStreamWriter(FileUtils.getOutputStreamPossiblyZIPorGZIP(matchesOutputFile)));
+                w.write(header.toString());
+                var it = new FileLineIterator(matchesOutputFileUsed);
+                var progress = new ProgressPercentage("Copying from temporary file:", it.getMaximumProgress());
+                while (it.hasNext()) {
+                    w.write(it.next());
+                    w.write('\n');
+                    progress.incrementProgress();
+                }
+                it.close();
+                progress.close();
+                w.close();
+            }
+            if (new File(matchesOutputFileUsed).delete())
+                System.err.println("Deleted temporary file: " + matchesOutputFileUsed);
+        }
+
+        if (usingTemporaryBAMRecordsFile) {
+            var allIds = new BitSet();
+            for (var engine : alignmentEngines) {
+                allIds.or(engine.getAlignedReferenceIds());
+            }
+            BAMHelper.writeBAMFile(matchesOutputFile, SAMHelper.getSAMHeader(maltOptions.getMode(), maltOptions.getCommandLine()), allIds, referencesDB,
+                    matchesOutputFileUsed, maltOptions.getNumberOfCompressionThreads());
+            System.err.println("BAM file written: " + matchesOutputFile);
+            if (new File(matchesOutputFileUsed).delete())
+                System.err.println("Deleted temporary file: " + matchesOutputFileUsed);
+        }
+
+        if (alignedReadsWriter != null) {
+            // merge all thread-specific taxon profiles. This can be quite major computation...
+            alignedReadsWriter.close();
+            System.err.println("Aligned reads written to file: " + alignedReadsOutputFile);
+        }
+        if (unalignedReadsWriter != null) {
+            // merge all thread-specific taxon profiles. This can be quite major computation...
+            unalignedReadsWriter.close();
+            System.err.println("Unaligned reads written to file: " + unalignedReadsOutputFile);
+        }
+
+        countReads = AlignmentEngine.getTotalSequencesProcessed(alignmentEngines);
+        countAlignedReads = AlignmentEngine.getTotalSequencesWithAlignments(alignmentEngines);
+        countAlignments = AlignmentEngine.getTotalAlignments(alignmentEngines);
+
+        System.err.printf("Num. of queries: %10d%n", countReads);
+        System.err.printf("Aligned queries: %10d%n", countAlignedReads);
+        System.err.printf("Num. alignments: %10d%n", countAlignments);
+        System.err.printf("Seed lookup memory per thread (max): %,d KB%n", AlignmentEngine.getMaxSeedLookupFootprint(alignmentEngines) / 1024);
+        if (alignerOptions.isUseUngappedFilter())
+            System.err.printf("Alignments avoided by ungapped filter: %,d%n", AlignmentEngine.getTotalUngappedFiltered(alignmentEngines));
+    }
+
+    /**
+     * stops all output by rank, after an engine has failed, so that no other engine waits for the output of the failed one
+     */
+    void abortOutput() {
+        for (var writer : new FileWriterRanked[]{matchesWriter, alignedReadsWriter, unalignedReadsWriter}) {
+            if (writer != null)
+                writer.abort();
+        }
+    }
+
+    /**
+     * closes the input file and all output files, after an engine has failed and all others have stopped. Output files are incomplete
+     */
+    void abort() {
+        try {
+            fastAReader.close();
+            for (var writer : new FileWriterRanked[]{matchesWriter, alignedReadsWriter, unalignedReadsWriter}) {
+                if (writer != null)
+                    writer.close();
+            }
+            if (rmaWriter != null)
+                rmaWriter.close(maltOptions.getContaminantsFile());
+        } catch (IOException ex) {
+            System.err.println("Aborting job: " + ex);
+        }
+    }
+
+    long getCountReads() {
+        return countReads;
+    }
+
+    long getCountAlignedReads() {
+        return countAlignedReads;
+    }
+
+    long getCountAlignments() {
+        return countAlignments;
+    }
+}
@@ -20,6 +20,7 @@ package malt;
 
 import jloda.seq.BlastMode;
 import malt.data.DNA5;
+import malt.data.HitArena;
 import malt.data.Row;
 import malt.data.Translator;
 import malt.util.Utilities;
@@ -30,9 +31,12 @@ import java.io.IOException;
  * this contains all query specific data that is passed to the inner loop of the algorithm
  */
 public class DataForInnerLoop {
+    private static final int BYTES_PER_ROW = 40; // estimated size of a row object plus reference to it
+
     private final BlastMode mode;
     private final boolean doForward;
     private final boolean doReverse;
+    private final boolean allocateRows;
     final int maxNumberOfFrames;
     final int numberOfTables;
     final String[] positiveFrameInfoString;
@@ -46,13 +50,24 @@ public class DataForInnerLoop {
     public byte[] qualityValues;
     public final int[] frameSequenceLength;
     public final Row[][][] frameXTableXSeed2Reference;
+    public final HitArena hitArena; // holds the hits of all rows of the current query
 
     /**
      * constructor
      *
 	 */
     public DataForInnerLoop(BlastMode mode, boolean doForward, boolean doReverse, int maxNumberOfFrames, int numberOfTables) {
+        this(mode, doForward, doReverse, maxNumberOfFrames, numberOfTables, true);
+    }
+
+    /**
+     * constructor
+     *
+     * @param allocateRows allocate a row for every query offset, not needed when seed matches are streamed (long-read mode)
+     */
+    public DataForInnerLoop(BlastMode mode, boolean doForward, boolean doReverse, int maxNumberOfFrames, int numberOfTables, boolean allocateRows) {
         this.mode = mode;
+        this.allocateRows = allocateRows;
         this.doForward = doForward;
         this.doReverse = doReverse;
         this.maxNumberOfFrames = maxNumberOfFrames;
@@ -62,6 +77,7 @@ public class DataForInnerLoop {
         frameSequence = new byte[maxNumberOfFrames][maxQueryLength];
         frameSequenceLength = new int[maxNumberOfFrames];
         frameXTableXSeed2Reference = new Row[maxNumberOfFrames][numberOfTables][maxQueryLength];
+        hitArena = new HitArena(1 << 16);
 
         // for BlastP and BlastN the frames never replace so we set them here once and for all:
         switch (mode) {
@@ -148,7 +164,7 @@ public class DataForInnerLoop {
         // resize arrays:
         if (maxQueryLength < queryLength) {
             maxQueryLength = queryLength;
-            for (int s = 0; s < maxNumberOfFrames; s++) {
+            for (int s = 0; s < maxNumberOfFrames && allocateRows; s++) {
                 for (int t = 0; t < numberOfTables; t++) {
                     frameXTableXSeed2Reference[s][t] = Utilities.resizeAndConstructEntries(frameXTableXSeed2Reference[s][t], maxQueryLength);
                 }
@@ -156,6 +172,23 @@ public class DataForInnerLoop {
         }
     }
 
+    /**
+     * estimate the number of bytes used by this data structure
+     *
+     * @return bytes
+     */
+    public long getFootprint() {
+        long bytes = hitArena.getBytes();
+        for (int s = 0; s < maxNumberOfFrames; s++) {
+            if (frameSequence[s] != null)
+                bytes += frameSequence[s].length;
+            for (int t = 0; t < numberOfTables; t++) {
+                bytes += (long) BYTES_PER_ROW * frameXTableXSeed2Reference[s][t].length;
+            }
+        }
+        return bytes;
+    }
+
     public int getStartQueryForOutput(int frameRank, int startQuery) {
         switch (mode) {
             case BlastN: {
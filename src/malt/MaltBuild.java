@@ -26,6 +26,7 @@ import jloda.util.*;
 import jloda.util.progress.ProgressPercentage;
 import malt.data.*;
 import malt.mapping.Mapping;
+import malt.mapping.PackedMappingFile;
 import malt.util.Utilities;
 import megan.accessiondb.AccessAccessionMappingDatabase;
 import megan.classification.Classification;
@@ -37,6 +38,7 @@ import megan.tools.AAdderBuild;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -145,10 +147,12 @@ public class MaltBuild {
         ProgramProperties.put(IdParser.PROPERTIES_FIRST_WORD_IS_ACCESSION, options.getOption("-fwa", "firstWordIsAccession", "First word in reference header is accession number", ProgramProperties.get(IdParser.PROPERTIES_FIRST_WORD_IS_ACCESSION, true)));
         ProgramProperties.put(IdParser.PROPERTIES_ACCESSION_TAGS, options.getOption("-atags", "accessionTags", "List of accession tags", ProgramProperties.get(IdParser.PROPERTIES_ACCESSION_TAGS, IdParser.ACCESSION_TAGS)));
 
+        final var packedMappingsOnly = options.getOption("pmo", "packedMappingsOnly", "Save classification mappings only to the single packed mapping file (index can't be used by older versions of MALT)", false);
         final var saveFirstWordOfReferenceHeaderOnly = options.getOption("-fwo", "firstWordOnly", "Save only first word of reference header", false);
         final var randomSeed = options.getOption("rns", "random", "Random number generator seed", 666);
         final var hashTableLoadFactor = options.getOption("hsf", "hashScaleFactor", "Hash table scale factor", 0.9f, 0.1f, 1.0f);
         final var buildTableInMemory = options.getOption("btm", "buildTableInMemory", "Build the hash table in memory and then save (uses more memory, is much faster)", true);
+        final var maxMemory = options.getOption("mm", "maxMemory", "Memory budget in GB for building the hash table out-of-core using sorted spill files (0: don't build out-of-core)", 0f, 0f, 100000f);
         final var doBuildTables = !options.getOption("!xX", "xSkipTable", "Don't recompute index and tables, just compute profile support", false);
 
         final var lookInside = options.getOption("-ex", "extraStrict", "When given an input directory, look inside every GFF file to check that it is indeed in GFF3 format", false);
@@ -262,14 +266,46 @@ public class MaltBuild {
 
         // generate hash table for each seed shape
         if (doBuildTables) {
+            final var hashTables = new ReferencesHashTableBuilder[shapes.length];
+            final var tableIndexFiles = new File[shapes.length];
+            final var tableDataFiles = new File[shapes.length];
             for (var tableNumber = 0; tableNumber < shapes.length; tableNumber++) {
-                final var shape = shapes[tableNumber];
-                final var seedShape = new SeedShape(seedAlphabet, shape);
-                System.err.println("BUILDING table (" + tableNumber + ")...");
-                final ReferencesHashTableBuilder hashTable = new ReferencesHashTableBuilder(sequenceType, seedAlphabet, seedShape,
+                final var seedShape = new SeedShape(seedAlphabet, shapes[tableNumber]);
+                System.err.println("Setting up table (" + tableNumber + ")...");
+                hashTables[tableNumber] = new ReferencesHashTableBuilder(sequenceType, seedAlphabet, seedShape,
                         referencesDB.getNumberOfSequences(), referencesDB.getNumberOfLetters(), randomSeed, maxHitsPerSeed, hashTableLoadFactor, stepSize);
-                hashTable.buildTable(new File(indexDirectory, "table" + tableNumber + ".idx"), new File(indexDirectory, "table" + tableNumber + ".db"), referencesDB, numberOfThreads, buildTableInMemory);
-                hashTable.saveIndexFile(new File(indexDirectory, "index" + tableNumber + ".idx"));
+                tableIndexFiles[tableNumber] = new File(indexDirectory, "table" + tableNumber + ".idx");
+                tableDataFiles[tableNumber] = new File(indexDirectory, "table" + tableNumber + ".db");
+            }
+
+            if (maxMemory > 0) {
+                for (var tableNumber = 0; tableNumber < shapes.length; tableNumber++) {
+                    System.err.println("BUILDING table (" + tableNumber + ")...");
+                    hashTables[tableNumber].buildTableExternal(tableIndexFiles[tableNumber], tableDataFiles[tableNumber], referencesDB, numberOfThreads, (long) (maxMemory * 1024L * 1024L * 1024L));
+                }
+            } else {
+                // build as many tables together as fit into the available memory, sharing the passes over the references
+                final var runtime = Runtime.getRuntime();
+                final var memoryBudget = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+                for (var first = 0; first < shapes.length; ) {
+                    var last = first + 1;
+                    var memory = hashTables[first].estimateMemoryUsage(buildTableInMemory);
+                    while (last < shapes.length && memory + hashTables[last].estimateMemoryUsage(buildTableInMemory) <= memoryBudget) {
+                        memory += hashTables[last].estimateMemoryUsage(buildTableInMemory);
+                        last++;
+                    }
+                    if (last - first == 1)
+                        System.err.println("BUILDING table (" + first + ")...");
+                    else
+                        System.err.println("BUILDING tables (" + first + "-" + (last - 1) + ")...");
+                    ReferencesHashTableBuilder.buildTables(Arrays.copyOfRange(hashTables, first, last), Arrays.copyOfRange(tableIndexFiles, first, last),
+                            Arrays.copyOfRange(tableDataFiles, first, last), referencesDB, numberOfThreads, buildTableInMemory);
+                    first = last;
+                }
+            }
+
+            for (var tableNumber = 0; tableNumber < shapes.length; tableNumber++) {
+                hashTables[tableNumber].saveIndexFile(new File(indexDirectory, "index" + tableNumber + ".idx"));
             }
         }
 
@@ -281,6 +317,7 @@ public class MaltBuild {
             FileUtils.writeStreamToFile(ResourceManager.getFileAsStream(sourceName + ".map"), new File(indexDirectory, cNameLowerCase + ".map"));
         }
 
+        final var mappings = new ArrayList<Mapping>();
         if (mapDBFile.length() == 0) {
             for (var cName : cNames) {
                 final var cNameLowerCase = cName.toLowerCase();
@@ -290,25 +327,33 @@ public class MaltBuild {
                 if (class2AccessionFile.get(cName) != null)
                     Utilities.loadMapping(class2AccessionFile.get(cName), IdMapper.MapType.Accession, cName);
 
-                final IdParser idParser = ClassificationManager.get(cName, true).getIdMapper().createIdParser();
-                if (cName.equals(Classification.Taxonomy))
-                    idParser.setUseTextParsing(parseTaxonNames);
+                final Supplier<IdParser> idParserFactory = () -> {
+                    final IdParser idParser = ClassificationManager.get(cName, true).getIdMapper().createIdParser();
+                    if (cName.equals(Classification.Taxonomy))
+                        idParser.setUseTextParsing(parseTaxonNames);
+                    return idParser;
+                };
 
                 if (functionalClassification || cName.equals(Classification.Taxonomy)) {
-                    final Mapping mapping = Mapping.create(cName, referencesDB, idParser, new ProgressPercentage("Building " + cName + "-mapping..."));
-                    mapping.save(new File(indexDirectory, cNameLowerCase + ".idx"));
+                    final Mapping mapping = Mapping.create(cName, referencesDB, idParserFactory, numberOfThreads, new ProgressPercentage("Building " + cName + "-mapping..."));
+                    if (!packedMappingsOnly)
+                        mapping.save(new File(indexDirectory, cNameLowerCase + ".idx"));
+                    mappings.add(mapping);
                 }
             }
         } else {
-            final Map<String, Mapping> mappings;
             try (var progress = new ProgressPercentage("Building mappings...")) {
-                mappings = Mapping.create(cNames, referencesDB, new AccessAccessionMappingDatabase(mapDBFile), progress);
+                mappings.addAll(Mapping.create(cNames, referencesDB, mapDBFile, numberOfThreads, progress).values());
             }
-            for (var cName : mappings.keySet()) {
-                final var mapping = mappings.get(cName);
-                mapping.save(new File(indexDirectory, cName.toLowerCase() + ".idx"));
+            if (!packedMappingsOnly) {
+                for (var mapping : mappings) {
+                    mapping.save(new File(indexDirectory, mapping.getFName().toLowerCase() + ".idx"));
+                }
             }
         }
+        try (var progress = new ProgressPercentage("Writing file: " + new File(indexDirectory, PackedMappingFile.FILE_NAME))) {
+            PackedMappingFile.save(new File(indexDirectory, PackedMappingFile.FILE_NAME), mappings, progress);
+        }
 
         if (doBuildTables) // don't write until after running classification mappers, as they add tags to reference sequences
             referencesDB.save(new File(indexDirectory, "ref.idx"), new File(indexDirectory, "ref.db"), new File(indexDirectory, "ref.inf"), saveFirstWordOfReferenceHeaderOnly);
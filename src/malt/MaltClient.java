@@ -0,0 +1,91 @@
+/*
+ * MaltClient.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt;
+
+import jloda.swing.util.ArgsOptions;
+import jloda.util.Basic;
+import jloda.util.ProgramProperties;
+import jloda.util.UsageException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedList;
+
+/**
+ * submits jobs to a MALT server (MaltRun --server) and waits for them to complete
+ * Daniel Huson, 10.2026
+ */
+public class MaltClient {
+    /**
+     * launch the client
+     */
+    public static void main(String[] args) {
+        try {
+            ProgramProperties.setProgramName("MaltClient");
+            ProgramProperties.setProgramVersion(Version.SHORT_DESCRIPTION);
+
+            final var countFailed = (new MaltClient()).run(args);
+            System.exit(countFailed == 0 ? 0 : 1);
+        } catch (Exception ex) {
+            if (ex.getMessage() == null || !ex.getMessage().startsWith("Help"))
+                Basic.caught(ex);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * run the program
+     *
+     * @return number of input files that failed
+     */
+    public int run(String[] args) throws UsageException, IOException {
+        final var options = new ArgsOptions(args, this, "Submits jobs to a MALT server (see MaltRun --server) and waits for them to complete");
+        options.setAuthors("Daniel H. Huson");
+        options.setVersion(ProgramProperties.getProgramVersion());
+        options.setLicense("Copyright (C) 2024. This program comes with ABSOLUTELY NO WARRANTY.");
+
+        options.comment("Input:");
+        final var inputFileNames = options.getOption("i", "inFile", "Input file(s) containing queries in FastA or FastQ format (gzip or zip ok)", new LinkedList<>());
+
+        options.comment("Output:");
+        final var outputRMAFileNames = options.getOption("o", "output", "Output RMA file(s) or directory", new LinkedList<>());
+        final var outputMatchesFileNames = options.getOption("a", "alignments", "Output alignment file(s) or directory, in the format set for the server", new LinkedList<>());
+        final var outputAlignedFileNames = options.getOption("oa", "outAligned", "Aligned reads output file(s) or directory", new LinkedList<>());
+        final var outputUnAlignedFileNames = options.getOption("ou", "outUnaligned", "Unaligned reads output file(s) or directory", new LinkedList<>());
+
+        options.comment("Server:");
+        final var socketFile = Path.of(options.getOption("ss", "serverSocket", "Socket file on which the server listens for jobs", MaltServer.getDefaultSocketFile().toString()));
+        final var shutdown = options.getOption("sd", "shutdown", "Shut down the server, once all submitted jobs are complete", false);
+        options.done();
+
+        if (shutdown) {
+            if (!inputFileNames.isEmpty())
+                throw new UsageException("--shutdown: illegal to specify input files");
+            MaltServer.requestShutdown(socketFile);
+            return 0;
+        }
+
+        if (inputFileNames.isEmpty())
+            throw new UsageException("You must specify at least one input file");
+        if (outputRMAFileNames.isEmpty() && outputMatchesFileNames.isEmpty() && outputAlignedFileNames.isEmpty() && outputUnAlignedFileNames.isEmpty())
+            throw new UsageException("You must specify at least one output option");
+
+        return MaltServer.submit(socketFile, inputFileNames, outputRMAFileNames, outputMatchesFileNames, outputAlignedFileNames, outputUnAlignedFileNames);
+    }
+}
@@ -29,7 +29,7 @@ public class MaltOptions {
     private String commandLine;
 
     public enum MatchOutputFormat {
-        SAM, Tab, Text;
+        SAM, BAM, Tab, Text;
 
         public static MatchOutputFormat valueOfIgnoreCase(String label) {
             for (MatchOutputFormat type : values())
@@ -65,6 +65,7 @@ public class MaltOptions {
     private boolean gzipUnalignedReads = true;
 
     private boolean useWeightedLCA = false;
+    private boolean streamingLCA = false;
     private float lcaCoveragePercent = 80.0f;
 
     private float topPercentLCA = 10;
@@ -79,12 +80,16 @@ public class MaltOptions {
 
     private int shift = 1;
     private int numberOfThreads = 8;
+    private int numberOfCompressionThreads = 8;
 
     private IAlphabet queryAlphabet;
 
     private boolean useReplicateQueryCaching = false;
 
     private boolean pairedReads = false;
+    private boolean interleavedReads = false;
+
+    private boolean longReads = false;
 
     private String contaminantsFile = "";
 
@@ -125,6 +130,23 @@ public class MaltOptions {
         this.numberOfThreads = numberOfThreads;
     }
 
+    /**
+     * get number of threads used to compress gzipped output
+     *
+     * @return threads
+     */
+    public int getNumberOfCompressionThreads() {
+        return numberOfCompressionThreads;
+    }
+
+    /**
+     * set number of threads used to compress gzipped output
+     *
+     */
+    public void setNumberOfCompressionThreads(int numberOfCompressionThreads) {
+        this.numberOfCompressionThreads = numberOfCompressionThreads;
+    }
+
     public int getMaxAlignmentsPerQuery() {
         return maxAlignmentsPerQuery;
     }
@@ -313,6 +335,14 @@ public class MaltOptions {
         this.useWeightedLCA = useWeightedLCA;
     }
 
+    public boolean isStreamingLCA() {
+        return streamingLCA;
+    }
+
+    public void setStreamingLCA(boolean streamingLCA) {
+        this.streamingLCA = streamingLCA;
+    }
+
     public float getLcaCoveragePercent() {
         return lcaCoveragePercent;
     }
@@ -329,6 +359,22 @@ public class MaltOptions {
         this.pairedReads = pairedReads;
     }
 
+    public boolean isInterleavedReads() {
+        return interleavedReads;
+    }
+
+    public void setInterleavedReads(boolean interleavedReads) {
+        this.interleavedReads = interleavedReads;
+    }
+
+    public boolean isLongReads() {
+        return longReads;
+    }
+
+    public void setLongReads(boolean longReads) {
+        this.longReads = longReads;
+    }
+
     public boolean isUsePercentIdentityFilterLCA() {
         return usePercentIdentityFilterLCA;
     }
@@ -345,6 +391,8 @@ public class MaltOptions {
     public String getMatchesOutputSuffix() {
         if (matchOutputFormat == MatchOutputFormat.SAM)
             return "." + mode.name().toLowerCase() + ".sam";
+        else if (matchOutputFormat == MatchOutputFormat.BAM)
+            return "." + mode.name().toLowerCase() + ".bam";
         else if (matchOutputFormat == MatchOutputFormat.Tab)
             return "." + mode.name().toLowerCase() + ".tab";
         else return "." + mode.name().toLowerCase();
@@ -22,13 +22,13 @@ import jloda.seq.BlastMode;
 import jloda.swing.util.ArgsOptions;
 import jloda.swing.util.ResourceManager;
 import jloda.util.*;
-import jloda.util.progress.ProgressPercentage;
 import malt.align.AlignerOptions;
 import malt.align.BlastStatisticsHelper;
 import malt.align.DNAScoringMatrix;
 import malt.align.ProteinScoringMatrix;
+import malt.align.IExtensionScorer;
 import malt.data.*;
-import malt.io.*;
+import malt.io.BGZFOutputStream;
 import malt.mapping.MappingManager;
 import malt.util.Utilities;
 import megan.classification.ClassificationManager;
@@ -36,14 +36,12 @@ import megan.core.Document;
 import megan.genes.GeneItemAccessor;
 import megan.util.ReadMagnitudeParser;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.spec.InvalidKeySpecException;
-import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -112,37 +110,51 @@ public class MaltRun {
         SequenceType querySequenceType = Utilities.getQuerySequenceTypeFromMode(maltOptions.getMode());
         SequenceType referenceSequenceType = Utilities.getReferenceSequenceTypeFromMode(maltOptions.getMode());
         options.comment("Input:");
-        List<String> inputFileNames = options.getOptionMandatory("i", "inFile", "Input file(s) containing queries in FastA or FastQ format (gzip or zip ok)", new LinkedList<>());
+        final boolean runAsServer = options.getOption("srv", "server", "Run as server: keep the index loaded and align the input files of jobs submitted using MaltClient", false);
+        final String serverSocket = (runAsServer || options.isDoHelp() ? options.getOption("ss", "serverSocket", "Socket file on which the server listens for jobs, its directory must only be accessible by the user",
+                MaltServer.getDefaultSocketFile().toString()) : null);
+        final int maxServerJobs = (runAsServer || options.isDoHelp() ? options.getOption("mj", "maxJobs", "Maximum number of jobs that the server aligns at the same time, further jobs wait in a queue", 2) : 0);
+        List<String> inputFileNames = (runAsServer ? options.getOption("i", "inFile", "Input file(s) containing queries in FastA or FastQ format (gzip or zip ok)", new LinkedList<>())
+                : options.getOptionMandatory("i", "inFile", "Input file(s) containing queries in FastA or FastQ format (gzip or zip ok)", new LinkedList<>()));
+        List<String> mateFileNames = options.getOption("im", "inMates", "Input file(s) containing the mates of paired reads, in the same order as --inFile", new LinkedList<>());
+        maltOptions.setInterleavedReads(options.getOption("il", "interleaved", "Input files contain paired reads, each read followed by its mate", false));
+        maltOptions.setPairedReads(!mateFileNames.isEmpty() || maltOptions.isInterleavedReads());
         String indexDirectory = options.getOptionMandatory("d", "index", "Index directory as generated by MaltBuild", "");
 
         options.comment("Output:");
         var outputRMAFileNames = options.getOption("o", "output", "Output RMA file(s) or directory or stdout", new LinkedList<>());
-        if (!outputRMAFileNames.isEmpty() || options.isDoHelp())
+        if (!outputRMAFileNames.isEmpty() || runAsServer || options.isDoHelp())
             maltOptions.setSaveUnalignedToRMA(options.getOption("iu", "includeUnaligned", "Include unaligned queries in RMA output file", false));
 
        var outputMatchesFileNames = options.getOption("a", "alignments", "Output alignment file(s) or directory or stdout", new LinkedList<>());
-        if (!outputMatchesFileNames.isEmpty() || options.isDoHelp()) {
+        if (!outputMatchesFileNames.isEmpty() || runAsServer || options.isDoHelp()) {
             maltOptions.setMatchOutputFormat(options.getOption("f", "format", "Alignment output format", MaltOptions.MatchOutputFormat.values(), maltOptions.getMatchOutputFormat().toString()));
             maltOptions.setGzipMatches(options.getOption("za", "gzipAlignments", "Compress alignments using gzip", maltOptions.isGzipMatches()));
+            if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.BAM) {
+                if (maltOptions.getMode() != BlastMode.BlastN && !options.isDoHelp())
+                    throw new UsageException("--format BAM: only supported in BlastN mode");
+                maltOptions.setGzipMatches(false); // BAM is always block-gzipped
+            }
         }
 
-        if ((maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM && maltOptions.getMode() == BlastMode.BlastN) || options.isDoHelp()) {
-            alignerOptions.setSamSoftClipping(options.getOption("ssc", "samSoftClip", "Use soft clipping in SAM files (BlastN mode only)", alignerOptions.isSamSoftClipping()));
+        if (((maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM || maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.BAM) && maltOptions.getMode() == BlastMode.BlastN) || options.isDoHelp()) {
+            alignerOptions.setSamSoftClipping(options.getOption("ssc", "samSoftClip", "Use soft clipping in SAM and BAM files (BlastN mode only)", alignerOptions.isSamSoftClipping()));
         }
         if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM || options.isDoHelp()) {
             maltOptions.setSparseSAM(options.getOption("sps", "sparseSAM", "Produce sparse SAM format (smaller, faster, but only suitable for MEGAN)", maltOptions.isSparseSAM()));
         }
         var outputAlignedFileNames = options.getOption("oa", "outAligned", "Aligned reads output file(s) or directory or stdout", new LinkedList<>());
-        if (!outputAlignedFileNames.isEmpty() || options.isDoHelp()) {
+        if (!outputAlignedFileNames.isEmpty() || runAsServer || options.isDoHelp()) {
             maltOptions.setGzipAlignedReads(options.getOption("zal", "gzipAligned", "Compress aligned reads output using gzip", maltOptions.isGzipAlignedReads()));
         }
         var outputUnAlignedFileNames = options.getOption("ou", "outUnaligned", "Unaligned reads output file(s) or directory or stdout", new LinkedList<>());
-        if (!outputUnAlignedFileNames.isEmpty() || options.isDoHelp()) {
+        if (!outputUnAlignedFileNames.isEmpty() || runAsServer || options.isDoHelp()) {
             maltOptions.setGzipUnalignedReads(options.getOption("zul", "gzipUnaligned", "Compress unaligned reads output using gzip", maltOptions.isGzipUnalignedReads()));
         }
 
         options.comment("Performance:");
         maltOptions.setNumberOfThreads(options.getOption("t", "numThreads", "Number of worker threads", Runtime.getRuntime().availableProcessors()));
+        maltOptions.setNumberOfCompressionThreads(options.getOption("ct", "compressionThreads", "Number of threads used to compress gzipped output and decompress block-gzipped input, shared by all files", maltOptions.getNumberOfThreads()));
         var memoryMode = MaltOptions.MemoryMode.valueOf(options.getOption("mem", "memoryMode", "Memory mode", MaltOptions.MemoryMode.values(), MaltOptions.MemoryMode.load.toString()));
         var maxNumberOfSeedShapes = options.getOption("mt", "maxTables", "Set the maximum number of seed tables to use (0=all)", 0);
         maltOptions.setUseReplicateQueryCaching(options.getOption("rqc", "replicateQueryCache", "Cache results for replicated queries", false));
@@ -197,7 +209,10 @@ public class MaltRun {
         if (!maltOptions.isUseWeightedLCA())
             maltOptions.setLcaCoveragePercent(Document.DEFAULT_LCA_COVERAGE_PERCENT_SHORT_READS);
 
-        ReadMagnitudeParser.setEnabled(options.getOption("mag", "magnitudes", "Reads have magnitudes (to be used in taxonomic or functional analysis)", false));
+        maltOptions.setStreamingLCA(options.getOption("slca", "streamingLCA", "Compute naive LCA and functional assignments during alignment, rather than in a second pass over the RMA6 file", false));
+
+        final boolean readMagnitudes = options.getOption("mag", "magnitudes", "Reads have magnitudes (to be used in taxonomic or functional analysis)", false);
+        ReadMagnitudeParser.setEnabled(readMagnitudes);
 
         maltOptions.setContaminantsFile(options.getOption("-cf", "conFile", "File of contaminant taxa (one Id or name per line)", ""));
 
@@ -205,11 +220,18 @@ public class MaltRun {
         maltOptions.setMaxSeedsPerOffsetPerFrame(options.getOption("spf", "maxSeedsPerFrame", "Maximum number of seed matches per offset per read frame", maltOptions.getMaxSeedsPerOffsetPerFrame()));
         maltOptions.setMaxSeedsPerReference(options.getOption("spr", "maxSeedsPerRef", "Maximum number of seed matches per read and reference", maltOptions.getMaxSeedsPerReference()));
         maltOptions.setShift(options.getOption("sh", "seedShift", "Seed shift", maltOptions.getShift()));
+        maltOptions.setLongReads(options.getOption("lr", "longReads", "Long-read mode: chain collinear seed matches per reference and align along the chains", maltOptions.isLongReads()));
+        alignerOptions.setUseUngappedFilter(options.getOption("uf", "ungappedFilter", "Use ungapped x-drop extension to discard seed matches before banded alignment (faster, but may lose gapped alignments)", alignerOptions.isUseUngappedFilter()));
+        if (alignerOptions.isUseUngappedFilter() || options.isDoHelp()) {
+            alignerOptions.setUngappedXDrop(options.getOption("uxd", "ungappedXDrop", "X-drop for ungapped extension of seed matches", alignerOptions.getUngappedXDrop(maltOptions.getMode())));
+            alignerOptions.setUngappedMinRawScore(options.getOption("umr", "ungappedMinRawScore", "Minimum raw score of ungapped extension for seed match to be aligned", alignerOptions.getUngappedMinRawScore(maltOptions.getMode())));
+        }
 
         options.comment("Banded alignment parameters:");
         alignerOptions.setGapOpenPenalty(options.getOption("go", "gapOpen", "Gap open penalty", referenceSequenceType == SequenceType.DNA ? 7 : 11));
         alignerOptions.setGapExtensionPenalty(options.getOption("ge", "gapExtend", "Gap extension penalty", referenceSequenceType == SequenceType.DNA ? 3 : 1));
         alignerOptions.setBand(options.getOption("bd", "band", "Band width/2 for banded alignment", alignerOptions.getBand()));
+        alignerOptions.setAlignerType(AlignerOptions.AlignerType.valueOf(options.getOption("al", "aligner", "Aligner implementation (simd uses the Java Vector API and requires the JVM option --add-modules jdk.incubator.vector, local alignment only)", AlignerOptions.AlignerType.values(), alignerOptions.getAlignerType().toString())));
 
         options.comment(ArgsOptions.OTHER);
         int replicateQueryCacheBits = options.getOption("rqcb", "replicateQueryCacheBits", "Bits used for caching replicate queries (size is then 2^bits)", 20);
@@ -226,6 +248,15 @@ public class MaltRun {
         if (replicateQueryCacheBits < 10 || replicateQueryCacheBits > 31)
             throw new IOException("replicateQueryCacheBits: supported range is 10-31");
 
+        if (alignerOptions.getAlignerType() == AlignerOptions.AlignerType.simd) {
+            if (alignerOptions.getAlignmentType() != AlignerOptions.AlignmentMode.Local)
+                System.err.println("Warning: --aligner simd only supports local alignment, using scalar aligner");
+            else if (!IExtensionScorer.isVectorAPIAvailable())
+                System.err.println("Warning: --aligner simd requires the JVM option --add-modules " + IExtensionScorer.VECTOR_MODULE + ", using scalar aligner");
+            else if (!IExtensionScorer.isVectorizedScorerSupported(alignerOptions.getBand()))
+                System.err.println("Warning: --aligner simd: band too wide for vector length of this machine, using scalar aligner");
+        }
+
         // make sure that the index contains the correct type of sequences:
         {
             SequenceType indexSequencesType = ReferencesHashTableAccess.getIndexSequenceType(indexDirectory);
@@ -251,9 +282,22 @@ public class MaltRun {
             throw new UsageException("Undefined reference sequence type: " + referenceSequenceType);
 
         // check consistency of all options:
-        if (inputFileNames.isEmpty())
-            throw new UsageException("You must specify at least one input file");
-        Utilities.checkFileExists(new File(inputFileNames.iterator().next()));
+        if (runAsServer) {
+            if (!inputFileNames.isEmpty() || !outputRMAFileNames.isEmpty() || !outputMatchesFileNames.isEmpty() || !outputAlignedFileNames.isEmpty() || !outputUnAlignedFileNames.isEmpty())
+                throw new UsageException("--server: input and output files must be specified using MaltClient");
+            if (!mateFileNames.isEmpty())
+                throw new UsageException("--server: --inMates not supported, use --interleaved");
+        } else {
+            if (inputFileNames.isEmpty())
+                throw new UsageException("You must specify at least one input file");
+            Utilities.checkFileExists(new File(inputFileNames.iterator().next()));
+        }
+        if (!mateFileNames.isEmpty()) {
+            if (maltOptions.isInterleavedReads())
+                throw new UsageException("Illegal to specify both --inMates and --interleaved");
+            if (mateFileNames.size() != inputFileNames.size())
+                throw new UsageException("Number of mate files=" + mateFileNames.size() + " must equal number of input files (" + inputFileNames.size() + ")");
+        }
 
         for (var aName : outputRMAFileNames) {
             if (outputAlignedFileNames.contains(aName))
@@ -267,6 +311,10 @@ public class MaltRun {
         if (!maltOptions.isDoForward() && !maltOptions.isDoReverse())
             throw new UsageException("Illegal to specify both --forwardOnly and --reverseOnly");
 
+        if (maltOptions.isStreamingLCA() && (maltOptions.isUseWeightedLCA() || maltOptions.getLcaCoveragePercent() < 100 || maltOptions.isUsePercentIdentityFilterLCA()
+                                             || maltOptions.isPairedReads() || readMagnitudes || StringUtils.notBlank(maltOptions.getContaminantsFile())))
+            throw new UsageException("--streamingLCA: not supported with --weightedLCA, --lcaCoveragePercent below 100, --useMinPercentIdentityFilterLCA, paired reads, --magnitudes or --conFile");
+
         Utilities.checkFileExists(new File(indexDirectory));
 
         try {
@@ -319,7 +367,7 @@ public class MaltRun {
         // table.show();
 
         // load mapping files, if we are going to generate RMA
-        if (outputRMAFileNames.size() > 0) {
+        if (outputRMAFileNames.size() > 0 || runAsServer) {
             MappingManager.loadMappings(cNames, indexDirectory);
         }
 
@@ -330,12 +378,16 @@ public class MaltRun {
         } else
             geneTableAccess = null;
 
-        // run alignment for each input file:
-        System.err.println("--- ALIGNING ---:");
         if (maltOptions.isUseReplicateQueryCaching())
             AlignmentEngine.activateReplicateQueryCaching(replicateQueryCacheBits);
 
-        {
+        BGZFOutputStream.setNumberOfSharedThreads(maltOptions.getNumberOfCompressionThreads());
+
+        if (runAsServer) {
+            new MaltServer(maltOptions, alignerOptions, referencesDB, hashTables, geneTableAccess, maxServerJobs).run(Path.of(serverSocket));
+        } else {
+            // run alignment for each input file:
+            System.err.println("--- ALIGNING ---:");
             int fileNumber = 0;
             for (var inFile : inputFileNames) {
                 try {
@@ -344,7 +396,8 @@ public class MaltRun {
 						var matchesOutputFile = getOutputFileName(fileNumber, inputFileNames, outputMatchesFileNames, maltOptions.getMatchesOutputSuffix(), maltOptions.isGzipMatches());
 						var alignedReadsOutputFile = getOutputFileName(fileNumber, inputFileNames, outputAlignedFileNames, "-aligned.fna", maltOptions.isGzipAlignedReads());
 						var unalignedReadsOutputFile = getOutputFileName(fileNumber, inputFileNames, outputUnAlignedFileNames, "-unaligned.fna", maltOptions.isGzipUnalignedReads());
-						launchAlignmentThreads(alignerOptions, maltOptions, inFile, rmaOutputFile, matchesOutputFile,
+						var mateFile = (mateFileNames.isEmpty() ? null : mateFileNames.get(fileNumber));
+						launchAlignmentThreads(alignerOptions, maltOptions, inFile, mateFile, rmaOutputFile, matchesOutputFile,
 								alignedReadsOutputFile, unalignedReadsOutputFile, referencesDB, hashTables, geneTableAccess);
 					} else {
 						System.err.println("File not found: '" + inFile + "', skipped");
@@ -377,41 +430,14 @@ public class MaltRun {
     /**
      * run search on file of input sequences
      */
-    private void launchAlignmentThreads(final AlignerOptions alignerOptions, final MaltOptions maltOptions, final String infile, final String rmaOutputFile,
+    private void launchAlignmentThreads(final AlignerOptions alignerOptions, final MaltOptions maltOptions, final String infile, final String mateFile, final String rmaOutputFile,
                                         final String matchesOutputFile,
                                         final String alignedReadsOutputFile, final String unalignedReadsOutputFile,
                                         final ReferencesDBAccess referencesDB, final ReferencesHashTableAccess[] tables,
                                         final GeneItemAccessor geneTableAccess) throws IOException {
 
-        final FastAReader fastAReader = new FastAReader(infile, maltOptions.getQueryAlphabet(), new ProgressPercentage("+++++ Aligning file: " + infile));
-
-        final String matchesOutputFileUsed;
-        final boolean usingTemporarySAMOutputFile;
-        if (matchesOutputFile != null && maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM && !maltOptions.isSparseSAM()) {
-			matchesOutputFileUsed = FileUtils.getTemporaryFileName(matchesOutputFile);
-			usingTemporarySAMOutputFile = true;
-        } else {
-            matchesOutputFileUsed = matchesOutputFile;
-            usingTemporarySAMOutputFile = false;
-        }
-
-        var matchesWriter = (matchesOutputFileUsed != null ? new FileWriterRanked(matchesOutputFileUsed, maltOptions.getNumberOfThreads(), 1) : null);
-        var rmaWriter = (rmaOutputFile != null ? new RMA6Writer(maltOptions, rmaOutputFile) : null);
-        var alignedReadsWriter = (alignedReadsOutputFile != null ? new FileWriterRanked(alignedReadsOutputFile, maltOptions.getNumberOfThreads(), 1) : null);
-        var unalignedReadsWriter = (unalignedReadsOutputFile != null ? new FileWriterRanked(unalignedReadsOutputFile, maltOptions.getNumberOfThreads(), 1) : null);
-
-        if (matchesWriter == null && rmaWriter == null && alignedReadsWriter == null && unalignedReadsWriter == null)
-            System.err.println("Warning: no output specified");
-
-        if (matchesWriter != null) {
-            if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.Text)
-                matchesWriter.writeFirst(BlastTextHelper.getBlastTextHeader(maltOptions.getMode()));
-            else if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.SAM && !usingTemporarySAMOutputFile) {
-                matchesWriter.writeFirst(SAMHelper.getSAMHeader(maltOptions.getMode(), maltOptions.getCommandLine()));
-            }
-        }
-
-        var alignmentEngines = new AlignmentEngine[maltOptions.getNumberOfThreads()];
+        final AlignmentJob job = new AlignmentJob(alignerOptions, maltOptions, infile, mateFile, rmaOutputFile, matchesOutputFile,
+                alignedReadsOutputFile, unalignedReadsOutputFile, referencesDB, tables, geneTableAccess);
 
         var executor = Executors.newFixedThreadPool(maltOptions.getNumberOfThreads());
         var countDownLatch = new CountDownLatch(maltOptions.getNumberOfThreads());
@@ -422,10 +448,9 @@ public class MaltRun {
                 final int threadNumber = thread;
                 executor.execute(() -> {
                     try {
-                        alignmentEngines[threadNumber] = new AlignmentEngine(threadNumber, maltOptions, alignerOptions, referencesDB, tables, fastAReader,
-                                matchesWriter, rmaWriter, alignedReadsWriter, unalignedReadsWriter, geneTableAccess);
-                        alignmentEngines[threadNumber].runOuterLoop();
-                        alignmentEngines[threadNumber].finish();
+                        final AlignmentEngine alignmentEngine = job.getAlignmentEngine(threadNumber);
+                        alignmentEngine.runOuterLoop();
+                        alignmentEngine.finish();
                     } catch (Exception ex) {
                         Basic.caught(ex);
                         System.exit(1);  // just die...
@@ -439,94 +464,23 @@ public class MaltRun {
                 countDownLatch.await();  // await completion of alignment threads
             } catch (InterruptedException e) {
                 Basic.caught(e);
-            } finally {
-                fastAReader.close();
             }
         } finally {
             // shut down threads:
             executor.shutdownNow();
         }
 
-        if (matchesWriter != null) {
-            if (maltOptions.getMatchOutputFormat() == MaltOptions.MatchOutputFormat.Text)
-                matchesWriter.writeLast(BlastTextHelper.FILE_FOOTER_BLAST);
-            matchesWriter.close();
-            System.err.println("Alignments written to file: " + matchesOutputFileUsed);
-        }
-        if (rmaWriter != null) {
-            rmaWriter.close(maltOptions.getContaminantsFile());
-            System.err.println("Analysis written to file: " + rmaOutputFile);
-        }
-
-        // if using temporary file, prepend @SQ lines, if requested, and sort by query name, if requested
-        if (usingTemporarySAMOutputFile) {
-			var w = new BufferedWriter(new OutputStreamWriter(FileUtils.getOutputStreamPossiblyZIPorGZIP(matchesOutputFile)));
-            w.write(SAMHelper.getSAMHeader(maltOptions.getMode(), maltOptions.getCommandLine()));
-
-            // prepend SQ lines
-            {
-                var allIds = new BitSet();
-                for (var engine : alignmentEngines) {
-                    allIds.or(engine.getAlignedReferenceIds());
-                }
-
-                if (allIds.cardinality() > 0) {
-                    var progress = new ProgressPercentage("Prepending @SQ lines to SAM file: " + matchesOutputFile, allIds.size());
-                    for (var r = allIds.nextSetBit(0); r != -1; r = allIds.nextSetBit(r + 1)) {
-						w.write("@SQ\tSN:" + (StringUtils.toString(Utilities.getFirstWordSkipLeadingGreaterSign(referencesDB.getHeader(r)))) + "\tLN:" + referencesDB.getSequenceLength(r));
-						w.write('\n');
-                        progress.incrementProgress();
-                    }
-                    progress.close();
-                }
-            }
-
-            // copy matches
-            {
-                var it = new FileLineIterator(matchesOutputFileUsed);
-                var progress = new ProgressPercentage("Copying from temporary file:", it.getMaximumProgress());
-
-                while (it.hasNext()) {
-                    w.write(it.next());
-                    w.write("\tRG:Z:1\n");
-                    progress.incrementProgress();
-                }
-                it.close();
-                progress.close();
-            }
-
-            w.close();
-            if (new File(matchesOutputFileUsed).delete())
-                System.err.println("Deleted temporary file: " + matchesOutputFileUsed);
-        }
-
-        if (alignedReadsWriter != null) {
-            // merge all thread-specific taxon profiles. This can be quite major computation...
-            alignedReadsWriter.close();
-            System.err.println("Aligned reads written to file: " + alignedReadsOutputFile);
-        }
-        if (unalignedReadsWriter != null) {
-            // merge all thread-specific taxon profiles. This can be quite major computation...
-            unalignedReadsWriter.close();
-            System.err.println("Unaligned reads written to file: " + unalignedReadsOutputFile);
-        }
-
-        var countReads = AlignmentEngine.getTotalSequencesProcessed(alignmentEngines);
-        totalReads += countReads;
-        var countAlignedReads = AlignmentEngine.getTotalSequencesWithAlignments(alignmentEngines);
-        totalAlignedReads += countAlignedReads;
-        var countAlignments = AlignmentEngine.getTotalAlignments(alignmentEngines);
-        totalAlignments += countAlignments;
+        job.finish();
 
-        System.err.printf("Num. of queries: %10d%n", countReads);
-        System.err.printf("Aligned queries: %10d%n", countAlignedReads);
-        System.err.printf("Num. alignments: %10d%n", countAlignments);
+        totalReads += job.getCountReads();
+        totalAlignedReads += job.getCountAlignedReads();
+        totalAlignments += job.getCountAlignments();
     }
 
     /**
      * creates the output file name
      */
-    private String getOutputFileName(final int fileNumber, final List<String> inFiles, final List<String> outFiles, final String suffix, final boolean gzip) throws IOException {
+    static String getOutputFileName(final int fileNumber, final List<String> inFiles, final List<String> outFiles, final String suffix, final boolean gzip) throws IOException {
         final String fileName;
         if (outFiles.size() == 0)
             fileName = null;
@@ -0,0 +1,469 @@
+/*
+ * MaltServer.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt;
+
+import jloda.util.Basic;
+import malt.align.AlignerOptions;
+import malt.data.ReferencesDBAccess;
+import malt.data.ReferencesHashTableAccess;
+import megan.genes.GeneItemAccessor;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * MALT server: keeps the index loaded and aligns the input files of jobs submitted by MaltClient via a unix-domain socket.
+ * The socket is placed in a directory that only the user running the server can access, so other users can't submit jobs
+ * that read and write files with the server's permissions.
+ * All jobs share one pool of worker threads. Each worker repeatedly takes the next engine of a job from a round-robin queue and
+ * runs it on one batch of reads, so concurrent jobs progress at the same rate. At most a fixed number of jobs (input files)
+ * are aligned at the same time, further jobs wait in first-come first-served order. Compression threads are shared by all jobs,
+ * see BGZFOutputStream
+ * Daniel Huson, 10.2026
+ */
+public class MaltServer {
+    /**
+     * a client must send its complete request within this time
+     */
+    private static final int REQUEST_TIMEOUT_SECONDS = 60;
+
+    // protocol, one item per line:
+    static final String JOB = "MALT-JOB";
+    static final String SHUTDOWN = "MALT-SHUTDOWN";
+    static final String INPUT = "input";
+    static final String OUTPUT = "output";
+    static final String ALIGNMENTS = "alignments";
+    static final String ALIGNED = "aligned";
+    static final String UNALIGNED = "unaligned";
+    static final String END = "END";
+    static final String QUEUED = "QUEUED";
+    static final String DONE = "DONE";
+    static final String FAILED = "FAILED";
+    static final String FINISHED = "FINISHED";
+
+    private final MaltOptions maltOptions;
+    private final AlignerOptions alignerOptions;
+    private final ReferencesDBAccess referencesDB;
+    private final ReferencesHashTableAccess[] tables;
+    private final GeneItemAccessor geneTableAccess;
+
+    private final BlockingQueue<EngineSlot> runQueue = new LinkedBlockingQueue<>();
+    private final Semaphore activeJobs; // bounds the number of jobs that are aligned at the same time
+
+    private final Set<SocketChannel> readingRequests = new HashSet<>(); // connections that are still sending their request
+    private boolean shuttingDown = false;
+    private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+        final var thread = new Thread(r, "MaltServer-timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private long totalReads = 0;
+    private long totalAlignedReads = 0;
+    private long totalAlignments = 0;
+
+    /**
+     * constructor
+     *
+     * @param maxJobs maximum number of jobs that are aligned at the same time
+     */
+    public MaltServer(MaltOptions maltOptions, AlignerOptions alignerOptions, ReferencesDBAccess referencesDB, ReferencesHashTableAccess[] tables, GeneItemAccessor geneTableAccess, int maxJobs) {
+        this.maltOptions = maltOptions;
+        this.alignerOptions = alignerOptions;
+        this.referencesDB = referencesDB;
+        this.tables = tables;
+        this.geneTableAccess = geneTableAccess;
+        this.activeJobs = new Semaphore(Math.max(1, maxJobs), true);
+    }
+
+    /**
+     * runs the server until a client requests shutdown. Jobs that have already been submitted are completed before returning,
+     * connections that are still sending their request are closed
+     *
+     * @param socketFile unix-domain socket on which to listen, its directory is created with owner-only permissions
+     */
+    public void run(Path socketFile) throws IOException {
+        prepareSocketDirectory(socketFile);
+        final var workers = Executors.newFixedThreadPool(maltOptions.getNumberOfThreads());
+        final var connections = Executors.newCachedThreadPool();
+        try (var serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            serverChannel.bind(UnixDomainSocketAddress.of(socketFile));
+            for (var t = 0; t < maltOptions.getNumberOfThreads(); t++) {
+                workers.execute(this::runWorker);
+            }
+            System.err.println("--- SERVING ---:");
+            System.err.println("Listening for MaltClient jobs on socket: " + socketFile);
+
+            while (serverChannel.isOpen()) {
+                try {
+                    final var channel = serverChannel.accept();
+                    connections.execute(() -> handleConnection(channel, serverChannel));
+                } catch (ClosedChannelException ex) {
+                    if (serverChannel.isOpen())
+                        throw ex;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socketFile);
+            closeReadingRequests();
+            connections.shutdown();
+            try {
+                while (!connections.awaitTermination(1, TimeUnit.MINUTES)) {
+                    System.err.println("Waiting for submitted jobs to complete");
+                }
+            } catch (InterruptedException e) {
+                Basic.caught(e);
+            }
+            workers.shutdownNow();
+            timeouts.shutdownNow();
+        }
+        System.err.printf("Total num. of queries: %10d%n", totalReads);
+        System.err.printf("Total aligned queries: %10d%n", totalAlignedReads);
+        System.err.printf("Total num. alignments: %10d%n", totalAlignments);
+    }
+
+    /**
+     * gets the default socket file, in a directory of the user in the temporary directory
+     */
+    public static Path getDefaultSocketFile() {
+        return Path.of(System.getProperty("java.io.tmpdir"), "malt-" + System.getProperty("user.name"), "malt.sock");
+    }
+
+    /**
+     * creates the directory of the socket file with owner-only permissions, or checks that an existing one is owned by the user and
+     * has owner-only permissions. Removes a socket file left behind by a server that is no longer running
+     */
+    private static void prepareSocketDirectory(Path socketFile) throws IOException {
+        final var directory = socketFile.toAbsolutePath().getParent();
+        final var posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (!Files.isDirectory(directory)) {
+            if (posix)
+                Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            else
+                Files.createDirectories(directory);
+        }
+        if (posix) {
+            if (!Files.getOwner(directory).getName().equals(System.getProperty("user.name")))
+                throw new IOException("Socket directory not owned by user: " + directory);
+            final var permissions = Files.getPosixFilePermissions(directory);
+            if (!EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE).containsAll(permissions))
+                throw new IOException("Socket directory must only be accessible by its owner (chmod 700): " + directory);
+        }
+        if (Files.exists(socketFile)) {
+            if (isListening(socketFile))
+                throw new IOException("Server already running on socket: " + socketFile);
+            Files.delete(socketFile); // left behind by a server that is no longer running
+        }
+    }
+
+    /**
+     * is a server listening on the given socket file?
+     */
+    private static boolean isListening(Path socketFile) {
+        try (var ignored = SocketChannel.open(UnixDomainSocketAddress.of(socketFile))) {
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * a worker thread: takes the next engine slot from the queue and aligns one batch of reads using it. If the input of the job
+     * is not yet exhausted, puts the slot back at the end of the queue. Anything thrown while aligning a batch fails the job,
+     * not the worker, and the engine always counts down, so that the job's connection doesn't wait forever
+     */
+    private void runWorker() {
+        try {
+            while (true) {
+                final var slot = runQueue.take();
+                var more = false;
+                try {
+                    if (slot.job.failure.get() == null) {
+                        final var alignmentEngine = slot.job.alignmentJob.getAlignmentEngine(slot.threadNumber);
+                        more = alignmentEngine.runOuterLoopOnNextBatch();
+                        if (!more)
+                            alignmentEngine.finish();
+                    }
+                } catch (Throwable ex) {
+                    more = false;
+                    if (slot.job.failure.compareAndSet(null, ex)) {
+                        try {
+                            slot.job.alignmentJob.abortOutput();
+                        } catch (Throwable ex2) {
+                            ex.addSuppressed(ex2);
+                        }
+                    }
+                } finally {
+                    if (more)
+                        runQueue.add(slot);
+                    else
+                        slot.job.countDownLatch.countDown();
+                }
+            }
+        } catch (InterruptedException ignored) {
+            // server is shutting down
+        }
+    }
+
+    /**
+     * handles one client connection: reads a job, aligns all its input files and reports the outcome for each file.
+     * The connection is closed, if the request isn't complete within the request timeout, as unix-domain channels don't support socket timeouts
+     */
+    private void handleConnection(SocketChannel channel, ServerSocketChannel serverChannel) {
+        synchronized (readingRequests) {
+            if (shuttingDown) {
+                closeQuietly(channel);
+                return;
+            }
+            readingRequests.add(channel);
+        }
+        final var timeout = timeouts.schedule(() -> closeQuietly(channel), REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        try (channel; var r = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+             var w = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), true)) {
+            final var command = r.readLine();
+            if (command == null) // connection closed without request
+                return;
+            else if (SHUTDOWN.equals(command)) {
+                timeout.cancel(false);
+                System.err.println("Shutdown requested");
+                w.println(FINISHED + " 0");
+                serverChannel.close();
+                return;
+            } else if (!JOB.equals(command)) {
+                w.println(FAILED + " unknown command: " + command);
+                w.println(FINISHED + " 1");
+                return;
+            }
+
+            final var inFiles = new ArrayList<String>();
+            final var rmaFiles = new ArrayList<String>();
+            final var matchesFiles = new ArrayList<String>();
+            final var alignedFiles = new ArrayList<String>();
+            final var unalignedFiles = new ArrayList<String>();
+            String aLine;
+            while ((aLine = r.readLine()) != null && !aLine.equals(END)) {
+                final var pos = aLine.indexOf('\t');
+                final var key = (pos == -1 ? aLine : aLine.substring(0, pos));
+                final var value = (pos == -1 ? "" : aLine.substring(pos + 1));
+                switch (key) {
+                    case INPUT -> inFiles.add(value);
+                    case OUTPUT -> rmaFiles.add(value);
+                    case ALIGNMENTS -> matchesFiles.add(value);
+                    case ALIGNED -> alignedFiles.add(value);
+                    case UNALIGNED -> unalignedFiles.add(value);
+                    default -> {
+                        w.println(FAILED + "\tunknown job item: " + key);
+                        w.println(FINISHED + " 1");
+                        return;
+                    }
+                }
+            }
+            if (!timeout.cancel(false) || aLine == null)
+                throw new IOException("incomplete request");
+            synchronized (readingRequests) {
+                readingRequests.remove(channel);
+                if (shuttingDown) {
+                    w.println(FAILED + "\tserver is shutting down");
+                    w.println(FINISHED + " " + inFiles.size());
+                    return;
+                }
+            }
+
+            var countFailed = 0;
+            for (var fileNumber = 0; fileNumber < inFiles.size(); fileNumber++) {
+                final var inFile = inFiles.get(fileNumber);
+                try {
+                    if (rmaFiles.contains("stdout") || matchesFiles.contains("stdout") || alignedFiles.contains("stdout") || unalignedFiles.contains("stdout"))
+                        throw new IOException("stdout: not supported by server");
+                    if (!new File(inFile).isFile())
+                        throw new IOException("File not found: " + inFile);
+                    final var rmaOutputFile = MaltRun.getOutputFileName(fileNumber, inFiles, rmaFiles, ".rma6", false);
+                    final var matchesOutputFile = MaltRun.getOutputFileName(fileNumber, inFiles, matchesFiles, maltOptions.getMatchesOutputSuffix(), maltOptions.isGzipMatches());
+                    final var alignedReadsOutputFile = MaltRun.getOutputFileName(fileNumber, inFiles, alignedFiles, "-aligned.fna", maltOptions.isGzipAlignedReads());
+                    final var unalignedReadsOutputFile = MaltRun.getOutputFileName(fileNumber, inFiles, unalignedFiles, "-unaligned.fna", maltOptions.isGzipUnalignedReads());
+                    if (rmaOutputFile == null && matchesOutputFile == null && alignedReadsOutputFile == null && unalignedReadsOutputFile == null)
+                        throw new IOException("No output specified");
+
+                    if (!activeJobs.tryAcquire(0, TimeUnit.SECONDS)) { // unlike tryAcquire(), this doesn't overtake waiting jobs
+                        w.println(QUEUED + "\t" + inFile);
+                        activeJobs.acquire();
+                    }
+                    try {
+                        System.err.println("Job: " + inFile);
+                        align(new AlignmentJob(alignerOptions, maltOptions, inFile, null, rmaOutputFile, matchesOutputFile, alignedReadsOutputFile, unalignedReadsOutputFile,
+                                referencesDB, tables, geneTableAccess));
+                    } finally {
+                        activeJobs.release();
+                    }
+                    w.println(DONE + "\t" + inFile);
+                } catch (Exception ex) {
+                    System.err.println("Job failed: " + inFile + ": " + ex);
+                    w.println(FAILED + "\t" + inFile + ": " + ex.getMessage());
+                    countFailed++;
+                }
+            }
+            w.println(FINISHED + " " + countFailed);
+        } catch (IOException ex) {
+            System.err.println("Connection failed: " + ex);
+        } finally {
+            timeout.cancel(false);
+            synchronized (readingRequests) {
+                readingRequests.remove(channel);
+            }
+        }
+    }
+
+    /**
+     * closes all connections that are still sending their request, and refuses all further requests
+     */
+    private void closeReadingRequests() {
+        synchronized (readingRequests) {
+            shuttingDown = true;
+            for (var channel : readingRequests) {
+                closeQuietly(channel);
+            }
+            readingRequests.clear();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * aligns all reads of the given job using the shared worker threads, waits for completion and then finishes all output files
+     */
+    private void align(AlignmentJob alignmentJob) throws Exception {
+        final var job = new ScheduledJob(alignmentJob, maltOptions.getNumberOfThreads());
+        for (var t = 0; t < maltOptions.getNumberOfThreads(); t++) {
+            runQueue.put(new EngineSlot(job, t));
+        }
+        job.countDownLatch.await();
+
+        final var failure = job.failure.get();
+        if (failure != null) {
+            alignmentJob.abort();
+            throw (failure instanceof Exception exception ? exception : new ExecutionException(failure));
+        }
+        alignmentJob.finish();
+        synchronized (this) {
+            totalReads += alignmentJob.getCountReads();
+            totalAlignedReads += alignmentJob.getCountAlignedReads();
+            totalAlignments += alignmentJob.getCountAlignments();
+        }
+    }
+
+    /**
+     * submits a job to a running server and waits for it to complete
+     *
+     * @return number of input files that failed
+     */
+    static int submit(Path socketFile, List<String> inFiles, List<String> rmaFiles, List<String> matchesFiles, List<String> alignedFiles, List<String> unalignedFiles) throws IOException {
+        final var lines = new ArrayList<String>();
+        lines.add(JOB);
+        addFileNames(lines, INPUT, inFiles);
+        addFileNames(lines, OUTPUT, rmaFiles);
+        addFileNames(lines, ALIGNMENTS, matchesFiles);
+        addFileNames(lines, ALIGNED, alignedFiles);
+        addFileNames(lines, UNALIGNED, unalignedFiles);
+        lines.add(END);
+        return sendAndWait(socketFile, lines);
+    }
+
+    /**
+     * asks a running server to shut down, once all submitted jobs are complete
+     */
+    static void requestShutdown(Path socketFile) throws IOException {
+        sendAndWait(socketFile, List.of(SHUTDOWN));
+    }
+
+    /**
+     * sends the given lines to the server and reports all replies until the server has finished
+     *
+     * @return number of failures reported by the server
+     */
+    private static int sendAndWait(Path socketFile, List<String> lines) throws IOException {
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(socketFile));
+             var r = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+             var w = new PrintWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), true)) {
+            for (var line : lines) {
+                w.println(line);
+            }
+            String aLine;
+            while ((aLine = r.readLine()) != null) {
+                if (aLine.startsWith(FINISHED))
+                    return Integer.parseInt(aLine.substring(FINISHED.length()).trim());
+                System.err.println(aLine.replace('\t', ' '));
+            }
+            throw new IOException("Connection to server lost");
+        }
+    }
+
+    /**
+     * adds file names, as absolute paths, as the server may be running in a different directory
+     */
+    private static void addFileNames(List<String> lines, String key, List<String> fileNames) {
+        for (var fileName : fileNames) {
+            lines.add(key + "\t" + (fileName.equalsIgnoreCase("stdout") ? fileName : new File(fileName).getAbsolutePath()));
+        }
+    }
+
+    /**
+     * a job that is being aligned by the worker threads
+     */
+    private static class ScheduledJob {
+        private final AlignmentJob alignmentJob;
+        private final CountDownLatch countDownLatch; // counts down as the engines finish
+        private final AtomicReference<Throwable> failure = new AtomicReference<>(); // first failure of any engine
+
+        ScheduledJob(AlignmentJob alignmentJob, int numberOfEngines) {
+            this.alignmentJob = alignmentJob;
+            this.countDownLatch = new CountDownLatch(numberOfEngines);
+        }
+    }
+
+    /**
+     * an alignment engine of a job, identified by its thread number
+     */
+    private static class EngineSlot {
+        private final ScheduledJob job;
+        private final int threadNumber;
+
+        EngineSlot(ScheduledJob job, int threadNumber) {
+            this.job = job;
+            this.threadNumber = threadNumber;
+        }
+    }
+}
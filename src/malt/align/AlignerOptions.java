@@ -30,9 +30,14 @@ public class AlignerOptions {
 
     private AlignmentMode alignmentType = AlignmentMode.Local;
 
+    public enum AlignerType {scalar, simd}
+
+    private AlignerType alignerType = AlignerType.scalar;
+
     private int minSeedIdentities = 0;
     private int ungappedXDrop = 0;
     private int ungappedMinRawScore = 0;
+    private boolean useUngappedFilter = false; // heuristic, off by default, as it can discard seeds of valid gapped alignments
 
     private int gapOpenPenalty = 7;
     private int gapExtensionPenalty = 3;
@@ -65,6 +70,14 @@ public class AlignerOptions {
         setAlignmentType(AlignmentMode.valueOf(alignmentType));
     }
 
+    public AlignerType getAlignerType() {
+        return alignerType;
+    }
+
+    public void setAlignerType(AlignerType alignerType) {
+        this.alignerType = alignerType;
+    }
+
     public int getGapOpenPenalty() {
         return gapOpenPenalty;
     }
@@ -206,6 +219,14 @@ public class AlignerOptions {
         this.ungappedMinRawScore = ungappedMinRawScore;
     }
 
+    public boolean isUseUngappedFilter() {
+        return useUngappedFilter;
+    }
+
+    public void setUseUngappedFilter(boolean useUngappedFilter) {
+        this.useUngappedFilter = useUngappedFilter;
+    }
+
     public boolean isSamSoftClipping() {
         return samSoftClipping;
     }
@@ -0,0 +1,159 @@
+/*
+ * AnchorChainer.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.align;
+
+import malt.data.SeedMatch;
+
+import java.util.Arrays;
+
+/**
+ * chains collinear seed matches (anchors) between a query and one reference, used for long reads.
+ * Each anchor is scored by the best chain ending in it, looking back at a limited number of predecessors,
+ * and chains are then extracted greedily in order of decreasing score, so that each anchor is used at most once
+ * Daniel Huson, 10.2026
+ */
+public class AnchorChainer {
+    public static final int MAX_ANCHOR_DISTANCE = 500; // max distance between consecutive anchors in query or reference
+    private static final int MAX_PREDECESSORS = 50; // number of previous anchors considered as predecessors
+
+    private int[] score = new int[0];
+    private int[] predecessor = new int[0];
+    private boolean[] used = new boolean[0];
+    private long[] order = new long[0];
+
+    private int[] chainAnchors = new int[0]; // anchor indices of all chains, one chain after the other
+    private int[] chainStart = new int[1]; // start of each chain in chainAnchors
+    private int numberOfChains;
+
+    /**
+     * compute the chains for the given anchors, which must be sorted by query offset (see SeedMatch.getComparator())
+     *
+     * @param minChainScore chains with smaller score are ignored
+     * @param maxChains     maximum number of chains to report
+     * @return number of chains
+     */
+    public int computeChains(SeedMatch[] anchors, int numberOfAnchors, int minChainScore, int maxChains) {
+        if (score.length < numberOfAnchors) {
+            final int size = Math.max(numberOfAnchors, 2 * score.length);
+            score = new int[size];
+            predecessor = new int[size];
+            used = new boolean[size];
+            order = new long[size];
+            chainAnchors = new int[size];
+        }
+
+        // score best chain ending in each anchor:
+        for (int i = 0; i < numberOfAnchors; i++) {
+            final SeedMatch a = anchors[i];
+            score[i] = a.getSeedLength();
+            predecessor[i] = -1;
+            for (int j = i - 1; j >= 0 && j >= i - MAX_PREDECESSORS; j--) {
+                final SeedMatch b = anchors[j];
+                final int dq = a.getQueryOffset() - b.getQueryOffset();
+                if (dq > MAX_ANCHOR_DISTANCE)
+                    break;
+                final int dr = a.getReferenceOffset() - b.getReferenceOffset();
+                if (dq <= 0 || dr <= 0 || dr > MAX_ANCHOR_DISTANCE || a.getRank() != b.getRank())
+                    continue;
+                final int gap = Math.abs(dr - dq);
+                final int value = score[j] + Math.min(Math.min(dq, dr), a.getSeedLength()) - getGapCost(gap, a.getSeedLength());
+                if (value > score[i]) {
+                    score[i] = value;
+                    predecessor[i] = j;
+                }
+            }
+            used[i] = false;
+            order[i] = ((long) score[i] << 32) | i;
+        }
+        Arrays.sort(order, 0, numberOfAnchors);
+
+        // extract chains, best first:
+        numberOfChains = 0;
+        int numberOfChainAnchors = 0;
+        for (int k = numberOfAnchors - 1; k >= 0 && numberOfChains < maxChains; k--) {
+            final int last = (int) order[k];
+            if (used[last])
+                continue;
+            int first = last;
+            while (predecessor[first] != -1 && !used[predecessor[first]])
+                first = predecessor[first];
+            final int chainScore = score[last] - (predecessor[first] == -1 ? 0 : score[predecessor[first]]);
+            if (chainScore < minChainScore) {
+                used[last] = true;
+                continue;
+            }
+            // add anchors of chain in reverse order and then flip them
+            final int start = numberOfChainAnchors;
+            for (int i = last; ; i = predecessor[i]) {
+                used[i] = true;
+                chainAnchors[numberOfChainAnchors++] = i;
+                if (i == first)
+                    break;
+            }
+            for (int i = start, j = numberOfChainAnchors - 1; i < j; i++, j--) {
+                final int tmp = chainAnchors[i];
+                chainAnchors[i] = chainAnchors[j];
+                chainAnchors[j] = tmp;
+            }
+            if (numberOfChains + 1 >= chainStart.length)
+                chainStart = Arrays.copyOf(chainStart, 2 * chainStart.length);
+            chainStart[numberOfChains++] = start;
+            chainStart[numberOfChains] = numberOfChainAnchors;
+        }
+        return numberOfChains;
+    }
+
+    /**
+     * penalty for a difference in diagonals between two consecutive anchors
+     *
+     * @return gap cost
+     */
+    private static int getGapCost(int gap, int seedLength) {
+        if (gap == 0)
+            return 0;
+        return (int) (0.01 * seedLength * gap + 0.5 * (31 - Integer.numberOfLeadingZeros(gap)));
+    }
+
+    /**
+     * anchor indices of all chains, use with getChainStart and getChainEnd
+     *
+     * @return anchor indices
+     */
+    public int[] getChainAnchors() {
+        return chainAnchors;
+    }
+
+    /**
+     * start of the given chain in chain anchors
+     */
+    public int getChainStart(int chain) {
+        return chainStart[chain];
+    }
+
+    /**
+     * end (exclusive) of the given chain in chain anchors
+     */
+    public int getChainEnd(int chain) {
+        return chainStart[chain + 1];
+    }
+
+    public int getNumberOfChains() {
+        return numberOfChains;
+    }
+}
@@ -23,9 +23,13 @@ import jloda.util.ReusableByteBuffer;
 import jloda.util.StringUtils;
 import malt.DataForInnerLoop;
 import malt.data.DNA5;
+import malt.data.SeedMatch;
+import malt.io.BAMHelper;
 import malt.io.SAMHelper;
 import malt.util.Utilities;
 
+import java.util.Arrays;
+
 /**
  * banded DNA aligner. Does both local and semiGlobal alignment
  * Daniel Huson, 8.2014
@@ -81,6 +85,17 @@ public class BandedAligner {
     private byte[][] traceBackIRef;
     private byte[][] traceBackIQuery;
 
+    private final IExtensionScorer vectorizedScorer; // if set, computes local alignment scores without filling the matrices
+    private boolean matricesFilled; // false, if the matrices must be filled before trace back
+
+    // two rolling columns used to compute local alignment scores without filling the matrices:
+    private int[] prevColumnM;
+    private int[] prevColumnIRef;
+    private int[] prevColumnIQuery;
+    private int[] columnM;
+    private int[] columnIRef;
+    private int[] columnIQuery;
+
     private static final byte DONE = 9;
     private static final byte M_FROM_M = 1;
     private static final byte M_FROM_IRef = 2;
@@ -90,6 +105,11 @@ public class BandedAligner {
     private static final byte IQuery_FROM_M = 6;
     private static final byte IQuery_FROM_IQuery = 7;
 
+    // column types used in edit transcripts:
+    private static final int EDIT_MATCH = 0;
+    private static final int EDIT_GAP_IN_REFERENCE = 1;
+    private static final int EDIT_GAP_IN_QUERY = 2;
+
     // buffers:
     private byte[] queryTrack = new byte[1000];
     private byte[] midTrack = new byte[1000];
@@ -102,6 +122,14 @@ public class BandedAligner {
 
     private final boolean samSoftClipping;
 
+    // used for ungapped extension of seeds and chained alignment of long reads:
+    private final int ungappedXDrop;
+    private int[] gapMatrixM = new int[0];
+    private int[] gapMatrixIRef = new int[0];
+    private int[] gapMatrixIQuery = new int[0];
+    private byte[] gapTraceBack = new byte[0]; // for each cell, the three states' predecessors, two bits each
+    private byte[] gapOps = new byte[0];
+
     // new stuff:
 
     private byte[][] alignment; // last computed alignment
@@ -134,6 +162,13 @@ public class BandedAligner {
         lastRowToFill = rows - 2;
         middleRow = rows / 2; // half
 
+        prevColumnM = new int[rows];
+        prevColumnIRef = new int[rows];
+        prevColumnIQuery = new int[rows];
+        columnM = new int[rows];
+        columnIRef = new int[rows];
+        columnIQuery = new int[rows];
+
         matrixM = new int[0][0]; // don't init here, need to initialize properly
         matrixIRef = new int[0][0];
         matrixIQuery = new int[0][0];
@@ -143,6 +178,19 @@ public class BandedAligner {
         // todo: only use one traceback matrix
 
         samSoftClipping = alignerOptions.isSamSoftClipping();
+        ungappedXDrop = alignerOptions.getUngappedXDrop(mode);
+
+        if (alignerOptions.getAlignerType() == AlignerOptions.AlignerType.simd && !doSemiGlobal)
+            vectorizedScorer = IExtensionScorer.createVectorizedScorer(scoringMatrix, gapOpenPenalty, gapExtensionPenalty, band);
+        else
+            vectorizedScorer = null;
+    }
+
+    /**
+     * is the vectorized scorer used for local alignments?
+     */
+    public boolean isUsingVectorizedScorer() {
+        return vectorizedScorer != null;
     }
 
     /**
@@ -175,8 +223,6 @@ public class BandedAligner {
 
         refOffset = refPos - queryPos - band - 2; // need this to compute index in reference sequence
 
-        final int cols = queryLength + 2; // query plus one col before and one after
-
         final int firstSeedCol = queryPos + 1; // +1 because col=pos+1
         final int lastSeedCol = queryPos + seedLength; // +1 because col=pos+1, but then -1 because want to be last in seed (not first after seed)
 
@@ -196,6 +242,108 @@ public class BandedAligner {
             }
         }
 
+        if (lastSeedCol <= firstSeedCol) { // both extensions use the same column, only the matrices handle this
+            rawScore += fillLocalMatrices();
+            return;
+        }
+
+        final int extensionScores = (vectorizedScorer != null ? vectorizedScorer.computeExtensionScores(query, queryLength, reference, referenceLength, queryPos, refPos, seedLength, refOffset) : -1);
+        if (extensionScores >= 0)
+            rawScore += extensionScores;
+        else
+            rawScore += computeLocalExtensionScores(firstSeedCol, lastSeedCol);
+        matricesFilled = false; // filled on demand by trace back
+    }
+
+    /**
+     * computes the same scores as fillLocalMatrices, keeping only two columns of each matrix. Cells that lie outside of
+     * the reference are set to 0, the matrices leave them untouched, but they are never used in either case
+     *
+     * @return best score ending at the first seed column plus best score starting at the last seed column
+     */
+    private int computeLocalExtensionScores(final int firstSeedCol, final int lastSeedCol) {
+        int score;
+
+        // ------- from first column to first column of seed:
+        {
+            Arrays.fill(prevColumnM, 0);
+            Arrays.fill(prevColumnIRef, 0);
+            Arrays.fill(prevColumnIQuery, 0);
+
+            final int firstCol = Math.max(1, -refOffset - 2 * band - 1); // the column for which refIndex(firstCol,bottom-to-last row)==0
+
+            for (int col = firstCol; col <= firstSeedCol; col++) {
+                final int[] scores = scoringMatrix[query[col - 1]];
+                for (int row = 1; row <= lastRowToFill; row++) {
+                    final int refIndex = row + col + refOffset;
+                    if (refIndex >= 0 && refIndex < reference.length) {
+                        final int s = scores[reference[refIndex]];
+                        columnM[row] = Math.max(0, Math.max(prevColumnM[row], Math.max(prevColumnIRef[row], prevColumnIQuery[row])) + s);
+                        columnIRef[row] = Math.max(0, Math.max(columnM[row - 1] - gapOpenPenalty, columnIRef[row - 1] - gapExtensionPenalty));
+                        columnIQuery[row] = Math.max(0, Math.max(prevColumnM[row + 1] - gapOpenPenalty, prevColumnIQuery[row + 1] - gapExtensionPenalty));
+                    } else
+                        columnM[row] = columnIRef[row] = columnIQuery[row] = 0;
+                }
+                swapColumns();
+            }
+            score = Math.max(Math.max(prevColumnIQuery[middleRow], prevColumnIRef[middleRow]), prevColumnM[middleRow]);
+        }
+
+        // ------- from end of query to last column of seed:
+        {
+            Arrays.fill(prevColumnM, 0);
+            Arrays.fill(prevColumnIRef, 0);
+            Arrays.fill(prevColumnIQuery, 0);
+
+            final int lastCol = Math.min(queryLength + 1, queryPos + referenceLength - refPos + 1); // last column, fill upto lastCol-1
+
+            for (int col = lastCol - 1; col >= lastSeedCol; col--) {
+                final int[] scores = scoringMatrix[query[col - 1]];
+                for (int row = lastRowToFill; row >= 1; row--) {
+                    final int refIndex = row + col + refOffset;
+                    if (refIndex >= 0 && refIndex < referenceLength) {
+                        final int s = scores[reference[refIndex]];
+                        columnM[row] = Math.max(0, Math.max(prevColumnM[row], Math.max(prevColumnIRef[row], prevColumnIQuery[row])) + s);
+                        columnIRef[row] = Math.max(0, Math.max(columnM[row + 1] - gapOpenPenalty, columnIRef[row + 1] - gapExtensionPenalty));
+                        columnIQuery[row] = Math.max(0, Math.max(prevColumnM[row - 1] - gapOpenPenalty, prevColumnIQuery[row - 1] - gapExtensionPenalty));
+                    } else
+                        columnM[row] = columnIRef[row] = columnIQuery[row] = 0;
+                }
+                swapColumns();
+            }
+            score += Math.max(Math.max(prevColumnIQuery[middleRow], prevColumnIRef[middleRow]), prevColumnM[middleRow]);
+        }
+        return score;
+    }
+
+    /**
+     * the current column becomes the previous one
+     */
+    private void swapColumns() {
+        int[] tmp = prevColumnM;
+        prevColumnM = columnM;
+        columnM = tmp;
+        tmp = prevColumnIRef;
+        prevColumnIRef = columnIRef;
+        columnIRef = tmp;
+        tmp = prevColumnIQuery;
+        prevColumnIQuery = columnIQuery;
+        columnIQuery = tmp;
+    }
+
+    /**
+     * fills the matrices of a banded local alignment around the seed, as needed for trace back
+     *
+     * @return best score ending at the first seed column plus best score starting at the last seed column
+     */
+    private int fillLocalMatrices() {
+        final int cols = queryLength + 2; // query plus one col before and one after
+
+        final int firstSeedCol = queryPos + 1; // +1 because col=pos+1
+        final int lastSeedCol = queryPos + seedLength; // +1 because col=pos+1, but then -1 because want to be last in seed (not first after seed)
+
+        matricesFilled = true;
+
         // ------- resize matrices if necessary:
         if (cols >= matrixM.length) {  // all values will be 0
             // resize:
@@ -448,8 +596,8 @@ public class BandedAligner {
             }
         }
 
-        rawScore += Math.max(Math.max(matrixIQuery[firstSeedCol][middleRow], matrixIRef[firstSeedCol][middleRow]), matrixM[firstSeedCol][middleRow]);
-        rawScore += Math.max(Math.max(matrixIQuery[lastSeedCol][middleRow], matrixIRef[lastSeedCol][middleRow]), matrixM[lastSeedCol][middleRow]);
+        return Math.max(Math.max(matrixIQuery[firstSeedCol][middleRow], matrixIRef[firstSeedCol][middleRow]), matrixM[firstSeedCol][middleRow])
+               + Math.max(Math.max(matrixIQuery[lastSeedCol][middleRow], matrixIRef[lastSeedCol][middleRow]), matrixM[lastSeedCol][middleRow]);
     }
 
     /**
@@ -457,6 +605,7 @@ public class BandedAligner {
      */
     private void computeSemiGlobalAlignment() {
         alignment = null; // will need to call alignmentByTraceBack to compute this
+        matricesFilled = true;
 
         refOffset = refPos - queryPos - band - 2; // need this to compute index in reference sequence
 
@@ -718,6 +867,342 @@ public class BandedAligner {
         rawScore += Math.max(Math.max(matrixIQuery[lastSeedCol][middleRow], matrixIRef[lastSeedCol][middleRow]), matrixM[lastSeedCol][middleRow]);
     }
 
+    /**
+     * Computes an alignment along a chain of anchors, as used for long reads. Anchors are aligned without gaps,
+     * the gaps between consecutive anchors are closed by global alignment, and the two ends are extended
+     * without gaps until the score drops by more than the ungapped x-drop. The raw score and the alignment are
+     * computed, so no trace back is needed.
+     *
+     * @param anchors seed matches, all in the same frame
+     * @param chain   indices of anchors in chain, increasing in query and reference
+     * @param from    first index into chain
+     * @param to      last index into chain (exclusive)
+     */
+    public void computeChainedAlignment(byte[] query, int queryLength, byte[] reference, int referenceLength, SeedMatch[] anchors, int[] chain, int from, int to) {
+        this.query = query;
+        this.queryLength = queryLength;
+        this.reference = reference;
+        this.referenceLength = referenceLength;
+
+        rawScore = 0;
+        gaps = 0;
+        gapOpens = 0;
+        identities = 0;
+        mismatches = 0;
+        alignmentLength = 0;
+
+        int queryEnd = -1; // end of aligned part of query
+        int refEnd = -1;
+
+        for (int k = from; k < to; k++) {
+            final SeedMatch anchor = anchors[chain[k]];
+            int q = anchor.getQueryOffset();
+            int r = anchor.getReferenceOffset();
+            int length = Math.min(anchor.getSeedLength(), Math.min(queryLength - q, referenceLength - r));
+
+            if (queryEnd == -1) { // first anchor, extend to the left
+                int score = 0;
+                int bestScore = 0;
+                int extension = 0;
+                for (int i = 1; i <= q && i <= r; i++) {
+                    score += scoringMatrix[query[q - i]][reference[r - i]];
+                    if (score > bestScore) {
+                        bestScore = score;
+                        extension = i;
+                    } else if (bestScore - score > ungappedXDrop)
+                        break;
+                }
+                startQuery = q - extension;
+                startReference = r - extension;
+                appendUngapped(startQuery, startReference, extension);
+            } else {
+                final int overlap = Math.max(queryEnd - q, refEnd - r);
+                if (overlap > 0) { // anchor overlaps aligned part, use the rest of it
+                    if (overlap >= length)
+                        continue;
+                    q += overlap;
+                    r += overlap;
+                    length -= overlap;
+                }
+                closeGap(queryEnd, q, refEnd, r);
+            }
+            appendUngapped(q, r, length);
+            queryEnd = q + length;
+            refEnd = r + length;
+        }
+
+        // extend to the right:
+        {
+            int score = 0;
+            int bestScore = 0;
+            int extension = 0;
+            for (int i = 0; queryEnd + i < queryLength && refEnd + i < referenceLength; i++) {
+                score += scoringMatrix[query[queryEnd + i]][reference[refEnd + i]];
+                if (score > bestScore) {
+                    bestScore = score;
+                    extension = i + 1;
+                } else if (bestScore - score > ungappedXDrop)
+                    break;
+            }
+            appendUngapped(queryEnd, refEnd, extension);
+            endQuery = queryEnd + extension;
+            endReference = refEnd + extension;
+        }
+
+        if (rawScore < 0)
+            rawScore = 0;
+        alignment = new byte[][]{copy(queryTrack, alignmentLength), copy(midTrack, alignmentLength), copy(referenceTrack, alignmentLength)};
+    }
+
+    /**
+     * append an ungapped stretch of the query and reference to the alignment tracks and add its score
+     */
+    private void appendUngapped(int queryStart, int refStart, int length) {
+        for (int i = 0; i < length; i++) {
+            appendColumn(query[queryStart + i], reference[refStart + i]);
+            rawScore += scoringMatrix[query[queryStart + i]][reference[refStart + i]];
+        }
+    }
+
+    /**
+     * append one column to the alignment tracks, updating the counts. Use '-' to indicate a gap
+     */
+    private void appendColumn(byte queryLetter, byte refLetter) {
+        if (alignmentLength >= queryTrack.length) {
+            queryTrack = grow(queryTrack);
+            midTrack = grow(midTrack);
+            referenceTrack = grow(referenceTrack);
+        }
+        queryTrack[alignmentLength] = queryLetter;
+        referenceTrack[alignmentLength] = refLetter;
+        if (queryLetter == '-' || refLetter == '-') {
+            midTrack[alignmentLength] = ' ';
+            gaps++;
+            if (alignmentLength == 0 || (queryLetter == '-' ? queryTrack : referenceTrack)[alignmentLength - 1] != '-')
+                gapOpens++;
+        } else if (queryLetter == refLetter) {
+            midTrack[alignmentLength] = (isDNAAlignment ? (byte) '|' : queryLetter);
+            identities++;
+        } else {
+            midTrack[alignmentLength] = (isDNAAlignment || scoringMatrix[queryLetter][refLetter] <= 0 ? (byte) ' ' : (byte) '+');
+            mismatches++;
+        }
+        alignmentLength++;
+    }
+
+    /**
+     * close the gap between two anchors by a global alignment with affine gap costs, appending it to the alignment
+     */
+    private void closeGap(int queryStart, int queryEnd, int refStart, int refEnd) {
+        final int m = queryEnd - queryStart;
+        final int n = refEnd - refStart;
+        if (m == 0 || n == 0) {
+            for (int i = 0; i < m; i++)
+                appendColumn(query[queryStart + i], (byte) '-');
+            for (int j = 0; j < n; j++)
+                appendColumn((byte) '-', reference[refStart + j]);
+            if (m + n > 0)
+                rawScore -= gapOpenPenalty + (m + n - 1) * gapExtensionPenalty;
+            return;
+        }
+
+        final int cols = n + 1;
+        final int cells = (m + 1) * cols;
+        if (gapMatrixM.length < cells) {
+            gapMatrixM = new int[cells];
+            gapMatrixIRef = new int[cells];
+            gapMatrixIQuery = new int[cells];
+            gapTraceBack = new byte[cells];
+        }
+        // M: letters aligned, IQuery: query letter against gap, IRef: gap against reference letter
+        // trace back bits 0-1: predecessor of M, bits 2-3: predecessor of IQuery, bits 4-5: predecessor of IRef (0=M, 1=IQuery, 2=IRef)
+        gapMatrixM[0] = 0;
+        gapMatrixIQuery[0] = gapMatrixIRef[0] = MINUS_INFINITY;
+        for (int j = 1; j <= n; j++) {
+            gapMatrixM[j] = gapMatrixIQuery[j] = MINUS_INFINITY;
+            gapMatrixIRef[j] = -gapOpenPenalty - (j - 1) * gapExtensionPenalty;
+            gapTraceBack[j] = (byte) (2 << 4);
+        }
+        gapTraceBack[1] = 0;
+        for (int i = 1; i <= m; i++) {
+            final int row = i * cols;
+            gapMatrixM[row] = gapMatrixIRef[row] = MINUS_INFINITY;
+            gapMatrixIQuery[row] = -gapOpenPenalty - (i - 1) * gapExtensionPenalty;
+            gapTraceBack[row] = (byte) (i == 1 ? 0 : 1 << 2);
+            for (int j = 1; j <= n; j++) {
+                final int cell = row + j;
+                final int diagonal = cell - cols - 1;
+                final int up = cell - cols;
+                final int left = cell - 1;
+                int traceBack;
+
+                // M:
+                {
+                    int best = gapMatrixM[diagonal];
+                    int from = 0;
+                    if (gapMatrixIQuery[diagonal] > best) {
+                        best = gapMatrixIQuery[diagonal];
+                        from = 1;
+                    }
+                    if (gapMatrixIRef[diagonal] > best) {
+                        best = gapMatrixIRef[diagonal];
+                        from = 2;
+                    }
+                    gapMatrixM[cell] = best + scoringMatrix[query[queryStart + i - 1]][reference[refStart + j - 1]];
+                    traceBack = from;
+                }
+                // IQuery, consumes a query letter:
+                {
+                    int best = gapMatrixM[up] - gapOpenPenalty;
+                    int from = 0;
+                    if (gapMatrixIQuery[up] - gapExtensionPenalty > best) {
+                        best = gapMatrixIQuery[up] - gapExtensionPenalty;
+                        from = 1;
+                    }
+                    if (gapMatrixIRef[up] - gapOpenPenalty > best) {
+                        best = gapMatrixIRef[up] - gapOpenPenalty;
+                        from = 2;
+                    }
+                    gapMatrixIQuery[cell] = best;
+                    traceBack |= from << 2;
+                }
+                // IRef, consumes a reference letter:
+                {
+                    int best = gapMatrixM[left] - gapOpenPenalty;
+                    int from = 0;
+                    if (gapMatrixIRef[left] - gapExtensionPenalty > best) {
+                        best = gapMatrixIRef[left] - gapExtensionPenalty;
+                        from = 2;
+                    }
+                    if (gapMatrixIQuery[left] - gapOpenPenalty > best) {
+                        best = gapMatrixIQuery[left] - gapOpenPenalty;
+                        from = 1;
+                    }
+                    gapMatrixIRef[cell] = best;
+                    traceBack |= from << 4;
+                }
+                gapTraceBack[cell] = (byte) traceBack;
+            }
+        }
+
+        // trace back from bottom right corner:
+        int i = m;
+        int j = n;
+        int cell = m * cols + n;
+        int state = 0;
+        int best = gapMatrixM[cell];
+        if (gapMatrixIQuery[cell] > best) {
+            best = gapMatrixIQuery[cell];
+            state = 1;
+        }
+        if (gapMatrixIRef[cell] > best) {
+            best = gapMatrixIRef[cell];
+            state = 2;
+        }
+        rawScore += best;
+
+        if (gapOps.length < m + n)
+            gapOps = new byte[m + n];
+        int numberOfOps = 0;
+        while (i > 0 || j > 0) {
+            final int traceBack = gapTraceBack[cell];
+            gapOps[numberOfOps++] = (byte) state;
+            switch (state) {
+                case 0 -> {
+                    state = traceBack & 3;
+                    i--;
+                    j--;
+                }
+                case 1 -> {
+                    state = (traceBack >> 2) & 3;
+                    i--;
+                }
+                default -> {
+                    state = (traceBack >> 4) & 3;
+                    j--;
+                }
+            }
+            cell = i * cols + j;
+        }
+        i = queryStart;
+        j = refStart;
+        for (int k = numberOfOps - 1; k >= 0; k--) {
+            switch (gapOps[k]) {
+                case 0 -> appendColumn(query[i++], reference[j++]);
+                case 1 -> appendColumn(query[i++], (byte) '-');
+                default -> appendColumn((byte) '-', reference[j++]);
+            }
+        }
+    }
+
+    /**
+     * gets the edit transcript of the current alignment, a compact representation from which
+     * computeAlignmentFromEditTranscript() recovers the alignment. Each entry describes a run of columns
+     * of the same type, as run length times four plus the type
+     *
+     * @return edit transcript
+     */
+    public int[] getEditTranscript() {
+        ensureAlignment();
+        final byte[] alignedQuery = alignment[0];
+        final byte[] alignedReference = alignment[2];
+
+        int runs = 0;
+        int[] transcript = new int[16];
+        int previousType = -1;
+        for (int i = 0; i < alignmentLength; i++) {
+            final int type = (alignedQuery[i] == '-' ? EDIT_GAP_IN_QUERY : alignedReference[i] == '-' ? EDIT_GAP_IN_REFERENCE : EDIT_MATCH);
+            if (type == previousType)
+                transcript[runs - 1] += 4;
+            else {
+                if (runs == transcript.length)
+                    transcript = Arrays.copyOf(transcript, 2 * runs);
+                transcript[runs++] = 4 + type;
+                previousType = type;
+            }
+        }
+        return Arrays.copyOf(transcript, runs);
+    }
+
+    /**
+     * sets the current alignment from an edit transcript, as obtained from getEditTranscript()
+     *
+     * @param startQuery     first aligned position in query
+     * @param startReference first aligned position in reference
+     * @param rawScore       raw score of the alignment
+     */
+    public void computeAlignmentFromEditTranscript(byte[] query, int queryLength, byte[] reference, int referenceLength, int startQuery, int startReference, int[] editTranscript, int rawScore) {
+        this.query = query;
+        this.queryLength = queryLength;
+        this.reference = reference;
+        this.referenceLength = referenceLength;
+        this.startQuery = startQuery;
+        this.startReference = startReference;
+        this.rawScore = rawScore;
+
+        gaps = 0;
+        gapOpens = 0;
+        identities = 0;
+        mismatches = 0;
+        alignmentLength = 0;
+
+        int q = startQuery;
+        int r = startReference;
+        for (int run : editTranscript) {
+            final int type = (run & 3);
+            for (int i = (run >>> 2); i > 0; i--) {
+                switch (type) {
+                    case EDIT_MATCH -> appendColumn(query[q++], reference[r++]);
+                    case EDIT_GAP_IN_REFERENCE -> appendColumn(query[q++], (byte) '-');
+                    default -> appendColumn((byte) '-', reference[r++]);
+                }
+            }
+        }
+        endQuery = q;
+        endReference = r;
+        alignment = new byte[][]{copy(queryTrack, alignmentLength), copy(midTrack, alignmentLength), copy(referenceTrack, alignmentLength)};
+    }
+
     /**
      * compute the bit score and expected score from the raw score
      */
@@ -731,6 +1216,14 @@ public class BandedAligner {
         }
     }
 
+    /**
+     * computes the alignment by trace back, unless it has already been computed
+     */
+    public void ensureAlignment() {
+        if (alignment == null)
+            computeAlignmentByTraceBack();
+    }
+
     /**
      * gets the alignment. Also sets the number of matches, mismatches and gaps
      *
@@ -741,6 +1234,9 @@ public class BandedAligner {
             return;
         }
 
+        if (!matricesFilled)
+            fillLocalMatrices();
+
         gaps = 0;
         gapOpens = 0;
         identities = 0;
@@ -1312,6 +1808,16 @@ public class BandedAligner {
      * @return SAM line
      */
     public byte[] getAlignmentSAM(final DataForInnerLoop data, final byte[] queryHeader, final byte[] querySequence, final byte[] referenceHeader, final int frameRank) {
+        return getAlignmentSAM(data, queryHeader, querySequence, referenceHeader, frameRank, false);
+    }
+
+    /**
+     * get alignment in SAM format
+     *
+     * @param addReadGroup append the read group tag SAMHelper.READ_GROUP_TAG
+     * @return SAM line
+     */
+    public byte[] getAlignmentSAM(final DataForInnerLoop data, final byte[] queryHeader, final byte[] querySequence, final byte[] referenceHeader, final int frameRank, final boolean addReadGroup) {
         if (alignment == null)
             computeAlignmentByTraceBack();
 
@@ -1335,8 +1841,47 @@ public class BandedAligner {
             blastXQueryStart = data.getStartQueryForOutput(frameRank, startQuery);
         }
 
-        return SAMHelper.createSAMLine(mode, queryHeader, querySequence, startQuery, blastXQueryStart, endQuery, queryLength, alignment[0], referenceHeader,
-                outputStartReference, outputEndReference, alignment[2], referenceLength, bitScore, rawScore, expected, 100 * identities / alignmentLength, frame, data.getQualityValues(), samSoftClipping).getBytes();
+        alignmentBuffer.reset();
+        SAMHelper.writeSAMLine(alignmentBuffer, mode, queryHeader, querySequence, startQuery, blastXQueryStart, endQuery, queryLength, alignment[0], referenceHeader,
+                outputStartReference, outputEndReference, alignment[2], referenceLength, bitScore, rawScore, expected, 100 * identities / alignmentLength, frame, data.getQualityValues(), samSoftClipping);
+        if (addReadGroup)
+            alignmentBuffer.writeAsAscii(SAMHelper.READ_GROUP_TAG);
+        return alignmentBuffer.makeCopy();
+    }
+
+    /**
+     * get alignment as a BAM record without read name, see BAMHelper. BlastN only
+     *
+     * @return BAM record without read name
+     */
+    public byte[] getAlignmentBAM(final DataForInnerLoop data, final byte[] querySequence, final int referenceId, final int frameRank) {
+        if (alignment == null)
+            computeAlignmentByTraceBack();
+
+        final int frame = data.getFrameForFrameRank(frameRank);
+        final boolean queryIsReverseComplemented = isDNAAlignment && frame < 0;
+
+        final int outputStartReference;
+        final int outputEndReference;
+        if (queryIsReverseComplemented) {
+            outputStartReference = endReference + 1;
+            outputEndReference = startReference + 1;
+            DNA5.getInstance().reverseComplement(alignment[0]);
+            DNA5.getInstance().reverseComplement(alignment[2]);
+        } else {
+            outputStartReference = startReference + 1;
+            outputEndReference = endReference;
+        }
+
+        alignmentBuffer.reset();
+        BAMHelper.writeBAMRecord(alignmentBuffer, querySequence, startQuery, endQuery, queryLength, alignment[0], referenceId,
+                outputStartReference, outputEndReference, alignment[2], referenceLength, bitScore, rawScore, expected, 100 * identities / alignmentLength, data.getQualityValues(), samSoftClipping);
+
+        if (queryIsReverseComplemented) { // restore alignment, as it may also be needed in SAM format
+            DNA5.getInstance().reverseComplement(alignment[0]);
+            DNA5.getInstance().reverseComplement(alignment[2]);
+        }
+        return alignmentBuffer.makeCopy();
     }
 
     /**
@@ -1351,6 +1896,45 @@ public class BandedAligner {
     private static final int minNumberOfExactMatches = 10;
     private static final int windowForMinNumberOfExactMatches = 30;
 
+    /**
+     * extends a seed match in both directions without gaps, stopping in each direction once the score drops
+     * by more than the ungapped x-drop below the best score seen
+     *
+     * @return raw score of the best ungapped extension of the seed
+     */
+    public int computeUngappedXDropScore(final byte[] query, final int queryLength, final byte[] reference, final int referenceLength, final int queryPos, final int refPos, final int seedLength) {
+        final int length = Math.min(seedLength, Math.min(queryLength - queryPos, referenceLength - refPos));
+        int seedScore = 0;
+        for (int i = 0; i < length; i++) {
+            seedScore += scoringMatrix[query[queryPos + i]][reference[refPos + i]];
+        }
+
+        int leftScore = 0;
+        {
+            int score = 0;
+            for (int i = 1; i <= queryPos && i <= refPos; i++) {
+                score += scoringMatrix[query[queryPos - i]][reference[refPos - i]];
+                if (score > leftScore)
+                    leftScore = score;
+                else if (leftScore - score > ungappedXDrop)
+                    break;
+            }
+        }
+
+        int rightScore = 0;
+        {
+            int score = 0;
+            for (int q = queryPos + length, r = refPos + length; q < queryLength && r < referenceLength; q++, r++) {
+                score += scoringMatrix[query[q]][reference[r]];
+                if (score > rightScore)
+                    rightScore = score;
+                else if (rightScore - score > ungappedXDrop)
+                    break;
+            }
+        }
+        return leftScore + seedScore + rightScore;
+    }
+
     /**
      * heuristically check whether there is going to be a good alignment
      *
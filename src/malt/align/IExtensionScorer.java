@@ -0,0 +1,74 @@
+/*
+ * IExtensionScorer.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.align;
+
+/**
+ * computes the extension scores of a banded local alignment around a seed, without trace back.
+ * The vectorized implementation is loaded by name, so that the incubating Vector API is only needed when --aligner simd is used
+ * Daniel Huson, 10.2026
+ */
+public interface IExtensionScorer {
+    String VECTOR_MODULE = "jdk.incubator.vector";
+
+    /**
+     * computes the best score of an alignment ending at the first seed column plus the best score of an alignment starting
+     * at the last seed column, using the same matrix coordinates as BandedAligner.computeLocalAlignment
+     *
+     * @return sum of the two extension scores, or -1, if the scalar aligner must be used
+     */
+    int computeExtensionScores(byte[] query, int queryLength, byte[] reference, int referenceLength, int queryPos, int refPos, int seedLength, int refOffset);
+
+    /**
+     * is the Vector API available in this JVM? It must be added using the JVM option --add-modules jdk.incubator.vector
+     */
+    static boolean isVectorAPIAvailable() {
+        return ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent();
+    }
+
+    /**
+     * does one column of the band fit into a vector?
+     *
+     * @return false, if not, or if the Vector API is not available
+     */
+    static boolean isVectorizedScorerSupported(int band) {
+        if (!isVectorAPIAvailable())
+            return false;
+        try {
+            return (Boolean) Class.forName("malt.align.VectorizedBandedScorer").getMethod("isSupported", int.class).invoke(null, band);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    /**
+     * creates the vectorized scorer
+     *
+     * @return scorer or null, if not supported
+     */
+    static IExtensionScorer createVectorizedScorer(int[][] scoringMatrix, int gapOpenPenalty, int gapExtensionPenalty, int band) {
+        if (!isVectorizedScorerSupported(band))
+            return null;
+        try {
+            return (IExtensionScorer) Class.forName("malt.align.VectorizedBandedScorer").getConstructor(int[][].class, int.class, int.class, int.class)
+                    .newInstance(scoringMatrix, gapOpenPenalty, gapExtensionPenalty, band);
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+}
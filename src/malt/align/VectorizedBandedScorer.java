@@ -0,0 +1,189 @@
+/*
+ * VectorizedBandedScorer.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.align;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * computes the two extension scores of a banded local alignment around a seed, exactly as BandedAligner does,
+ * but using the Java Vector API and without trace back. Each column of the band is held in one vector of 16-bit scores,
+ * one lane per row, and gaps along a column are resolved by a logarithmic prefix scan.
+ * Returns -1 whenever the scalar aligner must be used instead, in particular when a score might overflow 16 bits
+ * Daniel Huson, 10.2026
+ */
+public class VectorizedBandedScorer implements IExtensionScorer {
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+
+    private final int[][] scoringMatrix;
+    private final short gapOpenPenalty;
+    private final short gapExtensionPenalty;
+    private final int rows;
+    private final int middleRow;
+    private final int overflowLimit;
+
+    private final ShortVector zero = ShortVector.zero(SPECIES);
+    private final ShortVector rowIndices = zero.addIndex(1);
+    private final short[] scores = new short[SPECIES.length()];
+
+    /**
+     * constructor
+     *
+     * @param band band width/2, as used by BandedAligner
+     */
+    public VectorizedBandedScorer(int[][] scoringMatrix, int gapOpenPenalty, int gapExtensionPenalty, int band) {
+        if (!isSupported(band))
+            throw new IllegalArgumentException("band too wide for vector length " + SPECIES.length() + ": " + band);
+        this.scoringMatrix = scoringMatrix;
+        this.gapOpenPenalty = (short) gapOpenPenalty;
+        this.gapExtensionPenalty = (short) gapExtensionPenalty;
+        this.rows = 2 * band + 3;
+        this.middleRow = rows / 2;
+
+        int maxScore = 0;
+        for (int[] row : scoringMatrix) {
+            for (int value : row)
+                maxScore = Math.max(maxScore, value);
+        }
+        overflowLimit = Short.MAX_VALUE - maxScore - 1;
+    }
+
+    /**
+     * does one column of the band fit into a vector?
+     */
+    public static boolean isSupported(int band) {
+        return 2 * band + 3 <= SPECIES.length();
+    }
+
+    @Override
+    public int computeExtensionScores(byte[] query, int queryLength, byte[] reference, int referenceLength, int queryPos, int refPos, int seedLength, int refOffset) {
+        final int firstSeedCol = queryPos + 1;
+        final int lastSeedCol = queryPos + seedLength;
+        final int lastCol = Math.min(queryLength + 1, queryPos + referenceLength - refPos + 1);
+        if (seedLength < 2 || lastSeedCol > lastCol)
+            return -1; // scalar aligner reuses columns in these cases
+
+        final int left = computeLeftExtension(query, reference, refOffset, firstSeedCol);
+        if (left < 0)
+            return -1;
+        final int right = computeRightExtension(query, reference, referenceLength, refOffset, lastSeedCol, lastCol);
+        if (right < 0)
+            return -1;
+        return left + right;
+    }
+
+    /**
+     * fill from first column to first seed column
+     */
+    private int computeLeftExtension(byte[] query, byte[] reference, int refOffset, int firstSeedCol) {
+        final int firstCol = Math.max(1, -refOffset - rows + 2); // the column for which refIndex(firstCol,bottom-to-last row)==0
+
+        ShortVector prevM = zero;
+        ShortVector prevIRef = zero;
+        ShortVector prevIQuery = zero;
+
+        for (int col = firstCol; col <= firstSeedCol; col++) {
+            final VectorMask<Short> mask = loadScores(query[col - 1], reference, reference.length, col + refOffset);
+            final ShortVector s = ShortVector.fromArray(SPECIES, scores, 0);
+
+            final ShortVector m = zero.blend(prevM.max(prevIRef).max(prevIQuery).add(s).max(zero), mask);
+            if (m.compare(VectorOperators.GT, (short) overflowLimit).anyTrue())
+                return -1;
+
+            // insertion in query comes from row+1 of previous column:
+            final ShortVector iQuery = zero.blend(shiftDown(prevM).sub(gapOpenPenalty).max(shiftDown(prevIQuery).sub(gapExtensionPenalty)).max(zero), mask);
+
+            // insertion in reference comes from row-1 of this column:
+            ShortVector f = shiftUp(m, 1).sub(gapOpenPenalty);
+            for (int k = 1; k < rows; k *= 2) {
+                f = f.max(shiftUp(f, k).sub((short) (k * gapExtensionPenalty)));
+            }
+            final ShortVector iRef = zero.blend(f.max(zero), mask);
+
+            prevM = m;
+            prevIRef = iRef;
+            prevIQuery = iQuery;
+        }
+        return Math.max(Math.max(prevIQuery.lane(middleRow), prevIRef.lane(middleRow)), prevM.lane(middleRow));
+    }
+
+    /**
+     * fill from last column down to last seed column
+     */
+    private int computeRightExtension(byte[] query, byte[] reference, int referenceLength, int refOffset, int lastSeedCol, int lastCol) {
+        ShortVector prevM = zero;
+        ShortVector prevIRef = zero;
+        ShortVector prevIQuery = zero;
+
+        for (int col = lastCol - 1; col >= lastSeedCol; col--) {
+            final VectorMask<Short> mask = loadScores(query[col - 1], reference, referenceLength, col + refOffset);
+            final ShortVector s = ShortVector.fromArray(SPECIES, scores, 0);
+
+            final ShortVector m = zero.blend(prevM.max(prevIRef).max(prevIQuery).add(s).max(zero), mask);
+            if (m.compare(VectorOperators.GT, (short) overflowLimit).anyTrue())
+                return -1;
+
+            // insertion in query comes from row-1 of previous column:
+            final ShortVector iQuery = zero.blend(shiftUp(prevM, 1).sub(gapOpenPenalty).max(shiftUp(prevIQuery, 1).sub(gapExtensionPenalty)).max(zero), mask);
+
+            // insertion in reference comes from row+1 of this column:
+            ShortVector f = shiftDown(m).sub(gapOpenPenalty);
+            for (int k = 1; k < rows; k *= 2) {
+                f = f.max(f.slice(k, zero).sub((short) (k * gapExtensionPenalty)));
+            }
+            final ShortVector iRef = zero.blend(f.max(zero), mask);
+
+            prevM = m;
+            prevIRef = iRef;
+            prevIQuery = iQuery;
+        }
+        return Math.max(Math.max(prevIQuery.lane(middleRow), prevIRef.lane(middleRow)), prevM.lane(middleRow));
+    }
+
+    /**
+     * sets the substitution scores of one column and returns the mask of rows to be filled,
+     * that is, rows 1 to rows-2 whose reference index lies in the reference
+     */
+    private VectorMask<Short> loadScores(byte queryLetter, byte[] reference, int referenceLength, int refIndexOfRow0) {
+        final int firstRow = Math.max(1, -refIndexOfRow0);
+        final int lastRow = Math.min(rows - 2, referenceLength - 1 - refIndexOfRow0);
+
+        final int[] scoresForLetter = scoringMatrix[queryLetter];
+        for (int row = firstRow; row <= lastRow; row++) {
+            scores[row] = (short) scoresForLetter[reference[row + refIndexOfRow0]];
+        }
+        return rowIndices.compare(VectorOperators.GE, (short) firstRow).and(rowIndices.compare(VectorOperators.LE, (short) lastRow));
+    }
+
+    /**
+     * lane i gets lane i-k, lanes below k get 0
+     */
+    private ShortVector shiftUp(ShortVector v, int k) {
+        return zero.slice(SPECIES.length() - k, v);
+    }
+
+    /**
+     * lane i gets lane i+1, last lane gets 0
+     */
+    private ShortVector shiftDown(ShortVector v) {
+        return v.slice(1, zero);
+    }
+}
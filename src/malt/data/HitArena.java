@@ -0,0 +1,77 @@
+/*
+ * HitArena.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.data;
+
+/**
+ * a growable array of ints that holds the seed hits of all rows set up for the current query. Rows refer to
+ * (offset, length) ranges of the arena, so memory scales with the number of hits rather than the number of rows
+ * Daniel Huson, 10.2026
+ */
+public class HitArena {
+    private int[] data;
+    private int used;
+
+    /**
+     * constructor
+     */
+    public HitArena(int initialCapacity) {
+        data = new int[Math.max(16, initialCapacity)];
+    }
+
+    /**
+     * release all rows, keeps the memory
+     */
+    public void clear() {
+        used = 0;
+    }
+
+    /**
+     * allocate the given number of ints. Call getData() after this, as the data array may be replaced
+     *
+     * @return offset of allocated ints in data array
+     */
+    public int allocate(int length) {
+        if (used + length > data.length) {
+            final int[] newData = new int[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * data.length, (long) used + length))];
+            System.arraycopy(data, 0, newData, 0, used);
+            data = newData; // rows already set keep referring to the old array, which still holds their values
+        }
+        final int offset = used;
+        used += length;
+        return offset;
+    }
+
+    /**
+     * get the data array
+     *
+     * @return data
+     */
+    public int[] getData() {
+        return data;
+    }
+
+    /**
+     * number of bytes used by the arena
+     *
+     * @return bytes
+     */
+    public long getBytes() {
+        return 4L * data.length;
+    }
+}
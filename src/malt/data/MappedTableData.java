@@ -0,0 +1,95 @@
+/*
+ * MappedTableData.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * read-only memory-mapped access to the data of a seed table. Rows are returned as views onto the mapped file, so a lookup
+ * does not copy any hits
+ * Daniel Huson, 10.2026
+ */
+public class MappedTableData implements Closeable {
+    private static final int BLOCK_BITS = 28; // number of ints per block is 2^28, i.e. 1GB
+    private static final long BLOCK_MASK = (1L << BLOCK_BITS) - 1;
+    private static final int OVERLAP = 1 << 20; // blocks overlap, so rows of up to this many ints never cross a block boundary
+
+    private final IntBuffer[] blocks;
+    private final long limit;
+
+    /**
+     * constructor
+     *
+     * @param file table data file
+     */
+    public MappedTableData(File file) throws IOException {
+        try (var raf = new RandomAccessFile(file, "r"); var channel = raf.getChannel()) {
+            limit = channel.size() / 4;
+            blocks = new IntBuffer[(int) ((limit >>> BLOCK_BITS) + 1)];
+            for (var b = 0; b < blocks.length; b++) {
+                final long start = ((long) b << BLOCK_BITS);
+                final long length = Math.min(limit - start, BLOCK_MASK + 1 + OVERLAP);
+                blocks[b] = channel.map(FileChannel.MapMode.READ_ONLY, 4 * start, 4 * length).asIntBuffer();
+            }
+        }
+    }
+
+    /**
+     * get the int at the given index
+     *
+     * @return value
+     */
+    public int get(long index) {
+        return blocks[(int) (index >>> BLOCK_BITS)].get((int) (index & BLOCK_MASK));
+    }
+
+    /**
+     * set the row to a view of the row stored at the given location
+     *
+     * @return false, if the row crosses a block boundary and must be copied
+     */
+    public boolean setRow(long location, Row row) {
+        final IntBuffer block = blocks[(int) (location >>> BLOCK_BITS)];
+        final int offset = (int) (location & BLOCK_MASK);
+        if ((long) offset + block.get(offset) < block.limit()) {
+            row.setView(block, offset);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * number of ints
+     *
+     * @return limit
+     */
+    public long limit() {
+        return limit;
+    }
+
+    @Override
+    public void close() {
+        // mapped buffers are released by the garbage collector
+    }
+}
@@ -33,7 +33,7 @@ class ReadMatch {
 
     private float bitScore;
     private float expected;
-    private int percentIdentity;
+    private float percentIdentity;
     private int referenceId;
     private byte[] text;      // match text
     private byte[] rma6Text;
@@ -41,6 +41,16 @@ class ReadMatch {
     private int startRef; // start position of match in reference sequence
     private int endRef;  // end position of match in reference sequence
 
+    // compact alignment from which the text is computed, once the match is known to be reported.
+    // Either a seed from which the alignment is recomputed, or the start of the alignment and its edit transcript:
+    private boolean deferred;
+    private int frameRank;
+    private int queryOffset;
+    private int referenceOffset;
+    private int seedLength;
+    private int rawScore;
+    private int[] editTranscript;
+
     /**
      * constructor
      */
@@ -54,14 +64,22 @@ class ReadMatch {
      * @return copy
      */
     public ReadMatch getCopy() {
-        return new ReadMatch(bitScore, expected, percentIdentity, referenceId, text, rma6Text, startRef, endRef);
+        final ReadMatch copy = new ReadMatch(bitScore, expected, percentIdentity, referenceId, text, rma6Text, startRef, endRef);
+        copy.deferred = deferred;
+        copy.frameRank = frameRank;
+        copy.queryOffset = queryOffset;
+        copy.referenceOffset = referenceOffset;
+        copy.seedLength = seedLength;
+        copy.rawScore = rawScore;
+        copy.editTranscript = editTranscript;
+        return copy;
     }
 
     /**
      * constructor
      *
 	 */
-    public ReadMatch(float bitScore, float expected, int percentIdentity, int referenceId, byte[] text, byte[] rma6Text, int startRef, int endRef) {
+    public ReadMatch(float bitScore, float expected, float percentIdentity, int referenceId, byte[] text, byte[] rma6Text, int startRef, int endRef) {
         this.bitScore = bitScore;
         this.expected = expected;
         this.percentIdentity = percentIdentity;
@@ -85,6 +103,62 @@ class ReadMatch {
         this.rma6Text = rma3Text;
         this.startRef = startRef;
         this.endRef = endRef;
+        this.deferred = false;
+    }
+
+    /**
+     * reuse this object, keeping only the seed of the alignment. The text and reference coordinates are set later
+     * using setText(), once the match is known to be reported
+     */
+    public void setDeferred(float score, int referenceId, int frameRank, int queryOffset, int referenceOffset, int seedLength) {
+        this.bitScore = score;
+        this.referenceId = referenceId;
+        this.entryNumber = ++numberOfEntries;
+        this.text = null;
+        this.rma6Text = null;
+        this.startRef = -1;
+        this.endRef = -1;
+        this.deferred = true;
+        this.frameRank = frameRank;
+        this.queryOffset = queryOffset;
+        this.referenceOffset = referenceOffset;
+        this.seedLength = seedLength;
+        this.editTranscript = null;
+    }
+
+    /**
+     * reuse this object, keeping the coordinates and edit transcript of the alignment. The text is set later
+     * using setText(), once the match is known to be reported
+     */
+    public void setDeferred(float score, int referenceId, int frameRank, int startQuery, int startRef, int endRef, int rawScore, int[] editTranscript) {
+        this.bitScore = score;
+        this.referenceId = referenceId;
+        this.entryNumber = ++numberOfEntries;
+        this.text = null;
+        this.rma6Text = null;
+        this.startRef = startRef;
+        this.endRef = endRef;
+        this.deferred = true;
+        this.frameRank = frameRank;
+        this.queryOffset = startQuery;
+        this.referenceOffset = startRef;
+        this.seedLength = 0;
+        this.rawScore = rawScore;
+        this.editTranscript = editTranscript;
+    }
+
+    /**
+     * sets the text, reference coordinates, expected value and percent identity of a deferred match
+     */
+    public void setText(byte[] text, byte[] rma6Text, int startRef, int endRef, float expected, float percentIdentity) {
+        this.text = text;
+        this.expected = expected;
+        this.percentIdentity = percentIdentity;
+        this.rma6Text = rma6Text;
+        this.startRef = startRef;
+        this.endRef = endRef;
+        this.deferred = false;
+        this.editTranscript = null;
     }
 
     public float getBitScore() {
@@ -95,7 +169,7 @@ class ReadMatch {
         return expected;
     }
 
-    public int getPercentIdentity() {
+    public float getPercentIdentity() {
         return percentIdentity;
     }
 
@@ -119,6 +193,37 @@ class ReadMatch {
         return endRef;
     }
 
+    public boolean isDeferred() {
+        return deferred;
+    }
+
+    public int getFrameRank() {
+        return frameRank;
+    }
+
+    public int getQueryOffset() {
+        return queryOffset;
+    }
+
+    public int getReferenceOffset() {
+        return referenceOffset;
+    }
+
+    public int getSeedLength() {
+        return seedLength;
+    }
+
+    public int getRawScore() {
+        return rawScore;
+    }
+
+    /**
+     * @return edit transcript, or null, if the alignment is to be recomputed from the seed
+     */
+    public int[] getEditTranscript() {
+        return editTranscript;
+    }
+
     public String toString() {
 		return "RefId=" + referenceId + " bitScore=" + bitScore + " start=" + startRef + " end=" + endRef + " text=" + (text == null ? "null" : StringUtils.toString(text));
     }
@@ -39,6 +39,15 @@ public class RefIndex2ClassId {
         maxRefId = numberOfReferences;
     }
 
+    /**
+     * constructor for subclasses that keep the class ids elsewhere
+     *
+     */
+    protected RefIndex2ClassId(int numberOfReferences, int[] refIndex2ClassId) {
+        this.refIndex2ClassId = refIndex2ClassId;
+        maxRefId = numberOfReferences;
+    }
+
     /**
      * put, indices start at 0
      *
@@ -56,6 +65,15 @@ public class RefIndex2ClassId {
         return refIndex2ClassId[refIndex];
     }
 
+    /**
+     * number of references
+     *
+     * @return size
+     */
+    public int size() {
+        return maxRefId;
+    }
+
     /**
      * save to a stream and then close the stream
      *
@@ -77,8 +95,8 @@ public class RefIndex2ClassId {
 
             // write headers and sequences:
             for (int i = 0; i < maxRefId; i++) {
-                writeInt(outs, refIndex2ClassId[i]);
-                // System.err.println("write: "+i+" "+refIndex2ClassId[i]);
+                writeInt(outs, get(i));
+                // System.err.println("write: "+i+" "+get(i));
                 progressListener.incrementProgress();
             }
         }
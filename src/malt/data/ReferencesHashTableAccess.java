@@ -49,7 +49,8 @@ public class ReferencesHashTableAccess implements Closeable {
     private final IAlphabet seedAlphabet;  // alphabet used by seeds
     private final SeedShape seedShape; //  seed shape that is saved and loaded from index
 
-    private final IIntGetter tableDataGetter; // used for memory mapping
+    private final IIntGetter tableDataGetter; // used when loading or paging
+    private final MappedTableData tableDataMapped; // used for memory mapping, rows are views onto the mapped file
 
     /**
      * construct the table from the given directory
@@ -103,26 +104,29 @@ public class ReferencesHashTableAccess implements Closeable {
             case load:
                 tableIndexGetter = new LongFileGetterInMemory(tableIndexFile);
                 tableDataGetter = new IntFileGetterInMemory(tableDataFile);
+                tableDataMapped = null;
                 break;
             case page:
                 tableIndexGetter = new LongFileGetterPagedMemory(tableIndexFile);
                 tableDataGetter = new IntFileGetterPagedMemory(tableDataFile);
+                tableDataMapped = null;
                 break;
             case map:
                 tableIndexGetter = new LongFileGetterMappedMemory(tableIndexFile);
-                tableDataGetter = new IntFileGetterMappedMemory(tableDataFile);
+                tableDataGetter = null;
+                tableDataMapped = new MappedTableData(tableDataFile);
                 break;
         }
     }
 
     /**
-     * lookup all entries for a given key and put them in the given row object. If none found, row is set to empty
-     * todo: re-implement this
+     * lookup all entries for a given key and put them in the given row object. If none found, row is set to empty.
+     * Entries that are copied are placed in the given arena
      *
 	 */
-    public int lookup(byte[] key, Row row) throws IOException {
+    public int lookup(byte[] key, Row row, HitArena arena) throws IOException {
         int hashValue = getHash(key);
-        if (hashValue >= 0 && hashValue < tableIndexGetter.limit() && setRow(tableIndexGetter.get(hashValue), row))
+        if (hashValue >= 0 && hashValue < tableIndexGetter.limit() && setRow(tableIndexGetter.get(hashValue), row, arena))
             return row.size();
         row.setEmpty();
         return 0;
@@ -166,12 +170,14 @@ public class ReferencesHashTableAccess implements Closeable {
         System.err.println("Table (" + tableSize + "):");
 
         Row row = new Row();
+        HitArena arena = new HitArena(1024);
 
         for (int z = 0; z < tableIndexGetter.limit(); z++) {
             if (z > 50)
                 continue;
             System.err.print("hash " + z + " -> ");
-            if (setRow(tableIndexGetter.get(z), row)) {
+            arena.clear();
+            if (setRow(tableIndexGetter.get(z), row, arena)) {
                 System.err.print("(" + row.size() / 2 + ")");
                 for (int i = 0; i < row.size(); i += 2) {
                     if (i > 100) {
@@ -186,24 +192,37 @@ public class ReferencesHashTableAccess implements Closeable {
     }
 
     /**
-     * set the row for the given location
+     * set the row for the given location. Unless the row is a view onto the mapped table, its entries are copied into the arena
      *
      * @return false, if location invalid
      */
-    private boolean setRow(long location, Row row) throws IOException {
+    private boolean setRow(long location, Row row, HitArena arena) throws IOException {
         if (location == 0)
             return false;
         if (location < 0) {
             location = -location;
-            row.setPair((int) (location >> 32), (int) location); // is a singleton entry
+            final int offset = arena.allocate(3); // is a singleton entry
+            final int[] data = arena.getData();
+            data[offset] = 2;
+            data[offset + 1] = (int) (location >> 32);
+            data[offset + 2] = (int) location;
+            row.set(data, offset);
+        } else if (tableDataMapped != null) {
+            if (!tableDataMapped.setRow(location, row)) { // row crosses a block boundary, copy it
+                final int length = tableDataMapped.get(location);
+                final int offset = arena.allocate(length + 1);
+                final int[] data = arena.getData();
+                for (int i = 0; i <= length; i++)
+                    data[offset + i] = tableDataMapped.get(location + i);
+                row.set(data, offset);
+            }
         } else {
-            int length = tableDataGetter.get(location); // length is number int's that follow this first int that tells us the length
-            if (row.tmpArray.length <= length)
-                row.tmpArray = new int[length + 1];
-            row.tmpArray[0] = length;
-            for (int i = 1; i <= length; i++)
-                row.tmpArray[i] = tableDataGetter.get(location + i);
-            row.set(row.tmpArray, 0);
+            final int length = tableDataGetter.get(location); // length is number int's that follow this first int that tells us the length
+            final int offset = arena.allocate(length + 1);
+            final int[] data = arena.getData();
+            for (int i = 0; i <= length; i++)
+                data[offset + i] = tableDataGetter.get(location + i);
+            row.set(data, offset);
         }
         return true;
     }
@@ -247,13 +266,15 @@ public class ReferencesHashTableAccess implements Closeable {
 	 */
     public void showAPart() throws IOException {
         final Row row = new Row();
+        final HitArena arena = new HitArena(1024);
 
         System.err.println("Seed table (" + tableIndexGetter.limit() + "):");
         for (int z = 0; z < tableIndexGetter.limit(); z++) {
             if (z > 10)
                 continue;
             System.err.print("hash " + z + " -> ");
-            if (setRow(tableIndexGetter.get(z), row)) {
+            arena.clear();
+            if (setRow(tableIndexGetter.get(z), row, arena)) {
                 System.err.print("(" + row.size() / 2 + ")");
                 for (int i = 0; i < row.size(); i += 2) {
                     if (i > 100) {
@@ -282,7 +303,10 @@ public class ReferencesHashTableAccess implements Closeable {
 
     public void close() {
         tableIndexGetter.close();
-        tableDataGetter.close();
+        if (tableDataGetter != null)
+            tableDataGetter.close();
+        if (tableDataMapped != null)
+            tableDataMapped.close();
     }
 }
 
@@ -21,18 +21,22 @@ package malt.data;
 import jloda.thirdparty.MurmurHash3;
 import jloda.util.Basic;
 import jloda.util.CollectionUtils;
-import jloda.util.Single;
 import jloda.util.progress.ProgressPercentage;
 import malt.util.Utilities;
 import megan.io.IntFilePutter;
 import megan.io.OutputWriter;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * builds the reference hash table
@@ -42,6 +46,16 @@ import java.util.concurrent.Executors;
 public class ReferencesHashTableBuilder {
 	public static final byte[] MAGIC_NUMBER = "MATableV0.12.".getBytes();
 
+	// used for lock-free counting and filling of the table index:
+	private static final VarHandle TABLE_INDEX = MethodHandles.arrayElementVarHandle(long[].class);
+	// while filling, an entry holds the row location in the low bits and the number of ints written in the high bits:
+	private static final int FILL_SHIFT = 40;
+	private static final long LOCATION_MASK = (1L << FILL_SHIFT) - 1;
+
+	// used by out-of-core build: a seed occupies a key and a value while sorting a chunk
+	private static final int BYTES_PER_SPILLED_SEED = 16;
+	private static final int SPILL_BUFFER_SIZE = 65536;
+
 	private final SequenceType referenceSequenceType;
 	private final IAlphabet alphabet;
 
@@ -61,11 +75,15 @@ public class ReferencesHashTableBuilder {
 	private final SeedShape seedShape; //  seed shape that is saved and loaded from index
 
 	private final int SYNC_BITMASK = 1023;
-	// use lots of objects to synchronize on so that threads don't in each other's way
+	// use lots of objects to synchronize on so that threads don't in each other's way. Only used when lock-free fill not possible
 	private final Object[] syncObjects = new Object[SYNC_BITMASK + 1];
 
+	private boolean lockFreeFill; // set in allocateTable
+
 	private final int stepSize;
 
+	private final long totalNumberOfSeeds;
+
 	/**
 	 * constructor
 	 */
@@ -82,7 +100,7 @@ public class ReferencesHashTableBuilder {
 		}
 
 		// total is numberOfLetters minus last letter of each sequence divided by stepSize
-		final long totalNumberOfSeeds = (long) (Math.ceil((numberOfLetters - ((long) numberOfSequences * (seedShape.getLength() - 1))) / stepSize));
+		totalNumberOfSeeds = (long) (Math.ceil((numberOfLetters - ((long) numberOfSequences * (seedShape.getLength() - 1))) / stepSize));
 		// number of possible different seed values:
 		final long numberOfPossibleHashValues = (long) Math.ceil(Math.pow(alphabet.size(), seedShape.getWeight()));
 
@@ -116,16 +134,61 @@ public class ReferencesHashTableBuilder {
 	 * build the hash table
 	 */
 	public void buildTable(final File tableIndexFile, final File tableDataFile, final ReferencesDBBuilder referencesDB, int numberOfThreads, boolean buildTableInMemory) throws IOException {
-		tableIndex = new long[tableSize];
-
-		countSeeds(referencesDB, numberOfThreads);
-		long limit = allocateTable(numberOfThreads);
-		tableDataPutter = new IntFilePutter(tableDataFile, limit + 1, buildTableInMemory); // limit+1 because we start with index 1
-		fillTable(referencesDB, numberOfThreads);
-		randomizeBuildRows(numberOfThreads);
-		saveTableIndex(tableIndex, tableIndexFile);
-		tableIndex = null;
-		tableDataPutter.close();
+		buildTables(new ReferencesHashTableBuilder[]{this}, new File[]{tableIndexFile}, new File[]{tableDataFile}, referencesDB, numberOfThreads, buildTableInMemory);
+	}
+
+	/**
+	 * build the hash tables for several seed shapes at once. Counting and filling each make a single pass over the references,
+	 * extracting the seeds for all shapes from a sequence while it is at hand. All tables are held at the same time,
+	 * so the caller must make sure that their combined memory usage fits (see estimateMemoryUsage)
+	 */
+	public static void buildTables(final ReferencesHashTableBuilder[] builders, final File[] tableIndexFiles, final File[] tableDataFiles, final ReferencesDBBuilder referencesDB, int numberOfThreads, boolean buildTableInMemory) throws IOException {
+		for (var builder : builders) {
+			builder.tableIndex = new long[builder.tableSize];
+		}
+
+		countSeeds(builders, referencesDB, numberOfThreads);
+		for (var t = 0; t < builders.length; t++) {
+			final long limit = builders[t].allocateTable(numberOfThreads);
+			builders[t].tableDataPutter = new IntFilePutter(tableDataFiles[t], limit + 1, buildTableInMemory); // limit+1 because we start with index 1
+		}
+		fillTable(builders, referencesDB, numberOfThreads);
+		for (var t = 0; t < builders.length; t++) {
+			final var builder = builders[t];
+			builder.randomizeBuildRows(numberOfThreads);
+			builder.saveTableIndex(builder.tableIndex, tableIndexFiles[t]);
+			builder.tableIndex = null;
+			builder.tableDataPutter.close();
+		}
+	}
+
+	/**
+	 * estimate the number of bytes required to build this table using buildTable
+	 *
+	 * @return estimated number of bytes
+	 */
+	public long estimateMemoryUsage(boolean buildTableInMemory) {
+		// table index, plus two ints per seed and one per row for the table data
+		return 8L * tableSize + (buildTableInMemory ? 4L * (2L * totalNumberOfSeeds + Math.min(tableSize, totalNumberOfSeeds)) : 0L);
+	}
+
+	/**
+	 * build the hash table out-of-core. Seeds are collected in chunks that fit into the given memory budget, each chunk
+	 * is sorted by hash value and spilled to disk, and then all spill files are merged into the table files.
+	 * Both table files are written sequentially, so neither the table index nor the table data is held in memory
+	 *
+	 * @param maxMemory memory budget in bytes for the seeds collected in one chunk
+	 */
+	public void buildTableExternal(final File tableIndexFile, final File tableDataFile, final ReferencesDBBuilder referencesDB, int numberOfThreads, long maxMemory) throws IOException {
+		final var spillFiles = spillSortedSeeds(tableDataFile, referencesDB, numberOfThreads, maxMemory);
+		try {
+			mergeSpillFiles(spillFiles, tableIndexFile, tableDataFile, maxMemory);
+		} finally {
+			for (var file : spillFiles) {
+				if (file.exists() && !file.delete())
+					System.err.println("Failed to delete file: " + file);
+			}
+		}
 	}
 
 	/**
@@ -145,7 +208,7 @@ public class ReferencesHashTableBuilder {
 	/**
 	 * count the seeds. Here we use forwardTable and reverseTable to hold the counts, later the counts are replaced by locations
 	 */
-	private void countSeeds(final ReferencesDBBuilder referencesDB, int numberOfThreads0) {
+	private static void countSeeds(final ReferencesHashTableBuilder[] builders, final ReferencesDBBuilder referencesDB, int numberOfThreads0) {
 		final int numberOfThreads = Math.min(referencesDB.getNumberOfSequences(), numberOfThreads0);
 
 		final ProgressPercentage progressPercentage = new ProgressPercentage("Analysing seeds...", referencesDB.getNumberOfSequences());
@@ -162,20 +225,14 @@ public class ReferencesHashTableBuilder {
 
 				executor.execute(() -> {
 					try {
-						final byte[] seedBytes = seedShape.createBuffer();
+						final byte[][] seedBytes = new byte[builders.length][];
+						for (var t = 0; t < builders.length; t++) {
+							seedBytes[t] = builders[t].seedShape.createBuffer();
+						}
 						for (int refIndex = threadNumber; refIndex < referencesDB.getNumberOfSequences(); refIndex += numberOfThreads) {
-							byte[] sequence = referencesDB.getSequence(refIndex);
-							int top = sequence.length - seedShape.getLength() + 1;
-							for (int pos = 0; pos < top; pos += stepSize) {
-								seedShape.getSeed(sequence, pos, seedBytes);
-								if (!Utilities.hasAtMostTwoLetters(seedBytes)) {
-									int hashValue = getHash(seedBytes);
-									synchronized (syncObjects[hashValue & SYNC_BITMASK]) {
-										if (tableIndex[hashValue] <= maxHitsPerHash)
-											tableIndex[hashValue]++;
-									}
-								} else
-									countLowComplexitySeeds[threadNumber]++;
+							final byte[] sequence = referencesDB.getSequence(refIndex);
+							for (var t = 0; t < builders.length; t++) {
+								countLowComplexitySeeds[threadNumber] += builders[t].countSeeds(sequence, seedBytes[t]);
 							}
 							countsForProgress[threadNumber]++;
 						}
@@ -202,6 +259,29 @@ public class ReferencesHashTableBuilder {
 		}
 	}
 
+	/**
+	 * count the seeds of one sequence for this table
+	 *
+	 * @return number of low-complexity seeds skipped
+	 */
+	private long countSeeds(final byte[] sequence, final byte[] seedBytes) {
+		long countLowComplexitySeeds = 0;
+		final int top = sequence.length - seedShape.getLength() + 1;
+		for (int pos = 0; pos < top; pos += stepSize) {
+			seedShape.getSeed(sequence, pos, seedBytes);
+			if (!Utilities.hasAtMostTwoLetters(seedBytes)) {
+				final int hashValue = getHash(seedBytes);
+				long count;
+				do { // saturating increment, no need to count beyond maxHitsPerHash+1
+					count = (long) TABLE_INDEX.getOpaque(tableIndex, hashValue);
+				}
+				while (count <= maxHitsPerHash && !TABLE_INDEX.weakCompareAndSetPlain(tableIndex, hashValue, count, count + 1));
+			} else
+				countLowComplexitySeeds++;
+		}
+		return countLowComplexitySeeds;
+	}
+
 	/**
 	 * allocate the hash table
 	 */
@@ -214,7 +294,7 @@ public class ReferencesHashTableBuilder {
 		final long[] totalSeeds = new long[numberOfThreads];
 		final long[] totalDropped = new long[numberOfThreads];
 
-		final Single<Long> nextFreeIndex = new Single<>(1L);
+		final AtomicLong nextFreeIndex = new AtomicLong(1L);
 
 		final ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
 		final CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
@@ -235,11 +315,7 @@ public class ReferencesHashTableBuilder {
 							} else if (count > 1) {
 								totalSeeds[threadNumber] += count;
 								totalKeys[threadNumber]++;
-								synchronized (nextFreeIndex) {
-									final long location = nextFreeIndex.get();
-									tableIndex[(int) index] = location;
-									nextFreeIndex.set(location + 2 * count + 1);
-								}
+								tableIndex[(int) index] = nextFreeIndex.getAndAdd(2 * count + 1);
 							} else if (count == 1) {   // will write refInd and offset directly into table, use value of -1 to indicate this
 								totalSeeds[threadNumber]++;
 								totalKeys[threadNumber]++;
@@ -271,19 +347,24 @@ public class ReferencesHashTableBuilder {
 		System.err.printf("Total seeds matched:%,14d%n", CollectionUtils.getSum(totalSeeds));
 		System.err.printf("Total seeds dropped:%,14d%n", CollectionUtils.getSum(totalDropped));
 
+		// can we pack location and number of ints written into one table entry?
+		lockFreeFill = (nextFreeIndex.get() <= LOCATION_MASK && 2L * maxHitsPerHash <= (Long.MAX_VALUE >>> FILL_SHIFT));
+		if (!lockFreeFill)
+			System.err.println("Table too large for lock-free fill, using synchronized fill");
+
 		return nextFreeIndex.get();
 	}
 
 
 	/**
-	 * Fill the hash table
+	 * Fill the hash tables
 	 */
-	private void fillTable(final ReferencesDBBuilder referencesDB, int numberOfThreads0) {
+	private static void fillTable(final ReferencesHashTableBuilder[] builders, final ReferencesDBBuilder referencesDB, int numberOfThreads0) {
 		final int numberOfThreads = Math.min(referencesDB.getNumberOfSequences(), numberOfThreads0);
 
 		// populate the table
 		final int[] countsForProgress = new int[numberOfThreads];
-		final long[] counts = new long[numberOfThreads];
+		final long[][] counts = new long[builders.length][numberOfThreads];
 
 		final ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
 		final CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
@@ -294,29 +375,14 @@ public class ReferencesHashTableBuilder {
 
 				executor.execute(() -> {
 					try {
-						final byte[] seedBytes = seedShape.createBuffer();
+						final byte[][] seedBytes = new byte[builders.length][];
+						for (var t = 0; t < builders.length; t++) {
+							seedBytes[t] = builders[t].seedShape.createBuffer();
+						}
 						for (int refIndex = threadNumber; refIndex < referencesDB.getNumberOfSequences(); refIndex += numberOfThreads) {
 							final byte[] sequence = referencesDB.getSequence(refIndex);
-							final int top = sequence.length - seedShape.getLength() + 1;
-							for (int pos = 0; pos < top; pos += stepSize) {
-								seedShape.getSeed(sequence, pos, seedBytes);
-								if (!Utilities.hasAtMostTwoLetters(seedBytes)) {
-									final int hashValue = getHash(seedBytes);
-
-									synchronized (syncObjects[hashValue & SYNC_BITMASK]) {
-										final long location = tableIndex[hashValue];
-										if (location == -1) {    // has been marked as singleton, so store value directly
-											final long value = -(((long) refIndex << 32) | pos);
-											tableIndex[hashValue] = value;
-										} else if (location > 0) {
-											final int length = tableDataPutter.get(location);
-											tableDataPutter.put(location, length + 2);
-											tableDataPutter.put(location + length + 1, refIndex);
-											tableDataPutter.put(location + length + 2, pos);
-										}
-									}
-									counts[threadNumber]++;
-								}
+							for (var t = 0; t < builders.length; t++) {
+								counts[t][threadNumber] += builders[t].fillTable(refIndex, sequence, seedBytes[t]);
 							}
 							countsForProgress[threadNumber]++;
 						}
@@ -336,11 +402,57 @@ public class ReferencesHashTableBuilder {
 			executor.shutdownNow();
 		}
 
-		theSize = CollectionUtils.getSum(counts);
+		for (var t = 0; t < builders.length; t++) {
+			builders[t].theSize = CollectionUtils.getSum(counts[t]);
+		}
+	}
+
+	/**
+	 * add the seeds of one sequence to this table
+	 *
+	 * @return number of seeds processed
+	 */
+	private long fillTable(final int refIndex, final byte[] sequence, final byte[] seedBytes) {
+		long count = 0;
+		final int top = sequence.length - seedShape.getLength() + 1;
+		for (int pos = 0; pos < top; pos += stepSize) {
+			seedShape.getSeed(sequence, pos, seedBytes);
+			if (!Utilities.hasAtMostTwoLetters(seedBytes)) {
+				final int hashValue = getHash(seedBytes);
+
+				if (lockFreeFill) {
+					final long entry = tableIndex[hashValue];
+					if (entry == -1) {    // has been marked as singleton, exactly one seed will get here, so store value directly
+						tableIndex[hashValue] = -(((long) refIndex << 32) | pos);
+					} else if (entry > 0) { // reserve two ints in the row, the row length is set in randomizeBuildRows
+						final long reserved = (long) TABLE_INDEX.getAndAdd(tableIndex, hashValue, 2L << FILL_SHIFT);
+						final long location = (reserved & LOCATION_MASK) + (reserved >>> FILL_SHIFT);
+						tableDataPutter.put(location + 1, refIndex);
+						tableDataPutter.put(location + 2, pos);
+					}
+				} else {
+					synchronized (syncObjects[hashValue & SYNC_BITMASK]) {
+						final long location = tableIndex[hashValue];
+						if (location == -1) {    // has been marked as singleton, so store value directly
+							final long value = -(((long) refIndex << 32) | pos);
+							tableIndex[hashValue] = value;
+						} else if (location > 0) {
+							final int length = tableDataPutter.get(location);
+							tableDataPutter.put(location, length + 2);
+							tableDataPutter.put(location + length + 1, refIndex);
+							tableDataPutter.put(location + length + 2, pos);
+						}
+					}
+				}
+				count++;
+			}
+		}
+		return count;
 	}
 
 	/**
-	 * randomize the rows of the table, parallel version
+	 * randomize the rows of the table, parallel version. After a lock-free fill, this also unpacks the table entries
+	 * and writes the length of each row
 	 */
 	private void randomizeBuildRows(final int numberOfThreads) {
 		final int[] countsForProgress = new int[numberOfThreads];
@@ -357,7 +469,14 @@ public class ReferencesHashTableBuilder {
 							if (index < tableIndex.length) {
 								long location = tableIndex[(int) index];
 								if (location > 0) {
-									int size = tableDataPutter.get(location);
+									final int size;
+									if (lockFreeFill) {
+										size = (int) (location >>> FILL_SHIFT);
+										location &= LOCATION_MASK;
+										tableIndex[(int) index] = location;
+										tableDataPutter.put(location, size);
+									} else
+										size = tableDataPutter.get(location);
 									if (size > 2) {
 										random.setSeed(index * index);  // use location in hash table as seed.
 										Utilities.randomizePairs(tableDataPutter, location + 1, size, random);
@@ -385,6 +504,250 @@ public class ReferencesHashTableBuilder {
 	}
 
 
+	/**
+	 * collect seeds in chunks of sequences, sort each chunk by hash value and write it to a spill file. Within a spill
+	 * file, seeds with the same hash value are ordered by reference and position
+	 *
+	 * @return spill files in order of reference sequences
+	 */
+	private ArrayList<File> spillSortedSeeds(final File tableDataFile, final ReferencesDBBuilder referencesDB, int numberOfThreads0, long maxMemory) throws IOException {
+		final int numberOfSequences = referencesDB.getNumberOfSequences();
+		final int numberOfThreads = Math.max(1, Math.min(numberOfSequences, numberOfThreads0));
+
+		int capacity = (int) Math.min(Basic.MAX_ARRAY_SIZE, Math.max(1, maxMemory / BYTES_PER_SPILLED_SEED));
+		for (int refIndex = 0; refIndex < numberOfSequences; refIndex++) {
+			final int count = getNumberOfSeedPositions(referencesDB.getSequence(refIndex));
+			if (count > capacity) {
+				System.err.printf("Memory budget too small for longest sequence, using chunks of %,d seeds%n", count);
+				capacity = count;
+			}
+		}
+
+		// key is hash value in upper 32 bits and slot in lower bits, so sorting keeps the order of references and positions
+		final long[] keys = new long[capacity];
+		// value is reference index in upper 32 bits and position in lower bits
+		final long[] values = new long[capacity];
+
+		final var spillFiles = new ArrayList<File>();
+		final long[] countLowComplexitySeeds = new long[numberOfThreads];
+
+		final ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		try (var progress = new ProgressPercentage("Spilling sorted seeds...", numberOfSequences)) {
+			int start = 0;
+			while (start < numberOfSequences) {
+				// determine chunk of sequences and slot of the first seed of each sequence:
+				var end = start;
+				var numberOfSlots = 0;
+				while (end < numberOfSequences && (long) numberOfSlots + getNumberOfSeedPositions(referencesDB.getSequence(end)) <= capacity) {
+					numberOfSlots += getNumberOfSeedPositions(referencesDB.getSequence(end));
+					end++;
+				}
+				final int chunkStart = start;
+				final int chunkEnd = end;
+				final int[] firstSlot = new int[chunkEnd - chunkStart];
+				for (int refIndex = chunkStart, slot = 0; refIndex < chunkEnd; refIndex++) {
+					firstSlot[refIndex - chunkStart] = slot;
+					slot += getNumberOfSeedPositions(referencesDB.getSequence(refIndex));
+				}
+
+				final CountDownLatch countDownLatch = new CountDownLatch(numberOfThreads);
+				for (int i = 0; i < numberOfThreads; i++) {
+					final int threadNumber = i;
+					executor.execute(() -> {
+						try {
+							final byte[] seedBytes = seedShape.createBuffer();
+							for (int refIndex = chunkStart + threadNumber; refIndex < chunkEnd; refIndex += numberOfThreads) {
+								final byte[] sequence = referencesDB.getSequence(refIndex);
+								final int top = sequence.length - seedShape.getLength() + 1;
+								int slot = firstSlot[refIndex - chunkStart];
+								for (int pos = 0; pos < top; pos += stepSize, slot++) {
+									seedShape.getSeed(sequence, pos, seedBytes);
+									if (!Utilities.hasAtMostTwoLetters(seedBytes)) {
+										keys[slot] = ((long) getHash(seedBytes) << 32) | slot;
+										values[slot] = ((long) refIndex << 32) | pos;
+									} else {
+										keys[slot] = Long.MAX_VALUE; // sorts to the end of the chunk
+										countLowComplexitySeeds[threadNumber]++;
+									}
+								}
+							}
+						} finally {
+							countDownLatch.countDown();
+						}
+					});
+				}
+				try {
+					countDownLatch.await();
+				} catch (InterruptedException e) {
+					Basic.caught(e);
+				}
+
+				Arrays.parallelSort(keys, 0, numberOfSlots);
+
+				final var spillFile = new File(tableDataFile.getPath() + ".spill" + spillFiles.size());
+				spillFiles.add(spillFile);
+				try (var outs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile), SPILL_BUFFER_SIZE))) {
+					for (int i = 0; i < numberOfSlots && keys[i] != Long.MAX_VALUE; i++) {
+						outs.writeInt((int) (keys[i] >>> 32));
+						outs.writeLong(values[(int) keys[i]]);
+					}
+				}
+				start = end;
+				progress.setProgress(start);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		System.err.printf("Number of low-complexity seeds skipped: %,d%n", CollectionUtils.getSum(countLowComplexitySeeds));
+		System.err.printf("Number of spill files: %,d%n", spillFiles.size());
+		return spillFiles;
+	}
+
+	/**
+	 * k-way merge of the spill files into the table index and table data files. Rows are dropped, stored as singletons
+	 * or written to the table data exactly as in the in-memory build
+	 */
+	private void mergeSpillFiles(final ArrayList<File> spillFiles, final File tableIndexFile, final File tableDataFile, long maxMemory) throws IOException {
+		final int bufferSize = (int) Math.max(SPILL_BUFFER_SIZE, Math.min(64 * SPILL_BUFFER_SIZE, maxMemory / Math.max(1, 2L * spillFiles.size())));
+
+		final PriorityQueue<SpillReader> queue = new PriorityQueue<>();
+		try {
+			for (var i = 0; i < spillFiles.size(); i++) {
+				final var reader = new SpillReader(spillFiles.get(i), i, bufferSize);
+				if (reader.next())
+					queue.add(reader);
+				else
+					reader.close();
+			}
+
+			final int[] row = new int[2 * maxHitsPerHash];
+			final Random random = new Random();
+
+			long totalKeys = 0;
+			long totalSeeds = 0;
+			long totalDropped = 0;
+
+			try (var indexWriter = new OutputWriter(tableIndexFile);
+				 var dataWriter = new OutputWriter(tableDataFile);
+				 var progress = new ProgressPercentage("Merging spill files...", tableSize)) {
+				dataWriter.writeInt(0); // locations start at 1
+				long location = 1;
+				long index = 0;
+				while (!queue.isEmpty()) {
+					final int hashValue = queue.peek().hashValue;
+					for (; index < hashValue; index++) {
+						indexWriter.writeLong(0L);
+					}
+
+					int count = 0;
+					while (!queue.isEmpty() && queue.peek().hashValue == hashValue) {
+						final SpillReader reader = queue.poll();
+						if (count < maxHitsPerHash) {
+							row[2 * count] = (int) (reader.value >>> 32);
+							row[2 * count + 1] = (int) reader.value;
+						}
+						count++;
+						if (reader.next())
+							queue.add(reader);
+						else
+							reader.close();
+					}
+					theSize += count;
+
+					if (count > maxHitsPerHash) {
+						indexWriter.writeLong(0L);
+						totalDropped += count;
+					} else if (count == 1) {
+						indexWriter.writeLong(-(((long) row[0] << 32) | row[1]));
+						totalSeeds++;
+						totalKeys++;
+					} else {
+						indexWriter.writeLong(location);
+						final int size = 2 * count;
+						if (size > 2) {
+							random.setSeed(index * index);  // use location in hash table as seed.
+							Utilities.randomizePairs(row, 0, size, random);
+						}
+						dataWriter.writeInt(size);
+						for (var i = 0; i < size; i++) {
+							dataWriter.writeInt(row[i]);
+						}
+						location += size + 1;
+						totalSeeds += count;
+						totalKeys++;
+					}
+					index++;
+					progress.setProgress(index);
+				}
+				for (; index < tableSize; index++) {
+					indexWriter.writeLong(0L);
+				}
+			}
+
+			System.err.printf("Total keys used:    %,14d%n", totalKeys);
+			System.err.printf("Total seeds matched:%,14d%n", totalSeeds);
+			System.err.printf("Total seeds dropped:%,14d%n", totalDropped);
+		} finally {
+			for (var reader : queue) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * number of positions at which a seed is taken from the given sequence
+	 */
+	private int getNumberOfSeedPositions(byte[] sequence) {
+		final int top = sequence.length - seedShape.getLength() + 1;
+		return (top <= 0 ? 0 : (top + stepSize - 1) / stepSize);
+	}
+
+	/**
+	 * reads the (hash value, reference and position) triplets of a spill file in order
+	 */
+	private static class SpillReader implements Comparable<SpillReader>, Closeable {
+		private final DataInputStream ins;
+		private final int fileNumber;
+		private long remaining;
+		private int hashValue;
+		private long value;
+
+		SpillReader(File file, int fileNumber, int bufferSize) throws IOException {
+			this.ins = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufferSize));
+			this.fileNumber = fileNumber;
+			this.remaining = file.length() / 12;
+		}
+
+		/**
+		 * advance to the next triplet
+		 *
+		 * @return false, if file is exhausted
+		 */
+		boolean next() throws IOException {
+			if (remaining == 0)
+				return false;
+			remaining--;
+			hashValue = ins.readInt();
+			value = ins.readLong();
+			return true;
+		}
+
+		/**
+		 * order by hash value and then by file, which keeps references in order
+		 */
+		@Override
+		public int compareTo(SpillReader that) {
+			if (this.hashValue != that.hashValue)
+				return Integer.compare(this.hashValue, that.hashValue);
+			return Integer.compare(this.fileNumber, that.fileNumber);
+		}
+
+		@Override
+		public void close() throws IOException {
+			ins.close();
+		}
+	}
+
 	/**
 	 * for a given key, add the reference id and sequence offset to table
 	 * uses very naive synchronization
@@ -18,6 +18,8 @@
  */
 package malt.data;
 
+import java.nio.IntBuffer;
+
 /**
  * a row of numbers that are stored in a larger array.
  * Daniel Huson, 8.2014
@@ -27,8 +29,7 @@ public class Row {
     private int size;
     private int offset;
     private int[] containingArray;
-
-    public int[] tmpArray = new int[10000]; // // todo temporary array used during implementation of memory mapped index
+    private IntBuffer containingBuffer; // used instead of containingArray when row is a view onto a mapped table
 
     /**
      * constructor
@@ -50,15 +51,16 @@ public class Row {
     }
 
     /**
-     * setting a single pair of numbers
+     * Set the row to a read-only view of the given buffer, without copying. buffer[offset] must contain size
      *
-	 */
-    public void setPair(int refId, int position) {
-        size = 2;
-        offset = 0;
-        tmpArray[0] = refId;
-        tmpArray[1] = position;
-        containingArray = tmpArray;
+     * @param buffer buffer containing size followed by entries
+     * @param offset location of size entry in buffer
+     */
+    public void setView(IntBuffer buffer, int offset) {
+        this.size = buffer.get(offset);
+        this.containingArray = null;
+        this.containingBuffer = buffer;
+        this.offset = offset + 1;
     }
 
     /**
@@ -83,7 +85,10 @@ public class Row {
      * @return item
      */
     public int get(int index) {
-        return containingArray[offset + index];
+        if (containingArray != null)
+            return containingArray[offset + index];
+        else
+            return containingBuffer.get(offset + index);
     }
 
     /**
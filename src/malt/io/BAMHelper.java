@@ -0,0 +1,413 @@
+/*
+ * BAMHelper.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.io;
+
+import jloda.util.ReusableByteBuffer;
+import malt.data.DNA5;
+import malt.data.ReferencesDBAccess;
+import malt.util.Utilities;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * helps to create BAM records from alignments and to write a BAM file.
+ * An alignment is first encoded as a BAM record without read name, which is added by makeRecord() when the record is output.
+ * As the set of aligned references is only known once all reads have been aligned, records refer to references by their index
+ * in the references database and writeBAMFile() maps these to the indices of the @SQ lines
+ * Daniel Huson, 10.2026
+ */
+public class BAMHelper {
+    /**
+     * size of the fixed part of a record, not including the block size
+     */
+    private static final int FIXED_SIZE = 32;
+
+    private static final int CIGAR_M = 0;
+    private static final int CIGAR_I = 1;
+    private static final int CIGAR_D = 2;
+    private static final int CIGAR_S = 4;
+    private static final int CIGAR_H = 5;
+
+    /**
+     * four-bit encoding of nucleotides, using the alphabet =ACMGRSVTWYHKDBN
+     */
+    private static final byte[] NUCLEOTIDE_CODE = new byte[256];
+
+    static {
+        final String alphabet = "=ACMGRSVTWYHKDBN";
+        for (int i = 0; i < NUCLEOTIDE_CODE.length; i++)
+            NUCLEOTIDE_CODE[i] = 15;
+        for (int i = 0; i < alphabet.length(); i++) {
+            NUCLEOTIDE_CODE[alphabet.charAt(i)] = (byte) i;
+            NUCLEOTIDE_CODE[Character.toLowerCase(alphabet.charAt(i))] = (byte) i;
+        }
+    }
+
+    /**
+     * writes a BlastN alignment as a BAM record without read name and without block size. The fields and tags are the same as
+     * those of the corresponding SAM line, see SAMHelper.writeSAMLine(), plus the read group tag RG:Z:1
+     */
+    public static void writeBAMRecord(final ReusableByteBuffer buffer, final byte[] querySequence, final int queryStart, final int queryEnd, final int queryLength, final byte[] alignedQuery,
+                                      final int referenceId, final int referenceStart, final int referenceEnd, final byte[] alignedReference, final int referenceLength,
+                                      final double bitScore, final int rawScore, final double expected, final float percentIdentity, final byte[] qualityValues, boolean softClipped) {
+        if (querySequence == null && softClipped)
+            softClipped = false;
+
+        final boolean reverseComplemented = ((queryStart < queryEnd) != (referenceStart < referenceEnd));
+        final int queryOffset = (reverseComplemented ? queryLength - queryEnd : queryStart);
+        final int pos = Math.min(referenceStart, referenceEnd) - 1;
+
+        // cigar operations, using the same rules as SAMHelper:
+        final int[] cigar = new int[alignedQuery.length + 2];
+        int numberOfCigarOps = 0;
+        int referenceSpan = 0;
+        {
+            int clip = (!reverseComplemented ? queryOffset : (queryLength - queryOffset - alignedQuery.length));
+            if (clip > 0)
+                cigar[numberOfCigarOps++] = (clip << 4) | (softClipped ? CIGAR_S : CIGAR_H);
+            int state = CIGAR_M;
+            int count = 0;
+            final int step = (reverseComplemented ? -1 : 1);
+            for (int i = (reverseComplemented ? alignedQuery.length - 1 : 0); i >= 0 && i < alignedQuery.length; i += step) {
+                final int next;
+                if (alignedQuery[i] == '-')
+                    next = CIGAR_D;
+                else if (alignedReference[i] == '-')
+                    next = CIGAR_I;
+                else // match or mismatch
+                    next = CIGAR_M;
+                if (state == next) {
+                    count++;
+                } else {
+                    if (count > 0) {
+                        cigar[numberOfCigarOps++] = (count << 4) | state;
+                        if (state != CIGAR_I)
+                            referenceSpan += count;
+                    }
+                    state = next;
+                    count = 1;
+                }
+            }
+            if (count > 0) {
+                cigar[numberOfCigarOps++] = (count << 4) | state;
+                if (state != CIGAR_I)
+                    referenceSpan += count;
+            }
+            clip = (reverseComplemented ? queryOffset : (queryLength - queryOffset - alignedQuery.length));
+            if (clip > 0)
+                cigar[numberOfCigarOps++] = (clip << 4) | (softClipped ? CIGAR_S : CIGAR_H);
+        }
+
+        // sequence:
+        final DNA5 dna5 = DNA5.getInstance();
+        final byte[] sequence;
+        int sequenceLength = 0;
+        if (softClipped) {
+            sequence = new byte[queryLength];
+            if (reverseComplemented) {
+                for (int i = queryLength - 1; i >= 0; i--)
+                    sequence[sequenceLength++] = dna5.getBaseComplement(querySequence[i]);
+            } else {
+                for (int i = 0; i < queryLength; i++)
+                    sequence[sequenceLength++] = querySequence[i];
+            }
+        } else {
+            sequence = new byte[alignedQuery.length];
+            if (reverseComplemented) {
+                for (int i = alignedQuery.length - 1; i >= 0; i--) {
+                    if (alignedQuery[i] != '-')
+                        sequence[sequenceLength++] = dna5.getBaseComplement(alignedQuery[i]);
+                }
+            } else {
+                for (byte a : alignedQuery) {
+                    if (a != '-')
+                        sequence[sequenceLength++] = a;
+                }
+            }
+        }
+
+        // fixed part:
+        writeInt(referenceId, buffer);
+        writeInt(pos, buffer);
+        buffer.write(0); // length of read name, set in makeRecord()
+        buffer.write(255); // mapping quality unknown
+        writeShort(computeBin(pos, pos + Math.max(1, referenceSpan)), buffer);
+        writeShort(numberOfCigarOps, buffer);
+        writeShort(reverseComplemented ? 0x10 : 0, buffer);
+        writeInt(sequenceLength, buffer);
+        writeInt(-1, buffer); // next reference
+        writeInt(-1, buffer); // next position
+        writeInt(0, buffer); // template length
+
+        for (int i = 0; i < numberOfCigarOps; i++)
+            writeInt(cigar[i], buffer);
+
+        for (int i = 0; i < sequenceLength; i += 2) {
+            final int high = NUCLEOTIDE_CODE[sequence[i] & 0xff];
+            final int low = (i + 1 < sequenceLength ? NUCLEOTIDE_CODE[sequence[i + 1] & 0xff] : 0);
+            buffer.write((high << 4) | low);
+        }
+
+        // qualities, in the same order as in SAMHelper:
+        final int qualityLength = (qualityValues == null ? 0 : (softClipped ? queryLength : queryEnd - queryStart));
+        if (qualityLength != sequenceLength) {
+            for (int i = 0; i < sequenceLength; i++)
+                buffer.write(0xff);
+        } else if (softClipped) {
+            if (reverseComplemented) {
+                for (int i = queryLength - 1; i >= 0; i--)
+                    buffer.write(qualityValues[i] - 33);
+            } else {
+                for (int i = 0; i < queryLength; i++)
+                    buffer.write(qualityValues[i] - 33);
+            }
+        } else {
+            if (reverseComplemented) {
+                for (int i = queryStart; i < queryEnd; i++)
+                    buffer.write(qualityValues[queryLength - (i + 1)] - 33);
+            } else {
+                for (int i = queryStart; i < queryEnd; i++)
+                    buffer.write(qualityValues[i] - 33);
+            }
+        }
+
+        // tags:
+        writeIntTag('A', 'S', (int) Math.round(bitScore), buffer);
+        writeIntTag('N', 'M', computeEditDistance(alignedQuery, alignedReference), buffer);
+        writeIntTag('Z', 'L', referenceLength, buffer);
+        writeIntTag('Z', 'R', rawScore, buffer);
+        buffer.write('Z');
+        buffer.write('E');
+        buffer.write('f');
+        writeInt(Float.floatToIntBits((float) expected), buffer);
+        writeIntTag('Z', 'I', Math.round(percentIdentity), buffer);
+        buffer.write('M');
+        buffer.write('D');
+        buffer.write('Z');
+        writeMDString(alignedQuery, alignedReference, reverseComplemented, buffer);
+        buffer.write(0);
+        buffer.write('R');
+        buffer.write('G');
+        buffer.write('Z');
+        buffer.write('1');
+        buffer.write(0);
+    }
+
+    /**
+     * makes a complete BAM record, including block size, from a record without read name and the read name
+     *
+     * @param queryNamePlusTab read name, followed by a tab, as produced by BlastTextHelper.getQueryNamePlusTab()
+     * @return BAM record
+     */
+    public static byte[] makeRecord(byte[] queryNamePlusTab, byte[] recordWithoutName) {
+        final int nameLength = Math.min(254, queryNamePlusTab.length - 1);
+        final int blockSize = recordWithoutName.length + nameLength + 1;
+        final byte[] record = new byte[4 + blockSize];
+        writeInt(record, 0, blockSize);
+        System.arraycopy(recordWithoutName, 0, record, 4, FIXED_SIZE);
+        record[4 + 8] = (byte) (nameLength + 1);
+        System.arraycopy(queryNamePlusTab, 0, record, 4 + FIXED_SIZE, nameLength);
+        record[4 + FIXED_SIZE + nameLength] = 0;
+        System.arraycopy(recordWithoutName, FIXED_SIZE, record, 4 + FIXED_SIZE + nameLength + 1, recordWithoutName.length - FIXED_SIZE);
+        return record;
+    }
+
+    /**
+     * writes a BAM file consisting of the header, a reference entry for each aligned reference, and all records found in the
+     * records file, replacing references database indices by reference entry indices. Uses parallel BGZF compression
+     *
+     * @param samHeader          SAM header text, @SQ lines are appended
+     * @param alignedReferences  indices of all references that occur in the records
+     * @param recordsFile        file containing complete records, as produced by makeRecord(), possibly gzip compressed
+     * @param compressionThreads number of compression and decompression threads
+     */
+    public static void writeBAMFile(String fileName, String samHeader, BitSet alignedReferences, ReferencesDBAccess referencesDB, String recordsFile, int compressionThreads) throws IOException {
+        final int numberOfReferences = alignedReferences.cardinality();
+        final byte[][] names = new byte[numberOfReferences][];
+        final int[] lengths = new int[numberOfReferences];
+        final int[] index2entry = new int[Math.max(0, alignedReferences.length())];
+
+        final StringBuilder headerText = new StringBuilder(samHeader);
+        {
+            int entry = 0;
+            for (int r = alignedReferences.nextSetBit(0); r != -1; r = alignedReferences.nextSetBit(r + 1)) {
+                names[entry] = Utilities.getFirstWordSkipLeadingGreaterSign(referencesDB.getHeader(r));
+                lengths[entry] = referencesDB.getSequenceLength(r);
+                headerText.append("@SQ\tSN:").append(new String(names[entry])).append("\tLN:").append(lengths[entry]).append('\n');
+                index2entry[r] = entry++;
+            }
+        }
+
+        try (OutputStream outs = new BufferedOutputStream(new BGZFOutputStream(fileName.equalsIgnoreCase("stdout") ? new NonClosingOutputStream(System.out) : new FileOutputStream(fileName), compressionThreads), 1024 * 1024);
+             InputStream ins = new BufferedInputStream(ParallelGZIPInputStream.open(recordsFile, compressionThreads), 1024 * 1024)) {
+            final byte[] text = headerText.toString().getBytes();
+            final byte[] bytes = new byte[12];
+            outs.write(new byte[]{'B', 'A', 'M', 1});
+            writeInt(bytes, 0, text.length);
+            outs.write(bytes, 0, 4);
+            outs.write(text);
+            writeInt(bytes, 0, numberOfReferences);
+            outs.write(bytes, 0, 4);
+            for (int entry = 0; entry < numberOfReferences; entry++) {
+                writeInt(bytes, 0, names[entry].length + 1);
+                outs.write(bytes, 0, 4);
+                outs.write(names[entry]);
+                outs.write(0);
+                writeInt(bytes, 0, lengths[entry]);
+                outs.write(bytes, 0, 4);
+            }
+
+            // copy records, replacing the reference indices:
+            byte[] record = new byte[10000];
+            while (ins.readNBytes(bytes, 0, 8) == 8) {
+                final int blockSize = readInt(bytes, 0);
+                writeInt(bytes, 4, index2entry[readInt(bytes, 4)]);
+                outs.write(bytes, 0, 8);
+                if (blockSize - 4 > record.length)
+                    record = new byte[2 * blockSize];
+                if (ins.readNBytes(record, 0, blockSize - 4) != blockSize - 4)
+                    throw new IOException("Truncated BAM record in file: " + recordsFile);
+                outs.write(record, 0, blockSize - 4);
+            }
+        }
+    }
+
+    /**
+     * write the MD string, as in SAMHelper
+     */
+    private static void writeMDString(final byte[] alignedQuery, final byte[] alignedReference, final boolean reverseComplemented, final ReusableByteBuffer buffer) {
+        final DNA5 dna5 = DNA5.getInstance();
+        int countMatches = 0;
+        boolean inDeletion = false;
+        final int step = (reverseComplemented ? -1 : 1);
+        for (int i = (reverseComplemented ? alignedQuery.length - 1 : 0); i >= 0 && i < alignedQuery.length; i += step) {
+            if (alignedQuery[i] == '-') { // gap in query
+                if (countMatches > 0) {
+                    SAMHelper.writeInt(countMatches, buffer);
+                    countMatches = 0;
+                }
+                if (!inDeletion) {
+                    buffer.write('^');
+                    inDeletion = true;
+                }
+                buffer.write(reverseComplemented ? dna5.getBaseComplement(alignedReference[i]) : alignedReference[i]);
+            } else if (alignedReference[i] != '-') {  // match or mismatch
+                if (alignedQuery[i] == alignedReference[i]) {
+                    countMatches++;
+                } else {
+                    if (inDeletion)
+                        buffer.write('0');
+                    if (countMatches > 0) {
+                        SAMHelper.writeInt(countMatches, buffer);
+                        countMatches = 0;
+                    }
+                    buffer.write(reverseComplemented ? dna5.getBaseComplement(alignedReference[i]) : alignedReference[i]);
+                }
+                if (inDeletion)
+                    inDeletion = false;
+            }
+        }
+        if (countMatches > 0)
+            SAMHelper.writeInt(countMatches, buffer);
+        else if (inDeletion)
+            buffer.write('0');
+    }
+
+    /**
+     * compute edit distance from alignment
+     */
+    private static int computeEditDistance(byte[] alignedQuery, byte[] alignedReference) {
+        int distance = 0;
+        for (int i = 0; i < alignedQuery.length; i++) {
+            if (alignedQuery[i] == '-' || alignedReference[i] == '-' || alignedQuery[i] != alignedReference[i])
+                distance++;
+        }
+        return distance;
+    }
+
+    /**
+     * computes the BAI bin of a region, as given in the SAM specification
+     *
+     * @param end end position (exclusive)
+     */
+    static int computeBin(int begin, int end) {
+        --end;
+        if (begin >> 14 == end >> 14)
+            return ((1 << 15) - 1) / 7 + (begin >> 14);
+        if (begin >> 17 == end >> 17)
+            return ((1 << 12) - 1) / 7 + (begin >> 17);
+        if (begin >> 20 == end >> 20)
+            return ((1 << 9) - 1) / 7 + (begin >> 20);
+        if (begin >> 23 == end >> 23)
+            return ((1 << 6) - 1) / 7 + (begin >> 23);
+        if (begin >> 26 == end >> 26)
+            return ((1 << 3) - 1) / 7 + (begin >> 26);
+        return 0;
+    }
+
+    private static void writeIntTag(char a, char b, int value, ReusableByteBuffer buffer) {
+        buffer.write(a);
+        buffer.write(b);
+        buffer.write('i');
+        writeInt(value, buffer);
+    }
+
+    private static void writeShort(int value, ReusableByteBuffer buffer) {
+        buffer.write(value);
+        buffer.write(value >>> 8);
+    }
+
+    private static void writeInt(int value, ReusableByteBuffer buffer) {
+        buffer.write(value);
+        buffer.write(value >>> 8);
+        buffer.write(value >>> 16);
+        buffer.write(value >>> 24);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        bytes[offset + 2] = (byte) (value >>> 16);
+        bytes[offset + 3] = (byte) (value >>> 24);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * used to write to stdout without closing it
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream outs) {
+            super(outs);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
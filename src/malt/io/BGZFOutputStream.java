@@ -0,0 +1,271 @@
+/*
+ * BGZFOutputStream.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.io;
+
+import jloda.util.FileUtils;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * output stream that writes block-gzip (BGZF) format, compressing independent blocks of at most 64kb in parallel.
+ * The output is a sequence of gzip members and so can be read as normal gzip, while BGZF SAM output can also be indexed
+ * Daniel Huson, 10.2026
+ */
+public class BGZFOutputStream extends OutputStream {
+    /**
+     * uncompressed size of a block, as used by samtools
+     */
+    public static final int BLOCK_SIZE = 0xff00;
+    private static final int MAX_COMPRESSED_BLOCK_SIZE = 65536;
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+
+    /**
+     * empty block that marks the end of a BGZF file
+     */
+    private static final byte[] EOF_BLOCK = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 0x42, 0x43, 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    private static final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Deflater> storer = ThreadLocal.withInitial(() -> new Deflater(Deflater.NO_COMPRESSION, true));
+
+    private final OutputStream outs;
+    private final boolean parallel;
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int maxPending;
+
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int size = 0;
+    private boolean closed = false;
+
+    /**
+     * constructor
+     *
+     * @param numberOfThreads number of threads used for compression, if 1, compresses in the calling thread. Otherwise, blocks are
+     *                        compressed by the shared pool, whose size is set by setNumberOfSharedThreads(), and at most 4*numberOfThreads
+     *                        blocks of this stream are in progress
+     */
+    public BGZFOutputStream(OutputStream outs, int numberOfThreads) {
+        this.outs = outs;
+        parallel = (numberOfThreads > 1);
+        maxPending = (parallel ? 4 * numberOfThreads : 0);
+    }
+
+    /**
+     * gets the pool of daemon threads shared by all block-gzip streams for compressing and decompressing blocks, so that the number
+     * of threads doesn't grow with the number of open streams. It has one thread per available processor, unless set otherwise
+     */
+    static ExecutorService getSharedExecutor() {
+        return SharedExecutorHolder.executor;
+    }
+
+    /**
+     * sets the number of threads in the pool shared by all block-gzip streams. This bounds the number of threads that compress
+     * and decompress blocks at the same time, over all open streams
+     */
+    public static void setNumberOfSharedThreads(int numberOfThreads) {
+        final ThreadPoolExecutor executor = SharedExecutorHolder.executor;
+        numberOfThreads = Math.max(1, numberOfThreads);
+        synchronized (executor) {
+            if (numberOfThreads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(numberOfThreads);
+                executor.setCorePoolSize(numberOfThreads);
+            } else {
+                executor.setCorePoolSize(numberOfThreads);
+                executor.setMaximumPoolSize(numberOfThreads);
+            }
+        }
+    }
+
+    private static class SharedExecutorHolder {
+        private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(),
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "BGZF");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * gets an output stream for the named file. Uses parallel BGZF compression if the file name ends on .gz
+     *
+     * @param numberOfThreads number of threads used for compression, see constructor
+     */
+    public static OutputStream getOutputStream(String fileName, int numberOfThreads) throws IOException {
+        if (fileName.endsWith(".gz"))
+            return new BGZFOutputStream(new FileOutputStream(fileName), numberOfThreads);
+        else
+            return FileUtils.getOutputStreamPossiblyZIPorGZIP(fileName);
+    }
+
+    /**
+     * writes data as a sequence of BGZF blocks, without end-of-file block, so that another BGZF file can be appended
+     */
+    public static void writeBlocks(byte[] data, OutputStream outs) throws IOException {
+        for (int offset = 0; offset < data.length; offset += BLOCK_SIZE) {
+            final int length = Math.min(BLOCK_SIZE, data.length - offset);
+            final byte[] block = new byte[length];
+            System.arraycopy(data, offset, block, 0, length);
+            outs.write(compressBlock(block, length));
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (size == BLOCK_SIZE)
+            submitBlock();
+        buffer[size++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (size == BLOCK_SIZE)
+                submitBlock();
+            final int count = Math.min(length, BLOCK_SIZE - size);
+            System.arraycopy(bytes, offset, buffer, size, count);
+            size += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * compresses all buffered data and writes it. Note that this ends the current block
+     */
+    @Override
+    public void flush() throws IOException {
+        if (size > 0)
+            submitBlock();
+        while (!pending.isEmpty())
+            writeNextBlock();
+        outs.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                flush();
+                outs.write(EOF_BLOCK);
+            } finally {
+                for (Future<byte[]> future : pending)
+                    future.cancel(true);
+                pending.clear();
+                outs.close();
+            }
+        }
+    }
+
+    /**
+     * hand the current block to a compression thread, or compress it directly
+     */
+    private void submitBlock() throws IOException {
+        final byte[] block = buffer;
+        final int length = size;
+        if (!parallel) {
+            outs.write(compressBlock(block, length));
+            size = 0;
+        } else {
+            while (pending.size() >= maxPending)
+                writeNextBlock();
+            pending.add(getSharedExecutor().submit(() -> compressBlock(block, length)));
+            buffer = new byte[BLOCK_SIZE];
+            size = 0;
+        }
+    }
+
+    /**
+     * wait for the oldest block to be compressed and write it
+     */
+    private void writeNextBlock() throws IOException {
+        try {
+            outs.write(pending.remove().get());
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * compresses a block into a BGZF block, that is, a gzip member with a BC extra field containing the block size
+     *
+     * @return compressed block
+     */
+    static byte[] compressBlock(byte[] data, int length) {
+        final byte[] output = new byte[MAX_COMPRESSED_BLOCK_SIZE];
+        int compressedSize = deflate(deflater.get(), data, length, output);
+        if (compressedSize < 0) // doesn't fit, store uncompressed
+            compressedSize = deflate(storer.get(), data, length, output);
+        final int blockSize = HEADER_SIZE + compressedSize + FOOTER_SIZE;
+
+        // header:
+        output[0] = 0x1f;
+        output[1] = (byte) 0x8b;
+        output[2] = 8; // deflate
+        output[3] = 4; // FEXTRA
+        output[4] = output[5] = output[6] = output[7] = 0; // modification time
+        output[8] = 0; // extra flags
+        output[9] = (byte) 0xff; // unknown OS
+        writeShort(output, 10, 6); // length of extra field
+        output[12] = 'B';
+        output[13] = 'C';
+        writeShort(output, 14, 2);
+        writeShort(output, 16, blockSize - 1);
+
+        // footer:
+        final CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, length);
+        writeInt(output, HEADER_SIZE + compressedSize, (int) crc32.getValue());
+        writeInt(output, HEADER_SIZE + compressedSize + 4, length);
+
+        final byte[] result = new byte[blockSize];
+        System.arraycopy(output, 0, result, 0, blockSize);
+        return result;
+    }
+
+    /**
+     * deflate data into the output array after the header
+     *
+     * @return compressed size, or -1, if the result doesn't fit into a BGZF block
+     */
+    private static int deflate(Deflater deflater, byte[] data, int length, byte[] output) {
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        final int available = MAX_COMPRESSED_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE;
+        final int compressedSize = deflater.deflate(output, HEADER_SIZE, available);
+        return (deflater.finished() ? compressedSize : -1);
+    }
+
+    private static void writeShort(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        writeShort(bytes, offset, value);
+        writeShort(bytes, offset + 2, value >>> 16);
+    }
+}
@@ -20,31 +20,67 @@ package malt.io;
 
 import jloda.util.FileUtils;
 import jloda.util.progress.ProgressPercentage;
-import malt.data.DNA5;
 import malt.data.IAlphabet;
 
 import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.locks.ReentrantLock;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
 
 /**
  * Reads in a multifastA (or fastQ) file and places all  headers and sequences in byte arrays. In addition, the headers and sequences are 0-terminated
+ * A dedicated reader thread splits the input into batches of complete records and numbers them. Worker threads take
+ * whole batches and parse and normalize their records without any shared lock, so ids are deterministic.
+ * An uncompressed file is memory-mapped in large windows, so batches are slices of the mapped file.
+ * Paired reads are given either as two files that are read in lockstep, or as one interleaved file. Mates are numbered
+ * consecutively and a batch always contains whole pairs, so both mates of a pair are parsed by the same thread
  * Daniel Huson, 8.2014
  */
 public class FastAReader {
-    final public static int BUFFER_SIZE = 8192;
+    final public static int BUFFER_SIZE = 1024 * 1024;
+    /**
+     * maximum number of records in a batch. A batch is processed by one thread, so output writers must allow
+     * at least this many ranks per thread to be in progress, see FileWriterRanked
+     */
+    final public static int MAX_RECORDS_PER_BATCH = 512;
+    private final static int QUEUE_SIZE = 256;
+    /**
+     * size of the windows in which an uncompressed file is mapped
+     */
+    final public static int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final long NEW_LINES = '\n' * ONES;
+
+    private final static Batch END = new Batch(null, 0, 0, null, 0, 0, 0, 0);
 
     private final IAlphabet alphabet;
+    private final byte[] normalized = new byte[256];
+    private final boolean[] isNormalizable = new boolean[256];
+    private final boolean[] isWhiteSpace = new boolean[256];
 
-    private long position = 0;
+    private volatile long position = 0;
     private long maxProgress = 0;
-    private int readCount = 0;
-    private final BufferedInputStream inputStream;
+    private final String fileName;
+    private final Source source;
+    private final Source mateSource; // second file of paired reads, or null
+    private final boolean interleaved;
     private boolean isFastQ = false;
 
     private final ProgressPercentage progress;
-    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ArrayBlockingQueue<Batch> batches = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final ThreadLocal<Cursor> cursors = ThreadLocal.withInitial(Cursor::new);
+    private final Thread readerThread;
+    private volatile IOException exception;
 
     /**
      * constructor
@@ -59,9 +95,41 @@ public class FastAReader {
      *
 	 */
     public FastAReader(final String fileName, final IAlphabet alphabet, final ProgressPercentage progress) throws IOException {
+        this(fileName, alphabet, progress, 1);
+    }
+
+    /**
+     * constructor
+     *
+     * @param decompressionThreads number of threads used to decompress block-gzipped input
+	 */
+    public FastAReader(final String fileName, final IAlphabet alphabet, final ProgressPercentage progress, final int decompressionThreads) throws IOException {
+        this(fileName, null, false, alphabet, progress, decompressionThreads);
+    }
+
+    /**
+     * constructor
+     *
+     * @param mateFileName         file containing the mates of the reads in fileName, or null
+     * @param interleaved          file contains paired reads, each followed by its mate
+     * @param decompressionThreads number of threads used to decompress block-gzipped input
+	 */
+    public FastAReader(final String fileName, final String mateFileName, final boolean interleaved, final IAlphabet alphabet, final ProgressPercentage progress, final int decompressionThreads) throws IOException {
+        if (mateFileName != null && interleaved)
+            throw new IOException("Paired reads must be given either in two files or in one interleaved file, not both");
+        this.fileName = fileName;
+        this.interleaved = interleaved;
         this.alphabet = alphabet;
+        for (int i = 0; i < 256; i++) {
+            try {
+                normalized[i] = alphabet.getNormalized((byte) i);
+                isNormalizable[i] = true;
+            } catch (ArrayIndexOutOfBoundsException ignored) { // not covered by alphabet, fails when encountered, as before
+            }
+            isWhiteSpace[i] = Character.isWhitespace(i);
+        }
 
-		maxProgress = FileUtils.guessUncompressedSizeOfFile(fileName);
+		maxProgress = FileUtils.guessUncompressedSizeOfFile(fileName) + (mateFileName != null ? FileUtils.guessUncompressedSizeOfFile(mateFileName) : 0);
 
         this.progress = progress;
         if (progress != null) {
@@ -69,16 +137,40 @@ public class FastAReader {
             progress.setProgress(0);
         }
 
-        // determine file type:
-        {
-			InputStream tmp = new BufferedInputStream(FileUtils.getInputStreamPossiblyZIPorGZIP(fileName));
-			int value = tmp.read();
+        isFastQ = determineIsFastQ(fileName);
+        if (mateFileName != null && determineIsFastQ(mateFileName) != isFastQ)
+            throw new IOException("Paired files '" + fileName + "' and '" + mateFileName + "' must both be in FastA format or both in FastQ format");
+
+        source = openSource(fileName, decompressionThreads);
+        mateSource = (mateFileName != null ? openSource(mateFileName, decompressionThreads) : null);
+
+        readerThread = new Thread(this::readBatches, "FastAReader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * determine file type
+     *
+     * @return true, if fastQ
+     */
+    private static boolean determineIsFastQ(String fileName) throws IOException {
+        try (InputStream tmp = new BufferedInputStream(FileUtils.getInputStreamPossiblyZIPorGZIP(fileName))) {
+            final int value = tmp.read();
             if (value != '@' && value != '>')
                 throw new IOException("Input file '" + fileName + "' does not appear to be in FastA or FastQ format, as it does not start with a '>' or '@'");
-            isFastQ = (value == '@');
-            tmp.close();
+            return value == '@';
         }
-		inputStream = new BufferedInputStream(FileUtils.getInputStreamPossiblyZIPorGZIP(fileName), BUFFER_SIZE);
+    }
+
+    /**
+     * opens the input, mapping it, if it is an uncompressed file
+     */
+    private static Source openSource(String fileName, int decompressionThreads) throws IOException {
+        if (isMappable(fileName))
+            return new MappedSource(fileName);
+        else
+            return new StreamSource(ParallelGZIPInputStream.open(fileName, decompressionThreads));
     }
 
     /**
@@ -89,147 +181,378 @@ public class FastAReader {
      * @return true if read
 	 */
     public boolean readAsFastA(FastARecord fastARecord) throws IOException {
-        lock.lock();
+        final Cursor cursor = cursors.get();
+        if (cursor.batch == null || cursor.index == cursor.batch.numberOfRecords) {
+            cursor.batch = takeBatch();
+            if (cursor.batch == null)
+                return false;
+            cursor.offset = cursor.batch.start;
+            cursor.mateOffset = cursor.batch.mateStart;
+            cursor.index = 0;
+        }
+        final Batch batch = cursor.batch;
+        if (batch.mateData != null && cursor.index % 2 == 1)
+            cursor.mateOffset = parseRecord(batch.mateData, cursor.mateOffset, batch.mateLength, fastARecord);
+        else
+            cursor.offset = parseRecord(batch.data, cursor.offset, batch.length, fastARecord);
+        fastARecord.setId(batch.firstId + cursor.index++);
+        return true;
+    }
+
+    /**
+     * read the next pair of mates. As batches only contain whole pairs, the second record is always the mate of the first.
+     * The first mate has an odd id and the second mate has the next id.
+     * This method is thread safe
+     *
+     * @return true if read
+     */
+    public boolean readPair(FastARecord first, FastARecord second) throws IOException {
+        return readAsFastA(first) && readAsFastA(second);
+    }
+
+    /**
+     * does the current thread have records of its current batch that have not yet been read?
+     *
+     * @return true, if the next read by this thread will not take a new batch
+     */
+    public boolean hasBufferedRecords() {
+        final Cursor cursor = cursors.get();
+        return cursor.batch != null && cursor.index < cursor.batch.numberOfRecords;
+    }
+
+    /**
+     * takes the next batch from the queue
+     *
+     * @return batch or null, if no more input
+     */
+    private Batch takeBatch() throws IOException {
         try {
-            if (isFastQ) { // expect four lines per read
-                readHeader(fastARecord); // read header
-                if (fastARecord.getHeaderLength() == 0)
-                    return false; // done
-                fastARecord.getHeader()[0] = '>';
-                readSequence(fastARecord);
-                if (fastARecord.getSequenceLength() == 0)
-                    return false; // done
-                skipLine();
-                if (fastARecord.isWantQualityValues()) {
-                    if (readQualityValues(fastARecord) != fastARecord.sequenceLength)
-                        throw new IOException("Error reading quality values: wrong number of bytes");
-                } else
-                    skipLine();
-                fastARecord.setId(++readCount);
-                return true;
-            } else { // fastA
-                readHeader(fastARecord); // read header
-
-                byte[] sequence = fastARecord.sequence;
-                // read the sequence, which might be spread over multiple lines
-                int value;
-                int length = 0;
-                while (true) {
-                    value = inputStream.read();
-                    position++;
-                    if (Character.isWhitespace(value))
-                        continue;  // skip white space
-                    if (value == '>' || value == -1) {
-                        position += length;
-                        sequence[length] = 0;
-                        fastARecord.sequenceLength = length;
-                        if (length == 0)
-                            return false;
-                        else {
-                            fastARecord.setId(++readCount);
-                            return true;
-                        }
-                    }
-                    sequence[length++] = alphabet.getNormalized((byte) value);
-                    if (length >= sequence.length)
-                        sequence = fastARecord.sequence = grow(sequence);
-                }
+            final Batch batch = batches.take();
+            if (batch == END) {
+                batches.put(END); // let the other threads know
+                if (exception != null)
+                    throw exception;
+                return null;
             }
-        } finally {
-            if (progress != null)
-                progress.setProgress(position);
-            lock.unlock();
+            return batch;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
         }
     }
 
     /**
-     * reads the header line
-     *
-	 */
-    private void readHeader(FastARecord fastARecord) throws IOException {
-        byte[] aline = fastARecord.header;
-        int value = inputStream.read();
-        position++;
-        int length = 0;
-        while (value != '\r' && value != '\n' && value != -1) {
-            if (length == 0 && isFastQ)
-                value = '>';
-            aline[length++] = (byte) value;
-            value = inputStream.read();
-            position++;
-            if (length >= aline.length) {  // need to grow buffer
-                aline = fastARecord.header = grow(aline);
+     * runs in the reader thread: reads the input and places batches of complete records on the queue
+     */
+    private void readBatches() {
+        try {
+            final Scan scan = new Scan();
+            while (true) {
+                source.fill();
+                if (mateSource != null)
+                    mateSource.fill();
+                final boolean done = (mateSource != null ? putPairedBatches(scan) : putBatches(scan));
+                position = source.position + (mateSource != null ? mateSource.position : 0);
+                if (progress != null)
+                    progress.setProgress(position);
+                if (done)
+                    break;
+                source.advance(scan.start, scan.grow);
+                if (mateSource != null)
+                    mateSource.advance(scan.mateStart, scan.mateGrow);
             }
+        } catch (IOException ex) {
+            exception = ex;
+        } catch (InterruptedException ignored) {
+            return; // reader was closed
+        }
+        try {
+            batches.put(END);
+        } catch (InterruptedException ignored) {
         }
-        aline[length] = 0;
-        fastARecord.headerLength = length;
     }
 
     /**
-     * reads the sequence line
+     * places batches of the complete records found in the buffer of the source on the queue. For interleaved paired reads,
+     * batches contain an even number of records
      *
-	 */
-    private void readSequence(FastARecord fastARecord) throws IOException {
-        byte[] aline = fastARecord.sequence;
-        int value = inputStream.read();
-        position++;
-        int length = 0;
-        while (value != '\r' && value != '\n' && value != -1) {
-            aline[length++] = alphabet.getNormalized((byte) value);
-            value = inputStream.read();
-            position++;
-            if (length >= aline.length) {  // need to grow buffer
-                aline = fastARecord.sequence = grow(aline);
+     * @return true, if all input has been placed in batches
+     */
+    private boolean putBatches(Scan scan) throws IOException, InterruptedException {
+        int start = 0;
+        while (true) {
+            scanRecords(source, start, MAX_RECORDS_PER_BATCH, scan);
+            if (interleaved && scan.numberOfRecords % 2 == 1) {
+                if (scan.stop || source.isFinished(scan.end))
+                    throw new IOException("Interleaved file contains an odd number of reads: " + fileName);
+                scanRecords(source, start, scan.numberOfRecords - 1, scan);
+            }
+            if (scan.numberOfRecords > 0) {
+                batches.put(new Batch(source.buffer, start, scan.end, null, 0, 0, scan.nextId, scan.numberOfRecords));
+                scan.nextId += scan.numberOfRecords;
+                start = scan.end;
             }
+            scan.start = start;
+            scan.grow = (start == 0);
+            if (scan.stop || source.isFinished(start))
+                return true;
+            if (scan.numberOfRecords < MAX_RECORDS_PER_BATCH)
+                return false; // need more input to complete the next record
         }
-        aline[length] = 0;
-        fastARecord.sequenceLength = length;
     }
 
     /**
-     * reads the quality values line
+     * places batches of pairs of complete records found in the buffers of the two sources on the queue
      *
-     * @return the number of letters read
-	 */
-    private int readQualityValues(FastARecord fastARecord) throws IOException {
-        byte[] aline = fastARecord.qualityValues;
-        int value = inputStream.read();
-        position++;
-        int length = 0;
-        while (value != '\r' && value != '\n' && value != -1) {
-            aline[length++] = (byte) value;
-            value = inputStream.read();
-            position++;
-            if (length >= aline.length) {  // need to grow buffer
-                aline = fastARecord.qualityValues = grow(aline);
+     * @return true, if all input has been placed in batches
+     */
+    private boolean putPairedBatches(Scan scan) throws IOException, InterruptedException {
+        final int maxPairs = MAX_RECORDS_PER_BATCH / 2;
+        int start = 0;
+        int mateStart = 0;
+        while (true) {
+            scanRecords(source, start, maxPairs, scan);
+            final int numberOfRecords = scan.numberOfRecords;
+            final boolean stop = scan.stop;
+            int end = scan.end;
+            scanRecords(mateSource, mateStart, maxPairs, scan);
+            final int numberOfMates = scan.numberOfRecords;
+            final boolean mateStop = scan.stop;
+            int mateEnd = scan.end;
+
+            final int numberOfPairs = Math.min(numberOfRecords, numberOfMates);
+            if (numberOfRecords > numberOfPairs) {
+                scanRecords(source, start, numberOfPairs, scan);
+                end = scan.end;
+            } else if (numberOfMates > numberOfPairs) {
+                scanRecords(mateSource, mateStart, numberOfPairs, scan);
+                mateEnd = scan.end;
+            }
+
+            if (numberOfPairs > 0) {
+                batches.put(new Batch(source.buffer, start, end, mateSource.buffer, mateStart, mateEnd, scan.nextId, 2 * numberOfPairs));
+                scan.nextId += 2 * numberOfPairs;
+                start = end;
+                mateStart = mateEnd;
             }
+            scan.start = start;
+            scan.grow = (numberOfRecords == 0);
+            scan.mateStart = mateStart;
+            scan.mateGrow = (numberOfMates == 0);
+
+            final boolean finished = ((stop && numberOfRecords == numberOfPairs) || source.isFinished(start));
+            final boolean mateFinished = ((mateStop && numberOfMates == numberOfPairs) || mateSource.isFinished(mateStart));
+            if (finished && mateFinished)
+                return true;
+            if ((finished && numberOfMates > numberOfPairs) || (mateFinished && numberOfRecords > numberOfPairs))
+                throw new IOException("Paired files contain different numbers of reads, first file: " + fileName);
+            if (numberOfPairs < maxPairs)
+                return false; // need more input to complete the next pair
         }
-        aline[length] = 0;
-        return length;
     }
 
     /**
-     * grow the array
+     * determines the complete records in the buffer of the source that follow the given start position
+     */
+    private void scanRecords(Source source, int start, int maxRecords, Scan scan) {
+        if (isFastQ)
+            scanFastQ(source.buffer, start, source.length, source.eof, maxRecords, scan);
+        else
+            scanFastA(source.buffer, start, source.length, source.eof, maxRecords, scan);
+    }
+
+    /**
+     * determines the complete fastA records that follow the given start position. A record starts with a line that starts with '>'.
+     * As before, input ends at the first record that has an empty sequence
+     */
+    private void scanFastA(ByteBuffer buffer, int start, int length, boolean eof, int maxRecords, Scan scan) {
+        scan.numberOfRecords = 0;
+        scan.stop = false;
+        while (start < length && scan.numberOfRecords < maxRecords) {
+            int next = start;
+            do {
+                next = endOfLine(buffer, next, length) + 1;
+            }
+            while (next < length && buffer.get(next) != '>');
+            if (next >= length) {
+                if (!eof)
+                    break; // record might not be complete
+                next = length;
+            }
+            int pos = start;
+            while (pos < next && buffer.get(pos) != '\r' && buffer.get(pos) != '\n')
+                pos++;
+            while (pos < next && isWhiteSpace[buffer.get(pos) & 0xff])
+                pos++;
+            if (pos == next) { // empty sequence
+                scan.stop = true;
+                break;
+            }
+            scan.numberOfRecords++;
+            start = next;
+        }
+        scan.end = start;
+    }
+
+    /**
+     * determines the complete fastQ records that follow the given start position, each consisting of four lines.
+     * As before, input ends at the first record that has an empty header or sequence
+     */
+    private void scanFastQ(ByteBuffer buffer, int start, int length, boolean eof, int maxRecords, Scan scan) {
+        scan.numberOfRecords = 0;
+        scan.stop = false;
+        while (start < length && scan.numberOfRecords < maxRecords) {
+            final int headerEnd = endOfLine(buffer, start, length);
+            final int sequenceEnd = endOfLine(buffer, headerEnd + 1, length);
+            final int next = endOfLine(buffer, endOfLine(buffer, sequenceEnd + 1, length) + 1, length) + 1;
+            if (next > length && !eof)
+                break; // record might not be complete
+            if (contentLength(buffer, start, headerEnd) == 0 || contentLength(buffer, headerEnd + 1, sequenceEnd) == 0) {
+                scan.stop = true;
+                break;
+            }
+            scan.numberOfRecords++;
+            start = Math.min(next, length);
+        }
+        scan.end = start;
+    }
+
+    /**
+     * parses the record that starts at the given offset
      *
-     * @return bigger copy of array
+     * @return offset of next record
      */
-    private byte[] grow(byte[] bytes) {
-        byte[] result = new byte[Math.min(Integer.MAX_VALUE >> 1, 2 * bytes.length)];
-        System.arraycopy(bytes, 0, result, 0, bytes.length);
-        return result;
+    private int parseRecord(ByteBuffer data, int offset, int length, FastARecord fastARecord) throws IOException {
+        if (isFastQ)
+            return parseFastQ(data, offset, length, fastARecord);
+        else
+            return parseFastA(data, offset, length, fastARecord);
     }
 
     /**
-     * skip the current line
+     * parses the fastA record that starts at the given offset. Each sequence line is copied in bulk and then normalized
+     * in place, dropping white space
      *
-	 */
-    private void skipLine() throws IOException {
-        int value = inputStream.read();
-        position++;
-        while (value != '\r' && value != '\n' && value != -1) {
-            value = inputStream.read();
-            position++;
+     * @return offset of next record
+     */
+    private int parseFastA(ByteBuffer data, int offset, int length, FastARecord fastARecord) {
+        final int headerEnd = endOfLineOrReturn(data, offset, length);
+        copyHeader(data, offset, headerEnd, fastARecord);
+
+        int sequenceLength = 0;
+        int pos = headerEnd;
+        while (pos < length && !(data.get(pos) == '>' && data.get(pos - 1) == '\n')) {
+            final int end = Math.min(length, endOfLine(data, pos, length) + 1);
+            final int lineStart = sequenceLength;
+            final int lineEnd = sequenceLength + (end - pos);
+            if (lineEnd + 1 > fastARecord.sequence.length)
+                fastARecord.sequence = grow(fastARecord.sequence, lineEnd + 1);
+            final byte[] sequence = fastARecord.sequence;
+            data.get(pos, sequence, lineStart, end - pos);
+            for (int i = lineStart; i < lineEnd; i++) {
+                final int value = sequence[i] & 0xff;
+                if (!isWhiteSpace[value])
+                    sequence[sequenceLength++] = (isNormalizable[value] ? normalized[value] : alphabet.getNormalized((byte) value));
+            }
+            pos = end;
+        }
+        fastARecord.sequence[sequenceLength] = 0;
+        fastARecord.sequenceLength = sequenceLength;
+        return pos;
+    }
+
+    /**
+     * parses the fastQ record that starts at the given offset
+     *
+     * @return offset of next record
+     */
+    private int parseFastQ(ByteBuffer data, int offset, int length, FastARecord fastARecord) throws IOException {
+        final int headerEnd = endOfLine(data, offset, length);
+        copyHeader(data, offset, offset + contentLength(data, offset, headerEnd), fastARecord);
+        fastARecord.header[0] = '>';
+
+        final int sequenceStart = headerEnd + 1;
+        final int sequenceEnd = endOfLine(data, sequenceStart, length);
+        final int sequenceLength = contentLength(data, sequenceStart, sequenceEnd);
+        if (sequenceLength + 1 > fastARecord.sequence.length)
+            fastARecord.sequence = grow(fastARecord.sequence, sequenceLength + 1);
+        final byte[] sequence = fastARecord.sequence;
+        data.get(sequenceStart, sequence, 0, sequenceLength);
+        for (int i = 0; i < sequenceLength; i++) {
+            final int value = sequence[i] & 0xff;
+            sequence[i] = (isNormalizable[value] ? normalized[value] : alphabet.getNormalized((byte) value));
+        }
+        sequence[sequenceLength] = 0;
+        fastARecord.sequenceLength = sequenceLength;
+
+        final int qualityStart = endOfLine(data, sequenceEnd + 1, length) + 1;
+        final int qualityEnd = endOfLine(data, qualityStart, length);
+        if (fastARecord.isWantQualityValues()) {
+            final int qualityLength = contentLength(data, qualityStart, qualityEnd);
+            if (qualityLength != sequenceLength)
+                throw new IOException("Error reading quality values: wrong number of bytes");
+            if (qualityLength + 1 > fastARecord.qualityValues.length)
+                fastARecord.qualityValues = grow(fastARecord.qualityValues, qualityLength + 1);
+            data.get(qualityStart, fastARecord.qualityValues, 0, qualityLength);
+            fastARecord.qualityValues[qualityLength] = 0;
+        }
+        return qualityEnd + 1;
+    }
+
+    /**
+     * copies a header line into the record and 0-terminates it
+     */
+    private static void copyHeader(ByteBuffer data, int start, int end, FastARecord fastARecord) {
+        final int length = end - start;
+        if (length + 1 > fastARecord.header.length)
+            fastARecord.header = grow(fastARecord.header, length + 1);
+        data.get(start, fastARecord.header, 0, length);
+        fastARecord.header[length] = 0;
+        fastARecord.headerLength = length;
+    }
+
+    /**
+     * gets the position of the new-line that ends the line starting at the given position, or length.
+     * Tests eight bytes at a time, using the little-endian byte order of the buffer
+     */
+    private static int endOfLine(ByteBuffer data, int pos, int length) {
+        for (; pos + 8 <= length; pos += 8) {
+            final long word = data.getLong(pos) ^ NEW_LINES;
+            final long found = (word - ONES) & ~word & HIGHS;
+            if (found != 0)
+                return pos + (Long.numberOfTrailingZeros(found) >>> 3);
         }
+        while (pos < length && data.get(pos) != '\n')
+            pos++;
+        return Math.min(pos, length);
+    }
+
+    /**
+     * gets the position of the first carriage-return or new-line at or after the given position, or length
+     */
+    private static int endOfLineOrReturn(ByteBuffer data, int pos, int length) {
+        while (pos < length && data.get(pos) != '\n' && data.get(pos) != '\r')
+            pos++;
+        return pos;
+    }
+
+    /**
+     * length of line content, excluding a trailing carriage-return
+     */
+    private static int contentLength(ByteBuffer data, int start, int end) {
+        if (end > start && data.get(end - 1) == '\r')
+            end--;
+        return Math.max(0, end - start);
+    }
+
+    /**
+     * grow the array
+     *
+     * @return bigger copy of array
+     */
+    private static byte[] grow(byte[] bytes, int minLength) {
+        final byte[] result = new byte[Math.max(minLength, Math.min(Integer.MAX_VALUE >> 1, 2 * bytes.length))];
+        System.arraycopy(bytes, 0, result, 0, bytes.length);
+        return result;
     }
 
     /**
@@ -237,11 +560,27 @@ public class FastAReader {
      *
 	 */
     public void close() throws IOException {
-        inputStream.close();
+        readerThread.interrupt();
+        source.close();
+        if (mateSource != null)
+            mateSource.close();
         if (progress != null)
             progress.reportTaskCompleted();
     }
 
+    /**
+     * can the file be memory-mapped, that is, is it a regular file that is not compressed?
+     */
+    private static boolean isMappable(String fileName) throws IOException {
+        final Path path = Path.of(fileName);
+        if (!Files.isRegularFile(path))
+            return false;
+        try (InputStream ins = Files.newInputStream(path)) {
+            final int value = ins.read();
+            return value == '>' || value == '@';
+        }
+    }
+
     /**
      * gets the maximum progress value
      *
@@ -269,6 +608,15 @@ public class FastAReader {
         return isFastQ;
     }
 
+    /**
+     * are we reading paired reads?
+     *
+     * @return true, if paired reads are given in two files or in one interleaved file
+     */
+    public boolean isPaired() {
+        return mateSource != null || interleaved;
+    }
+
     /**
      * create a fastA record to be used with this reader
      *
@@ -278,12 +626,152 @@ public class FastAReader {
         return new FastARecord(initialLength, wantQualityValues);
     }
 
-    public static void main(String[] args) throws IOException {
-        FastAReader reader = new FastAReader("/Users/huson/data/ma/input/more.fna", DNA5.getInstance());
-        FastARecord fastARecord = createFastARecord(1000, false);
-        while (reader.readAsFastA(fastARecord)) {
-            System.err.print(fastARecord);
+    /**
+     * a batch of complete records, found in data between start and length. The first record has the given id, the others are numbered consecutively.
+     * For paired reads in two files, the records at odd positions are the mates, found in mateData between mateStart and mateLength
+     */
+    private static class Batch {
+        final ByteBuffer data;
+        final int start;
+        final int length;
+        final ByteBuffer mateData;
+        final int mateStart;
+        final int mateLength;
+        final int firstId;
+        final int numberOfRecords;
+
+        Batch(ByteBuffer data, int start, int length, ByteBuffer mateData, int mateStart, int mateLength, int firstId, int numberOfRecords) {
+            this.data = data;
+            this.start = start;
+            this.length = length;
+            this.mateData = mateData;
+            this.mateStart = mateStart;
+            this.mateLength = mateLength;
+            this.firstId = firstId;
+            this.numberOfRecords = numberOfRecords;
         }
     }
-}
 
+    /**
+     * the batch that a worker thread is currently parsing
+     */
+    private static class Cursor {
+        Batch batch;
+        int offset;
+        int mateOffset;
+        int index;
+    }
+
+    /**
+     * result of scanning a buffer for complete records, and where the sources must continue
+     */
+    private static class Scan {
+        int end;
+        int numberOfRecords;
+        boolean stop;
+        int nextId = 1;
+        int start;
+        boolean grow;
+        int mateStart;
+        boolean mateGrow;
+    }
+
+    /**
+     * input of the reader thread. The buffer starts with the first record that has not been placed in a batch
+     */
+    private abstract static class Source implements Closeable {
+        ByteBuffer buffer;
+        int length;
+        boolean eof;
+        long position;
+
+        /**
+         * fills the buffer with as much input as fits
+         */
+        abstract void fill() throws IOException;
+
+        /**
+         * drops the input before start, growing the buffer, if requested because it does not hold a complete record
+         */
+        abstract void advance(int start, boolean grow) throws IOException;
+
+        /**
+         * has all input been placed in batches?
+         */
+        boolean isFinished(int start) {
+            return eof && start == length;
+        }
+    }
+
+    /**
+     * reads an input stream into buffers. Batches share the buffer that they were read into, only an incomplete last
+     * record is copied to the next buffer
+     */
+    private static class StreamSource extends Source {
+        private final InputStream inputStream;
+        private byte[] array = new byte[BUFFER_SIZE];
+
+        StreamSource(InputStream inputStream) {
+            this.inputStream = inputStream;
+        }
+
+        void fill() throws IOException {
+            while (!eof && length < array.length) {
+                final int count = inputStream.read(array, length, array.length - length);
+                if (count < 0)
+                    eof = true;
+                else {
+                    length += count;
+                    position += count;
+                }
+            }
+            buffer = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void advance(int start, boolean grow) {
+            final byte[] next = new byte[grow ? 2 * array.length : array.length];
+            System.arraycopy(array, start, next, 0, length - start);
+            length -= start;
+            array = next;
+        }
+
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * maps a file in windows. Batches are slices of a window, the next window starts at the incomplete last record
+     */
+    private static class MappedSource extends Source {
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart = 0;
+        private int windowSize = WINDOW_SIZE;
+
+        MappedSource(String fileName) throws IOException {
+            channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ);
+            size = channel.size();
+        }
+
+        void fill() throws IOException {
+            length = (int) Math.min(windowSize, size - windowStart);
+            eof = (windowStart + length == size);
+            position = windowStart;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void advance(int start, boolean grow) throws IOException {
+            if (grow && !eof) { // record fills the whole window
+                if (windowSize > Integer.MAX_VALUE / 2)
+                    throw new IOException("Record too long, at file position: " + windowStart);
+                windowSize *= 2;
+            }
+            windowStart += start;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
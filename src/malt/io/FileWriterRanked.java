@@ -18,154 +18,181 @@
  */
 package malt.io;
 
-import jloda.util.Basic;
-import jloda.util.FileUtils;
-import jloda.util.StringUtils;
-
-import java.io.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.CountDownLatch;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * writes byte strings to a file in increasing order of rank
+ * writes byte strings to a file in increasing order of rank.
+ * Producers place their output in a ring buffer indexed by rank. A single writer thread takes the items out in order of rank
+ * and writes their bytes to the output stream as is, without any character encoding. The writer thread parks when the next
+ * item is not yet available, and a producer parks when its rank lies more than one window ahead of the next rank to be written
+ * (back-pressure)
  * Daniel Huson, 8.2014
  */
 public class FileWriterRanked {
-    final public static int QUEUE_LENGTH = 1000000;
+    final public static int MIN_WINDOW_SIZE = 65536;
+
+    private final static byte[][] SKIPPED = new byte[0][];
 
-    private final static OutputItem SENTINEL = new OutputItem(0, null);
+    private final int mask;
+    private final AtomicReferenceArray<byte[][]> slots;
+    private final AtomicReferenceArray<Thread> waitingProducers;
 
-    private final ArrayBlockingQueue<OutputItem> outputQueue;
-    private final ArrayBlockingQueue<OutputItem>[] threadSpecificWaitQueues;
-    private final Writer writer;
+    private final OutputStream outs;
     private final boolean isFile;
+    private final boolean binary;
     private final StringBuilder fileFooter;
 
-    private long nextRank;
-    private boolean isClosing = false;
-    private final CountDownLatch hasFinishedOutput = new CountDownLatch(1);
+    private volatile long nextRank;
+    private volatile boolean isClosing = false;
+    private volatile boolean isAborted = false;
+    private volatile IOException exception;
 
-    private int queueHighWaterMark = 0;
+    private final Thread writerThread;
 
     /**
      * constructor
      *
      * @param smallestRank value of first byte string to be written
-	 */
+     */
     public FileWriterRanked(String fileName, final int numberOfThreads, int smallestRank) throws IOException {
-        // one wait queue for each thread:
-        threadSpecificWaitQueues = new ArrayBlockingQueue[numberOfThreads];
-        for (int i = 0; i < threadSpecificWaitQueues.length; i++)
-            threadSpecificWaitQueues[i] = new ArrayBlockingQueue<>(QUEUE_LENGTH);
-        // the output queue:
-        outputQueue = new ArrayBlockingQueue<>(QUEUE_LENGTH);
-
-        // the output writer:
-        OutputStream outs;
+        this(fileName, numberOfThreads, smallestRank, numberOfThreads);
+    }
+
+    /**
+     * constructor
+     *
+     * @param smallestRank              value of first byte string to be written
+     * @param numberOfCompressionThreads number of threads used to compress output to a .gz file
+     */
+    public FileWriterRanked(String fileName, final int numberOfThreads, int smallestRank, int numberOfCompressionThreads) throws IOException {
+        this(fileName, numberOfThreads, smallestRank, numberOfCompressionThreads, false);
+    }
+
+    /**
+     * constructor
+     *
+     * @param smallestRank               value of first byte string to be written
+     * @param numberOfCompressionThreads number of threads used to compress output to a .gz file
+     * @param binary                     if true, byte strings are written as is, rather than as zero-terminated lines
+     */
+    public FileWriterRanked(String fileName, final int numberOfThreads, int smallestRank, int numberOfCompressionThreads, boolean binary) throws IOException {
+        this.binary = binary;
+        // the window must be larger than the number of ranks in progress, which is at most the number of threads times the size of a batch of reads
+        final int windowSize = Integer.highestOneBit(Math.max(MIN_WINDOW_SIZE, 4 * numberOfThreads * FastAReader.MAX_RECORDS_PER_BATCH) - 1) << 1;
+        mask = windowSize - 1;
+        slots = new AtomicReferenceArray<>(windowSize);
+        waitingProducers = new AtomicReferenceArray<>(windowSize);
+
         if (fileName == null || fileName.equalsIgnoreCase("stdout")) {
             isFile = false;
-            outs = System.out;
+            outs = new BufferedOutputStream(System.out, 1024 * 1024);
         } else {
-			isFile = true;
-			outs = FileUtils.getOutputStreamPossiblyZIPorGZIP(fileName);
+            isFile = true;
+            outs = new BufferedOutputStream(BGZFOutputStream.getOutputStream(fileName, numberOfCompressionThreads), 10 * 1024 * 1024);
         }
-        writer = new BufferedWriter(new OutputStreamWriter(outs), 10 * 1024 * 1024); // ten megabyte buffer, not sure whether this makes a difference
 
         fileFooter = new StringBuilder();
         nextRank = smallestRank;
 
-        // this thread collects output items in order from thread-specific waiting queues and places them on the output queue
-        final Thread thread1 = new Thread(() -> {
+        // this thread writes the items in order of rank
+        writerThread = new Thread(() -> {
             try {
+                long rank = nextRank;
                 while (true) {
-                    boolean allEmpty = true;
-                    for (ArrayBlockingQueue<OutputItem> queue : threadSpecificWaitQueues) {
-                        OutputItem item = queue.peek();
-                        while (item != null && item.rank == nextRank) {
-                            if (allEmpty) {
-                                allEmpty = false;
-                                if (queue.size() > queueHighWaterMark)
-                                    queueHighWaterMark = queue.size();
-                            }
-                            try {
-                                outputQueue.put(item);
-                            } catch (InterruptedException e) {
-                                Basic.caught(e);
-                            }
-                            nextRank++;
-                            item = queue.poll(); // don't use take(), don't want to block here...
-                        }
-                    }
-                    if (allEmpty) {
-                        if (isClosing) {
-                            outputQueue.put(SENTINEL);
+                    final int index = (int) (rank & mask);
+                    final byte[][] strings = slots.get(index);
+                    if (strings == null) {
+                        if ((isClosing && slots.get(index) == null) || isAborted)
                             return;
-                        } else
-                            try {
-                                Thread.sleep(1);
-                            } catch (InterruptedException e) {
-                                Basic.caught(e);
-                            }
+                        LockSupport.park(this);
+                        continue;
                     }
+                    slots.set(index, null);
+                    write(strings);
+                    nextRank = ++rank;
+                    final Thread producer = waitingProducers.getAndSet(index, null);
+                    if (producer != null)
+                        LockSupport.unpark(producer);
                 }
-            } catch (InterruptedException ex) {
-                Basic.caught(ex);
+            } catch (IOException ex) {
+                exception = ex;
+                isAborted = true; // no further output can be written, release all producers
+                releaseWaitingProducers();
             }
-        });
-        thread1.start();
+        }, "FileWriterRanked");
+        writerThread.start();
+    }
 
-        // this thread writes output to file
-        final Thread thread2 = new Thread(() -> {
-            try {
-                while (true) {
-                    OutputItem item = outputQueue.take();
-                    if (item == SENTINEL) {
-                        hasFinishedOutput.countDown();
-                        return;
-                    }
-                    byte[][] strings = item.strings;
-                    if (strings != null) {
-                        for (byte[] string : strings) {
-                            byte b = 0;
-                            for (byte aString : string) {
-                                b = aString;
-                                if (b == 0)
-                                    break; // zero-terminated byte string
-                                writer.write((char) b);
-                            }
-                            if (b != '\t') // if this ends on a tab, don't add new line, it is the query-name for BlastTab or SAM
-                                writer.write('\n');
-                        }
-                    }
-                }
-            } catch (Exception ex) {
-                Basic.caught(ex);
+    /**
+     * write the given byte strings, each up to its first 0 byte, or, if binary, as is
+     */
+    private void write(byte[][] strings) throws IOException {
+        for (byte[] string : strings) {
+            if (binary) {
+                outs.write(string);
+                continue;
             }
-        });
-        thread2.start();
+            int length = 0;
+            while (length < string.length && string[length] != 0) // zero-terminated byte string
+                length++;
+            outs.write(string, 0, length);
+            if (length < string.length || length == 0 || string[length - 1] != '\t') // if this ends on a tab, don't add new line, it is the query-name for BlastTab or SAM
+                outs.write('\n');
+        }
     }
 
     /**
-     * close
-     *
-	 */
+     * close. Must only be called once all ranks have been written or skipped. Throws the exception that stopped the writer thread, if any
+     */
     public void close() throws IOException {
         isClosing = true;
+        LockSupport.unpark(writerThread);
         try {
-            hasFinishedOutput.await();
-        } catch (InterruptedException e) {
-            Basic.caught(e);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (exception != null)
+                throw exception;
+            if (fileFooter.length() > 0)
+                outs.write(fileFooter.toString().getBytes());
+            outs.flush();
+        } finally {
+            if (isFile) {
+                try {
+                    outs.close();
+                } catch (IOException ex) {
+                    if (exception == null)
+                        throw ex;
+                }
+            }
         }
-        if (fileFooter.length() > 0)
-            writer.write(fileFooter.toString());
-        writer.flush();
-        if (isFile)
-            writer.close();
-        /*
-        if (queueHighWaterMark > 1) {
-            System.err.println("(outputQueueHighWaterMark: " + queueHighWaterMark+")");
+    }
+
+    /**
+     * abort writing, after some ranks were lost. Releases all producers waiting for lower ranks, any further output is discarded.
+     * The file must still be closed
+     */
+    public void abort() {
+        isAborted = true;
+        LockSupport.unpark(writerThread);
+        releaseWaitingProducers();
+    }
+
+    /**
+     * unpark all producers that are waiting for their rank to enter the window
+     */
+    private void releaseWaitingProducers() {
+        for (var index = 0; index < waitingProducers.length(); index++) {
+            final Thread producer = waitingProducers.getAndSet(index, null);
+            if (producer != null)
+                LockSupport.unpark(producer);
         }
-        */
     }
 
     /**
@@ -179,74 +206,58 @@ public class FileWriterRanked {
      * @param strings can be null
      */
     public void writeByRank(int threadId, long rank, byte[][] strings) {
-        try {
-            threadSpecificWaitQueues[threadId].put(new OutputItem(rank, strings));
-        } catch (InterruptedException e) {
-            Basic.caught(e);
-        }
+        put(rank, strings != null ? strings : SKIPPED);
     }
 
     /**
      * write a header and body by rank. By rank means that output is generated only when all output of lower output
      * has already been written
      * Does not make a copy of the byte arrays, so shouldn't recycle because unclear when this will be written
-     *
-	 */
+     */
     public void writeByRank(int threadId, long rank, byte[] header, byte[] body) {
-        try {
-            threadSpecificWaitQueues[threadId].put(new OutputItem(rank, new byte[][]{header, body}));
-        } catch (InterruptedException e) {
-            Basic.caught(e);
-        }
+        put(rank, new byte[][]{header, body});
     }
 
     /**
      * skip a rank
-     *
-	 */
+     */
     public void skipByRank(int threadId, int rank) {
-        try {
-            threadSpecificWaitQueues[threadId].put(new OutputItem(rank, null));
-        } catch (InterruptedException e) {
-            Basic.caught(e);
+        put(rank, SKIPPED);
+    }
+
+    /**
+     * places an item into the ring buffer, waiting while its rank lies outside of the current window
+     */
+    private void put(long rank, byte[][] strings) {
+        final int index = (int) (rank & mask);
+        if (rank - nextRank > mask) {
+            final Thread current = Thread.currentThread();
+            while (rank - nextRank > mask) {
+                if (isAborted)
+                    return;
+                final Thread other = waitingProducers.getAndSet(index, current);
+                if (other != null && other != current)
+                    LockSupport.unpark(other); // only happens if two producers wait for the same slot, other will re-register
+                if (rank - nextRank > mask && !isAborted)
+                    LockSupport.park(this);
+            }
         }
+        slots.set(index, strings);
+        if (rank == nextRank)
+            LockSupport.unpark(writerThread);
     }
 
     /**
      * write this at the top of the file
-     *
-	 */
+     */
     public void writeFirst(String string) throws IOException {
-        writer.write(string);
+        outs.write(string.getBytes());
     }
 
     /**
      * write this at the end of the file
-     *
-	 */
+     */
     public void writeLast(String string) {
         fileFooter.append(string);
     }
 }
-
-/**
- * output item consists of rank and bytes to write
- */
-class OutputItem {
-    final long rank;
-    final byte[][] strings;
-
-    OutputItem(long rank, byte[][] strings) {
-        this.rank = rank;
-        this.strings = strings;
-    }
-
-    public String toString() {
-        StringBuilder buf = new StringBuilder();
-        buf.append("rank=").append(this.rank);
-        if (strings != null) {
-			for (byte[] string : strings) buf.append(StringUtils.toString(string));
-        }
-        return buf.toString();
-    }
-}
@@ -0,0 +1,250 @@
+/*
+ * ParallelGZIPInputStream.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.io;
+
+import jloda.util.FileUtils;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * input stream that decompresses gzip input ahead of the reader.
+ * For block-gzip (BGZF) input, a reader thread reads the compressed blocks and the pool shared by all block-gzip streams inflates them.
+ * Other gzip input (including multi-member gzip, whose members can only be found by inflating) is inflated by a dedicated
+ * read-ahead thread. In both cases, decompressed chunks are passed to the reader through a bounded queue
+ * Daniel Huson, 10.2026
+ */
+public class ParallelGZIPInputStream extends InputStream {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int BGZF_HEADER_SIZE = 18;
+    private static final int BGZF_FOOTER_SIZE = 8;
+
+    private static final Future<byte[]> END = CompletableFuture.completedFuture(new byte[0]);
+
+    private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final InputStream ins;
+    private final boolean bgzf;
+    private final ArrayBlockingQueue<Future<byte[]>> chunks;
+    private final Thread readerThread;
+    private volatile IOException exception;
+
+    private byte[] chunk = new byte[0];
+    private int position = 0;
+    private boolean done = false;
+
+    /**
+     * opens a file for reading. If the file is gzip compressed, returns a stream that decompresses ahead of the reader,
+     * otherwise returns FileUtils.getInputStreamPossiblyZIPorGZIP(fileName)
+     *
+     * @param numberOfThreads number of threads used to inflate BGZF blocks, see constructor
+     */
+    public static InputStream open(String fileName, int numberOfThreads) throws IOException {
+        final byte[] header = new byte[BGZF_HEADER_SIZE];
+        final int count;
+        try (InputStream ins = new FileInputStream(fileName)) {
+            count = ins.readNBytes(header, 0, header.length);
+        } catch (FileNotFoundException ex) {
+            return FileUtils.getInputStreamPossiblyZIPorGZIP(fileName); // might be a resource or similar
+        }
+        if (count >= 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b) {
+            final boolean bgzf = (count == BGZF_HEADER_SIZE && isBGZFHeader(header));
+            return new ParallelGZIPInputStream(new BufferedInputStream(new FileInputStream(fileName), CHUNK_SIZE), bgzf, numberOfThreads);
+        } else
+            return FileUtils.getInputStreamPossiblyZIPorGZIP(fileName);
+    }
+
+    /**
+     * constructor
+     *
+     * @param bgzf            is the input block-gzip compressed?
+     * @param numberOfThreads number of threads used to inflate BGZF blocks. Blocks are inflated by the pool shared with BGZFOutputStream,
+     *                        whose size is set by BGZFOutputStream.setNumberOfSharedThreads(), and at most 8*numberOfThreads blocks of
+     *                        this stream are read ahead
+     */
+    public ParallelGZIPInputStream(InputStream ins, boolean bgzf, int numberOfThreads) {
+        this.ins = ins;
+        this.bgzf = bgzf;
+        if (bgzf) {
+            chunks = new ArrayBlockingQueue<>(8 * Math.max(1, numberOfThreads));
+            readerThread = new Thread(this::readBlocks, "ParallelGZIPInputStream-reader");
+        } else {
+            chunks = new ArrayBlockingQueue<>(16);
+            readerThread = new Thread(this::inflateAhead, "ParallelGZIPInputStream-inflater");
+        }
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * runs in the reader thread: reads BGZF blocks and submits them for inflation
+     */
+    private void readBlocks() {
+        try {
+            final byte[] header = new byte[BGZF_HEADER_SIZE];
+            while (true) {
+                final int count = ins.readNBytes(header, 0, header.length);
+                if (count == 0)
+                    break;
+                if (count != header.length || !isBGZFHeader(header))
+                    throw new IOException("Not a valid BGZF block");
+                final int blockSize = ((header[16] & 0xff) | (header[17] & 0xff) << 8) + 1;
+                final byte[] block = new byte[blockSize - BGZF_HEADER_SIZE];
+                if (ins.readNBytes(block, 0, block.length) != block.length)
+                    throw new IOException("Truncated BGZF block");
+                chunks.put(BGZFOutputStream.getSharedExecutor().submit(() -> inflateBlock(block)));
+            }
+        } catch (IOException ex) {
+            exception = ex;
+        } catch (InterruptedException ignored) {
+            return; // stream was closed
+        }
+        try {
+            chunks.put(END);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * runs in the reader thread: inflates a plain gzip stream into chunks
+     */
+    private void inflateAhead() {
+        try (InputStream gzipIns = new GZIPInputStream(ins, 65536)) {
+            while (true) {
+                final byte[] bytes = gzipIns.readNBytes(CHUNK_SIZE);
+                if (bytes.length == 0)
+                    break;
+                chunks.put(CompletableFuture.completedFuture(bytes));
+            }
+        } catch (IOException ex) {
+            exception = ex;
+        } catch (InterruptedException ignored) {
+            return; // stream was closed
+        }
+        try {
+            chunks.put(END);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    /**
+     * inflates a BGZF block, given without its header, and checks its CRC
+     *
+     * @return uncompressed data
+     */
+    private static byte[] inflateBlock(byte[] block) throws IOException {
+        final int footer = block.length - BGZF_FOOTER_SIZE;
+        final int crc = readInt(block, footer);
+        final int size = readInt(block, footer + 4);
+        final byte[] data = new byte[size];
+        final Inflater inflater = ParallelGZIPInputStream.inflater.get();
+        inflater.reset();
+        inflater.setInput(block, 0, footer);
+        try {
+            int length = 0;
+            while (length < size && !inflater.finished()) {
+                final int count = inflater.inflate(data, length, size - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                length += count;
+            }
+            if (length != size)
+                throw new IOException("Corrupt BGZF block: wrong size");
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt BGZF block: " + ex.getMessage());
+        }
+        final CRC32 crc32 = new CRC32();
+        crc32.update(data, 0, size);
+        if ((int) crc32.getValue() != crc)
+            throw new IOException("Corrupt BGZF block: CRC mismatch");
+        return data;
+    }
+
+    /**
+     * does this look like the header of a BGZF block, that is, a gzip header with a BC extra field?
+     */
+    private static boolean isBGZFHeader(byte[] header) {
+        return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8 && header[3] == 4
+                && header[10] == 6 && header[11] == 0 && header[12] == 'B' && header[13] == 'C' && header[14] == 2 && header[15] == 0;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * make the next chunk current
+     *
+     * @return false, if there is no more input
+     */
+    private boolean nextChunk() throws IOException {
+        while (!done && position == chunk.length) {
+            try {
+                final Future<byte[]> future = chunks.take();
+                if (future == END) {
+                    done = true;
+                    if (exception != null)
+                        throw exception;
+                } else {
+                    chunk = future.get();
+                    position = 0;
+                }
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            } catch (ExecutionException ex) {
+                throw (ex.getCause() instanceof IOException ioException ? ioException : new IOException(ex.getCause()));
+            }
+        }
+        return position < chunk.length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == chunk.length && !nextChunk())
+            return -1;
+        return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        if (position == chunk.length && !nextChunk())
+            return -1;
+        final int count = Math.min(length, chunk.length - position);
+        System.arraycopy(chunk, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        readerThread.interrupt();
+        if (bgzf) {
+            Future<byte[]> future;
+            while ((future = chunks.poll()) != null)
+                future.cancel(true);
+        }
+        ins.close();
+    }
+}
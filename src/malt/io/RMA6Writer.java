@@ -22,45 +22,51 @@ import jloda.util.CanceledException;
 import jloda.util.FileUtils;
 import jloda.util.NumberUtils;
 import jloda.util.StringUtils;
-import jloda.util.progress.ProgressPercentage;
 import malt.MaltOptions;
 import malt.Version;
 import malt.data.ReadMatch;
 import malt.mapping.MappingManager;
-import megan.classification.Classification;
+import malt.mapping.StreamingClassifier;
 import megan.core.ContaminantManager;
 import megan.core.Document;
 import megan.core.SyncArchiveAndDataTable;
-import megan.io.InputOutputReaderWriter;
-import megan.rma6.MatchLineRMA6;
 import megan.rma6.RMA6Connector;
 import megan.rma6.RMA6FileCreator;
 
-import java.io.IOException;
+import java.io.*;
 import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Create an RMA6 file from SAM data in Malt
  * <p>
+ * Each worker thread encodes its queries and matches into its own query blocks, without holding a lock,
+ * and only the final append to the file is serialized
+ * <p>
  * Daniel Huson, 6.2015
  */
 public class RMA6Writer {
+    private static final String NULL_DEVICE = (File.separatorChar == '\\' ? "NUL" : "/dev/null");
+
     private final RMA6FileCreator rma6FileCreator;
     private final String rma6File;
 
     private final boolean parseHeaders;
 
     private final String[] cNames;
+    private final String[] keys;
 
     private final int maxMatchesPerQuery;
     private final MaltOptions maltOptions;
 
-    private final MatchLineRMA6[] matches;
+    private final ThreadLocal<QueryBlock[]> queryBlocks; // two per thread, so that a pair of mates can be prepared
 
-    private final int[][] match2classification2id;
+    private final StreamingClassifier classifier; // assigns reads during alignment, or null
 
-    private byte[] queryText = new byte[10000];
-    private byte[] matchesText = new byte[10000];
+    private final ThreadLocal<RMA6FileCreator> sizingCreator; // per thread, used to determine the size of a first mate, or null
+    private final Queue<RMA6FileCreator> sizingCreators = new ConcurrentLinkedQueue<>();
+    private long numberOfPairs = 0;
 
     /**
      * constructor
@@ -75,44 +81,108 @@ public class RMA6Writer {
         maxMatchesPerQuery = maltOptions.getMaxAlignmentsPerQuery();
 
         cNames = MappingManager.getCNames();
-		int taxonMapperIndex = StringUtils.getIndex(Classification.Taxonomy, Arrays.asList(cNames));
-
-        matches = new MatchLineRMA6[maxMatchesPerQuery];
-        for (int i = 0; i < matches.length; i++) {
-            matches[i] = new MatchLineRMA6(cNames.length, taxonMapperIndex);
+        keys = new String[cNames.length];
+        for (var i = 0; i < cNames.length; i++) {
+            keys[i] = getKey(cNames[i]);
         }
 
-        match2classification2id = new int[maxMatchesPerQuery][cNames.length];
+        queryBlocks = ThreadLocal.withInitial(() -> new QueryBlock[]{new QueryBlock(maxMatchesPerQuery, cNames.length), new QueryBlock(maxMatchesPerQuery, cNames.length)});
+
+        classifier = (maltOptions.isStreamingLCA() ? new StreamingClassifier(maltOptions) : null);
 
         rma6FileCreator = new RMA6FileCreator(rma6File, true);
         rma6FileCreator.writeHeader(Version.SHORT_DESCRIPTION, maltOptions.getMode(), cNames, false);
 
         rma6FileCreator.startAddingQueries();
+
+        if (maltOptions.isPairedReads()) {
+            sizingCreator = ThreadLocal.withInitial(() -> {
+                try {
+                    final var creator = new RMA6FileCreator(NULL_DEVICE, true);
+                    creator.writeHeader(Version.SHORT_DESCRIPTION, maltOptions.getMode(), cNames, false);
+                    creator.startAddingQueries();
+                    sizingCreators.add(creator);
+                    return creator;
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } else
+            sizingCreator = null;
     }
 
     /**
      * process the matches associated with a given query.
      * This is used in malt1
 	 */
-    public synchronized void processMatches(String queryHeader, String querySequence, ReadMatch[] matchesArray, int numberOfMatches) throws IOException {
+    public void processMatches(String queryHeader, String querySequence, ReadMatch[] matchesArray, int numberOfMatches) throws IOException {
+        final var block = queryBlocks.get()[0];
+        prepare(block, queryHeader, querySequence, matchesArray, numberOfMatches);
+        final long uid;
+        synchronized (rma6FileCreator) {
+            uid = append(block, 0);
+        }
+        if (classifier != null)
+            classifier.add(uid, block.classIds);
+    }
+
+    /**
+     * process the matches associated with a pair of mates. The two mates are added next to each other and each is linked to
+     * the other. To link the first mate to the second one, the size of the first mate's record is determined beforehand,
+     * by encoding it with a creator of this thread that writes to the null device.
+     * Mates are not assigned by the streaming classifier, because MEGAN assigns the two mates of a pair together
+     */
+    public void processMatchesOfPair(String queryHeader, String querySequence, ReadMatch[] matchesArray, int numberOfMatches,
+                                     String mateHeader, String mateSequence, ReadMatch[] mateMatchesArray, int numberOfMateMatches) throws IOException {
+        if (classifier != null) // MaltRun refuses --streamingLCA for paired reads
+            throw new IOException("--streamingLCA: not supported with paired reads");
+        final var blocks = queryBlocks.get();
+        prepare(blocks[0], queryHeader, querySequence, matchesArray, numberOfMatches);
+        prepare(blocks[1], mateHeader, mateSequence, mateMatchesArray, numberOfMateMatches);
+        final long size = getRecordSize(blocks[0]);
+        synchronized (rma6FileCreator) {
+            final long uid = rma6FileCreator.getPosition();
+            if (append(blocks[0], uid + size) != uid || rma6FileCreator.getPosition() != uid + size)
+                throw new IOException("Failed to link paired reads: unexpected record size");
+            append(blocks[1], uid);
+            numberOfPairs++;
+        }
+    }
+
+    /**
+     * determines the number of bytes that a prepared query occupies in the file
+     */
+    private long getRecordSize(QueryBlock block) throws IOException {
+        final RMA6FileCreator creator;
+        try {
+            creator = sizingCreator.get();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        final long start = creator.getPosition();
+        creator.addQuery(block.queryText, block.queryTextLength, block.numberOfMatches, block.matchesText, block.matchesTextLength, block.match2classification2id, 0);
+        return creator.getPosition() - start;
+    }
+
+    /**
+     * encode a query and its matches, determining the class ids of all matches. Does not access the file
+     */
+    private void prepare(QueryBlock block, String queryHeader, String querySequence, ReadMatch[] matchesArray, int numberOfMatches) {
         // setup query text:
         var queryName = StringUtils.swallowLeadingGreaterSign(StringUtils.getFirstWord(queryHeader)).getBytes();
         var queryHeaderText = queryHeader.getBytes();
         var querySequenceText = querySequence.getBytes();
-        if (queryHeaderText.length + querySequenceText.length + 100 > queryText.length) {
-            queryText = new byte[100 + queryHeaderText.length + querySequenceText.length];
+        if (queryHeaderText.length + querySequenceText.length + 100 > block.queryText.length) {
+            block.queryText = new byte[100 + queryHeaderText.length + querySequenceText.length];
         }
+        final var queryText = block.queryText;
         System.arraycopy(queryHeaderText, 0, queryText, 0, queryHeaderText.length);
         var queryTextLength = queryHeaderText.length;
         queryText[queryTextLength++] = '\n';
         System.arraycopy(querySequenceText, 0, queryText, queryTextLength, querySequenceText.length);
         queryTextLength += querySequenceText.length;
         queryText[queryTextLength++] = '\n';
-
-        final var key = new String[cNames.length];
-        for (var i = 0; i < cNames.length; i++) {
-            key[i] = getKey(cNames[i]);
-        }
+        block.queryTextLength = queryTextLength;
 
         // setup matches text:
         var matchesTextLength = 0;
@@ -122,11 +192,12 @@ public class RMA6Writer {
             final var matchText = match.getRMA6Text();
 
             final var approximateLengthToAdd = matchesTextLength + matchText.length + queryName.length;
-            if (approximateLengthToAdd + 100 > matchesText.length) {
+            if (approximateLengthToAdd + 100 > block.matchesText.length) {
                 var tmp = new byte[approximateLengthToAdd + 10000];
-                System.arraycopy(matchesText, 0, tmp, 0, matchesTextLength);
-                matchesText = tmp;
+                System.arraycopy(block.matchesText, 0, tmp, 0, matchesTextLength);
+                block.matchesText = tmp;
             }
+            final var matchesText = block.matchesText;
             System.arraycopy(queryName, 0, matchesText, matchesTextLength, queryName.length);
             matchesTextLength += queryName.length;
             matchesText[matchesTextLength++] = '\t';
@@ -135,27 +206,37 @@ public class RMA6Writer {
             matchesTextLength += matchText.length;
             matchesText[matchesTextLength++] = '\n';
 
-            matches[m].setBitScore(match.getBitScore());
-            matches[m].setExpected(match.getExpected());
-            matches[m].setPercentIdentity(match.getPercentIdentity());
-
             final var refHeader = (parseHeaders ? getWordAsString(match.getRMA6Text(), 2) : null);
 
             for (var i = 0; i < cNames.length; i++) {
                 var id = 0;
                 if (parseHeaders && refHeader != null)
-                    id = parseIdInHeader(key[i], refHeader);
+                    id = parseIdInHeader(keys[i], refHeader);
                 if (id == 0) {
                     var mapping = MappingManager.getMapping(i);
                     if (mapping != null)
-                        id = MappingManager.getMapping(i).get(match.getReferenceId());
+                        id = mapping.get(match.getReferenceId());
                 }
-                match2classification2id[m][i] = id;
-                matches[m].setFId(i, id);
+                block.match2classification2id[m][i] = id;
             }
         }
+        block.matchesTextLength = matchesTextLength;
+        block.numberOfMatches = numberOfMatches;
+
+        if (classifier != null)
+            classifier.computeClassIds(matchesArray, numberOfMatches, block.match2classification2id, block.classIds);
+    }
 
-        rma6FileCreator.addQuery(queryText, queryTextLength, numberOfMatches, matchesText, matchesTextLength, match2classification2id, 0);
+    /**
+     * append a prepared query to the file. Must be called while holding the lock on rma6FileCreator
+     *
+     * @param mateUId uid of mate that has already been added, or 0
+     * @return uid of query
+     */
+    private long append(QueryBlock block, long mateUId) throws IOException {
+        final long uid = rma6FileCreator.getPosition();
+        rma6FileCreator.addQuery(block.queryText, block.queryTextLength, block.numberOfMatches, block.matchesText, block.matchesTextLength, block.match2classification2id, mateUId);
+        return uid;
     }
 
     private int parseIdInHeader(String key, String word) {
@@ -176,31 +257,23 @@ public class RMA6Writer {
             System.err.println("Finishing file: " + rma6File);
 
             rma6FileCreator.endAddingQueries();
-            rma6FileCreator.writeClassifications(new String[0], null, null);
+            if (classifier != null)
+                classifier.writeClassifications(rma6FileCreator);
+            else
+                rma6FileCreator.writeClassifications(new String[0], null, null);
             rma6FileCreator.close();
 
             final boolean pairedReads = maltOptions.isPairedReads();
-            if (pairedReads) { // update paired reads info and then run dataprocessor
-                long count = 0;
-                try (var raf = new InputOutputReaderWriter(rma6File, "rw");
-                     var it = (new RMA6Connector(rma6File)).getAllReadsIterator(0, 1000, false, false);
-                     var progress = new ProgressPercentage("Linking paired reads")) {
-                    progress.setProgress(0);
-                    progress.setProgress(it.getMaximumProgress());
-
-                    while (it.hasNext()) {
-                        final var readBlock = it.next();
-                        if (readBlock.getMateUId() > 0) {
-                            if (readBlock.getMateUId() > readBlock.getUId())
-                                throw new IOException("Mate uid=" + readBlock.getMateUId() + ": too big");
-                            raf.seek(readBlock.getMateUId());
-                            raf.writeLong(readBlock.getUId());
-                            count++;
-                        }
-                        progress.setProgress(it.getProgress());
+            if (pairedReads) {
+                for (var creator : sizingCreators) {
+                    try {
+                        creator.endAddingQueries();
+                        creator.writeClassifications(new String[0], null, null);
+                        creator.close();
+                    } catch (IOException ignored) { // only wrote to the null device
                     }
-                    System.err.printf("Number of pairs:%,14d%n", count);
                 }
+                System.err.printf("Number of pairs:%,14d%n", numberOfPairs);
             }
 
             // we need to run data processor
@@ -229,7 +302,8 @@ public class RMA6Writer {
 
             doc.getMeganFile().setFileFromExistingFile(rma6File, false);
             doc.loadMeganFile();
-            doc.processReadHits();
+            if (classifier == null) // otherwise, reads have already been assigned
+                doc.processReadHits();
 
             // update and then save auxiliary data:
             final var sampleName = FileUtils.replaceFileSuffix(FileUtils.getFileNameWithoutPath(rma6File), "");
@@ -276,4 +350,22 @@ public class RMA6Writer {
             return new String(text, start, text.length - start);
         return null;
     }
+
+    /**
+     * a query and its matches, encoded for the file by the thread that aligned the query
+     */
+    private static class QueryBlock {
+        byte[] queryText = new byte[10000];
+        int queryTextLength;
+        byte[] matchesText = new byte[10000];
+        int matchesTextLength;
+        int numberOfMatches;
+        final int[][] match2classification2id;
+        final int[] classIds; // used by streaming classifier
+
+        QueryBlock(int maxMatchesPerQuery, int numberOfClassifications) {
+            match2classification2id = new int[maxMatchesPerQuery][numberOfClassifications];
+            classIds = new int[numberOfClassifications];
+        }
+    }
 }
@@ -19,8 +19,17 @@
 package malt.io;
 
 import jloda.seq.BlastMode;
+import jloda.util.ReusableByteBuffer;
 import malt.data.DNA5;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
 /**
  * helps to create a SAM line from an alignment
  * Daniel Huson, 8.2014
@@ -33,6 +42,11 @@ public class SAMHelper {
     private static final String FILE_HEADER_BLASTX_TEMPLATE = "@HD\tVN:1.5\tSO:unsorted\tGO:query\n@PG\tID:1\tPN:MALT\tCL:%s\tDS:BlastX\n@RG\tID:1\tPL:unknown\tSM:unknown\n@CO\tBlastX-like alignments\n" +
             "@CO\tReporting AS: bitScore, ZR: rawScore, ZE: expected, ZI: percent identity, ZL: reference length, ZF: frame, ZS: query start DNA coordinate\n";
 
+    /**
+     * read group tag appended to all lines of a SAM file that has a header
+     */
+    public static final String READ_GROUP_TAG = "\tRG:Z:1";
+
     /*
    0	QNAME	String
    1	FLAG	Int
@@ -49,31 +63,29 @@ public class SAMHelper {
     */
 
     /**
-     * creates a SAM line. If queryHeader==null, does not output the initial query token
-     *
-	 */
-    public static String createSAMLine(final BlastMode mode, final byte[] queryHeader, final byte[] querySequence, final int queryStart, final int queryStartBlastX, final int queryEnd, final int queryLength, final byte[] alignedQuery,
-                                       final byte[] referenceHeader, final int referenceStart, final int referenceEnd, final byte[] alignedReference, final int referenceLength,
-                                       final double bitScore, final int rawScore, final double expected, final float percentIdentity, int frame, final byte[] qualityValues, boolean softClipped) {
+     * powers of ten, used when formatting the expected value
+     */
+    private static final double[] POWERS_OF_TEN = new double[64];
+
+    static {
+        for (int i = 0; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = Double.parseDouble("1e" + i);
+    }
+
+    /**
+     * writes a SAM line to the given buffer, without allocating any objects. If queryHeader==null, does not output the initial query token
+     */
+    public static void writeSAMLine(final ReusableByteBuffer buffer, final BlastMode mode, final byte[] queryHeader, final byte[] querySequence, final int queryStart, final int queryStartBlastX, final int queryEnd, final int queryLength, final byte[] alignedQuery,
+                                    final byte[] referenceHeader, final int referenceStart, final int referenceEnd, final byte[] alignedReference, final int referenceLength,
+                                    final double bitScore, final int rawScore, final double expected, final float percentIdentity, int frame, final byte[] qualityValues, boolean softClipped) {
 
         if (querySequence == null && softClipped)
             softClipped = false;
 
-        final StringBuilder buffer = new StringBuilder();
-
         // QNAME:
-        boolean first = true;
         if (queryHeader != null) {
-            for (byte a : queryHeader) {
-                if (first && a == '>') {
-                    first = false;
-                    continue;
-                }
-                if (a == 0 || Character.isSpaceChar(a))
-                    break;
-                buffer.append((char) a);
-            }
-            buffer.append('\t');
+            writeName(queryHeader, buffer);
+            buffer.write('\t');
         }
 
         // FLAG
@@ -84,293 +96,333 @@ public class SAMHelper {
             case BlastN:
                 if (reverseComplemented) {
                     queryOffset = queryLength - queryEnd;
-                    buffer.append(0x10); // SEQ is reverse complemented
+                    writeInt(0x10, buffer); // SEQ is reverse complemented
                 } else {
                     queryOffset = queryStart;
-                    buffer.append(0);
+                    buffer.write('0');
                 }
                 break;
             case BlastX:
                 if (reverseComplemented)
-                    buffer.append(0x10); // SEQ is reverse complemented
+                    writeInt(0x10, buffer); // SEQ is reverse complemented
                 else
-                    buffer.append(0);
+                    buffer.write('0');
                 queryOffset = 0;  // will explicitly save query start and query end
                 break;
             default:
             case BlastP:
                 queryOffset = queryStart;
-                buffer.append(0);
+                buffer.write('0');
         }
-        buffer.append('\t');
+        buffer.write('\t');
 
         // RNAME:
-        first = true;
-        for (byte a : referenceHeader) {
-            if (first && a == '>') {
-                first = false;
-                continue;
-            }
-            if (a == 0 || Character.isSpaceChar(a))
-                break;
-            buffer.append((char) a);
-        }
-        buffer.append('\t');
+        writeName(referenceHeader, buffer);
+        buffer.write('\t');
 
         // POS:
-        int pos = Math.min(referenceStart, referenceEnd);
-        buffer.append(pos);
-        buffer.append('\t');
+        writeInt(Math.min(referenceStart, referenceEnd), buffer);
+        buffer.write('\t');
 
         // MAPQ
-        buffer.append("255"); // unknown
-        buffer.append('\t');
+        writeAscii("255\t", buffer); // unknown
 
         // CIGAR
-        appendCigar(alignedQuery, queryOffset, queryLength, alignedReference, reverseComplemented, softClipped, buffer);
-        buffer.append('\t');
+        writeCigar(alignedQuery, queryOffset, queryLength, alignedReference, reverseComplemented, softClipped, buffer);
+        buffer.write('\t');
 
-        // RNEXT
-        buffer.append("*"); // unknown
-        buffer.append('\t');
-
-        // PNEXT
-        buffer.append("0"); // unknown
-        buffer.append('\t');
-
-        // TLEN
-        buffer.append("0");
-        buffer.append('\t');
+        // RNEXT, PNEXT and TLEN, all unknown
+        writeAscii("*\t0\t0\t", buffer);
 
         // SEQ
+        final DNA5 dna5 = DNA5.getInstance();
         if (softClipped && querySequence != null) {
             if (reverseComplemented) {
                 for (int i = queryLength - 1; i >= 0; i--) {
-                    buffer.append((char) DNA5.getInstance().getBaseComplement(querySequence[i]));
+                    buffer.write(dna5.getBaseComplement(querySequence[i]));
                 }
             } else {
                 for (int i = 0; i < queryLength; i++)
-                    buffer.append((char) querySequence[i]);
+                    buffer.write(querySequence[i]);
             }
         } else {
             if (reverseComplemented) {
                 for (int i = alignedQuery.length - 1; i >= 0; i--) {
                     byte a = alignedQuery[i];
                     if (a != '-')
-                        buffer.append((char) DNA5.getInstance().getBaseComplement(a));
+                        buffer.write(dna5.getBaseComplement(a));
                 }
             } else {
                 for (byte a : alignedQuery) {
                     if (a != '-')
-                        buffer.append((char) a);
+                        buffer.write(a);
                 }
             }
         }
-        buffer.append('\t');
+        buffer.write('\t');
 
         // QUAL
         if (qualityValues == null)
-            buffer.append("*");
+            buffer.write('*');
         else {
             if (softClipped) {
                 if (reverseComplemented) {
                     for (int i = queryLength - 1; i >= 0; i--)
-                        buffer.append((char) qualityValues[i]);
+                        buffer.write(qualityValues[i]);
                 } else {
                     for (int i = 0; i < queryLength; i++)
-                        buffer.append((char) qualityValues[i]);
+                        buffer.write(qualityValues[i]);
                 }
             } else {
                 if (reverseComplemented) {
                     for (int i = queryStart; i < queryEnd; i++)
-                        buffer.append((char) qualityValues[queryLength - (i + 1)]);
+                        buffer.write(qualityValues[queryLength - (i + 1)]);
                 } else {
                     for (int i = queryStart; i < queryEnd; i++)
-                        buffer.append((char) qualityValues[i]);
+                        buffer.write(qualityValues[i]);
                 }
             }
         }
-        buffer.append('\t');
+        buffer.write('\t');
 
         // optional stuff:
-        buffer.append(String.format("AS:i:%d\t", (int) Math.round(bitScore)));
-        buffer.append(String.format("NM:i:%d\t", computeEditDistance(alignedQuery, alignedReference)));
-        buffer.append(String.format("ZL:i:%d\t", referenceLength));
-        buffer.append(String.format("ZR:i:%d\t", rawScore));
-		buffer.append(String.format("ZE:f:%g\t", (float) expected));
-		buffer.append(String.format("ZI:i:%d\t", Math.round(percentIdentity)));
+        writeAscii("AS:i:", buffer);
+        writeInt((int) Math.round(bitScore), buffer);
+        writeAscii("\tNM:i:", buffer);
+        writeInt(computeEditDistance(alignedQuery, alignedReference), buffer);
+        writeAscii("\tZL:i:", buffer);
+        writeInt(referenceLength, buffer);
+        writeAscii("\tZR:i:", buffer);
+        writeInt(rawScore, buffer);
+        writeAscii("\tZE:f:", buffer);
+        writeGeneral((float) expected, buffer);
+        writeAscii("\tZI:i:", buffer);
+        writeInt(Math.round(percentIdentity), buffer);
+        buffer.write('\t');
         if (mode == BlastMode.BlastX) {
-            buffer.append(String.format("ZF:i:%d\t", frame));
-            buffer.append(String.format("ZS:i:%d\t", queryStartBlastX));
+            writeAscii("ZF:i:", buffer);
+            writeInt(frame, buffer);
+            writeAscii("\tZS:i:", buffer);
+            writeInt(queryStartBlastX, buffer);
+            buffer.write('\t');
         }
 
-        appendMDString(alignedQuery, alignedReference, reverseComplemented, buffer);
-
-        return buffer.toString();
+        writeMDString(alignedQuery, alignedReference, reverseComplemented, buffer);
     }
 
     /**
-     * append the cigar string
-     *
-	 */
-    private static void appendCigar(byte[] alignedQuery, int queryOffset, int queryLength, byte[] alignedReference, boolean reverseComplemented, boolean softClipped, StringBuilder buffer) {
+     * write the cigar string
+     */
+    private static void writeCigar(byte[] alignedQuery, int queryOffset, int queryLength, byte[] alignedReference, boolean reverseComplemented, boolean softClipped, ReusableByteBuffer buffer) {
         int clip = (!reverseComplemented ? queryOffset : (queryLength - queryOffset - alignedQuery.length));
         if (clip > 0) {
-            buffer.append(clip).append(softClipped ? "S" : "H");
+            writeInt(clip, buffer);
+            buffer.write(softClipped ? 'S' : 'H');
         }
 
-        if (reverseComplemented) {
-            char state = 'M'; // M in match, I insert, D deletion
-            int count = 0;
-            for (int i = alignedQuery.length - 1; i >= 0; i--) {
-                if (alignedQuery[i] == '-') {
-                    if (state == 'D') {
-                        count++;
-                    } else if (count > 0) {
-                        buffer.append(count).append(state);
-                        state = 'D';
-                        count = 1;
-                    }
-                } else if (alignedReference[i] == '-') {
-                    if (state == 'I') {
-                        count++;
-                    } else if (count > 0) {
-                        buffer.append(count).append(state);
-                        state = 'I';
-                        count = 1;
-                    }
-                } else {  // match or mismatch
-                    if (state == 'M') {
-                        count++;
-                    } else if (count > 0) {
-                        buffer.append(count).append(state);
-                        state = 'M';
-                        count = 1;
-                    }
-                }
-            }
-            if (count > 0) {
-                buffer.append(count).append(state);
-
-            }
-        } else {
-            char cigarState = 'M'; // M in match, D deletion, I insertion
-            int count = 0;
-            for (int i = 0; i < alignedQuery.length; i++) {
-                if (alignedQuery[i] == '-') {
-                    if (cigarState == 'D') {
-                        count++;
-                    } else if (count > 0) {
-                        buffer.append(count).append(cigarState);
-                        cigarState = 'D';
-                        count = 1;
-                    }
-                } else if (alignedReference[i] == '-') {
-                    if (cigarState == 'I') {
-                        count++;
-                    } else if (count > 0) {
-                        buffer.append(count).append(cigarState);
-                        cigarState = 'I';
-                        count = 1;
-                    }
-                } else {  // match or mismatch
-                    if (cigarState == 'M') {
-                        count++;
-                    } else if (count > 0) {
-                        buffer.append(count).append(cigarState);
-                        cigarState = 'M';
-                        count = 1;
-                    }
+        char state = 'M'; // M in match, I insert, D deletion
+        int count = 0;
+        final int step = (reverseComplemented ? -1 : 1);
+        for (int i = (reverseComplemented ? alignedQuery.length - 1 : 0); i >= 0 && i < alignedQuery.length; i += step) {
+            final char next;
+            if (alignedQuery[i] == '-')
+                next = 'D';
+            else if (alignedReference[i] == '-')
+                next = 'I';
+            else // match or mismatch
+                next = 'M';
+            if (state == next) {
+                count++;
+            } else {
+                if (count > 0) {
+                    writeInt(count, buffer);
+                    buffer.write(state);
                 }
-            }
-            if (count > 0) {
-                buffer.append(count).append(cigarState);
-
+                state = next;
+                count = 1;
             }
         }
+        if (count > 0) {
+            writeInt(count, buffer);
+            buffer.write(state);
+        }
 
         clip = (reverseComplemented ? queryOffset : (queryLength - queryOffset - alignedQuery.length));
         if (clip > 0) {
-            buffer.append(clip).append(softClipped ? "S" : "H");
+            writeInt(clip, buffer);
+            buffer.write(softClipped ? 'S' : 'H');
         }
     }
 
     /**
-     * append the MD string
-     *
-	 */
-    private static void appendMDString(final byte[] alignedQuery, final byte[] alignedReference, final boolean reverseComplemented, final StringBuilder buffer) {
-        buffer.append("MD:Z:");
-        if (reverseComplemented) {
-            int countMatches = 0;
-            boolean inDeletion = false;
-            for (int i = alignedQuery.length - 1; i >= 0; i--) {
-                if (alignedQuery[i] == '-') { // gap in query
-                    if (countMatches > 0) {
-                        buffer.append(countMatches);
-                        countMatches = 0;
-                    }
-                    if (!inDeletion) {
-                        buffer.append("^");
-                        inDeletion = true;
-                    }
-                    buffer.append((char) (DNA5.getInstance().getBaseComplement(alignedReference[i])));
-                } else if (alignedReference[i] != '-') {  // match or mismatch
-                    if (alignedQuery[i] == alignedReference[i]) {
-                        countMatches++;
-                    } else {
-                        if (inDeletion)
-                            buffer.append(0);
-                        if (countMatches > 0) {
-                            buffer.append(countMatches);
-                            countMatches = 0;
-                        }
-                        buffer.append((char) (DNA5.getInstance().getBaseComplement(alignedReference[i])));
-                    }
-                    if (inDeletion)
-                        inDeletion = false;
+     * write the MD string
+     */
+    private static void writeMDString(final byte[] alignedQuery, final byte[] alignedReference, final boolean reverseComplemented, final ReusableByteBuffer buffer) {
+        writeAscii("MD:Z:", buffer);
+        final DNA5 dna5 = DNA5.getInstance();
+        int countMatches = 0;
+        boolean inDeletion = false;
+        final int step = (reverseComplemented ? -1 : 1);
+        for (int i = (reverseComplemented ? alignedQuery.length - 1 : 0); i >= 0 && i < alignedQuery.length; i += step) {
+            if (alignedQuery[i] == '-') { // gap in query
+                if (countMatches > 0) {
+                    writeInt(countMatches, buffer);
+                    countMatches = 0;
                 }
-                // else alignedReference[i] == '-': this has no effect
-            }
-            if (countMatches > 0)
-                buffer.append(countMatches);
-            else if (inDeletion)
-                buffer.append(0);
-        } else {
-            int countMatches = 0;
-            boolean inDeletion = false;
-            for (int i = 0; i < alignedQuery.length; i++) {
-                if (alignedQuery[i] == '-') { // gap in query
+                if (!inDeletion) {
+                    buffer.write('^');
+                    inDeletion = true;
+                }
+                buffer.write(reverseComplemented ? dna5.getBaseComplement(alignedReference[i]) : alignedReference[i]);
+            } else if (alignedReference[i] != '-') {  // match or mismatch
+                if (alignedQuery[i] == alignedReference[i]) {
+                    countMatches++;
+                } else {
+                    if (inDeletion)
+                        buffer.write('0');
                     if (countMatches > 0) {
-                        buffer.append(countMatches);
+                        writeInt(countMatches, buffer);
                         countMatches = 0;
                     }
-                    if (!inDeletion) {
-                        buffer.append("^");
-                        inDeletion = true;
-                    }
-                    buffer.append((char) alignedReference[i]);
-                } else if (alignedReference[i] != '-') {  // match or mismatch
-                    if (alignedQuery[i] == alignedReference[i]) {
-                        countMatches++;
-                    } else {
-                        if (inDeletion)
-                            buffer.append("0");
-                        if (countMatches > 0) {
-                            buffer.append(countMatches);
-                            countMatches = 0;
-                        }
-                        buffer.append((char) alignedReference[i]);
-                    }
-                    if (inDeletion)
-                        inDeletion = false;
+                    buffer.write(reverseComplemented ? dna5.getBaseComplement(alignedReference[i]) : alignedReference[i]);
                 }
-                // else alignedReference[i] == '-': this has no effect
+                if (inDeletion)
+                    inDeletion = false;
             }
-            if (countMatches > 0)
-                buffer.append(countMatches);
-            else if (inDeletion)
-                buffer.append(0);
+            // else alignedReference[i] == '-': this has no effect
+        }
+        if (countMatches > 0)
+            writeInt(countMatches, buffer);
+        else if (inDeletion)
+            buffer.write('0');
+    }
+
+    /**
+     * write a query or reference name, that is, the header up to the first white space, skipping a leading '>'.
+     * Bytes are written as is, also those outside of ASCII
+     */
+    private static void writeName(final byte[] header, final ReusableByteBuffer buffer) {
+        boolean first = true;
+        for (byte a : header) {
+            if (first && a == '>') {
+                first = false;
+                continue;
+            }
+            if (a == 0 || Character.isSpaceChar(a))
+                break;
+            buffer.write(a);
+        }
+    }
+
+    /**
+     * write an ascii string
+     */
+    private static void writeAscii(final String string, final ReusableByteBuffer buffer) {
+        for (int i = 0; i < string.length(); i++)
+            buffer.write(string.charAt(i));
+    }
+
+    /**
+     * write an integer in decimal notation
+     */
+    static void writeInt(final int value, final ReusableByteBuffer buffer) {
+        long remainder = value;
+        if (remainder < 0) {
+            buffer.write('-');
+            remainder = -remainder;
+        }
+        long power = 1;
+        while (power * 10 <= remainder)
+            power *= 10;
+        for (; power > 0; power /= 10) {
+            buffer.write((int) ('0' + remainder / power));
+            remainder %= power;
+        }
+    }
+
+    /**
+     * write a float value exactly as String.format(Locale.ROOT,"%g",value) does, that is, using six significant digits,
+     * a '.' as decimal separator and scientific notation for values below 10^-4 or at least 10^6 after rounding.
+     * Falls back to String.format for the rare values that are too close to a rounding tie to be decided in double precision.
+     * Note that this differs from the original String.format("%g") output for locales that use a different decimal separator,
+     * such as ',' in German: the ZE value is now always written with a '.'
+     */
+    static void writeGeneral(final float value, final ReusableByteBuffer buffer) {
+        if (Float.floatToRawIntBits(value) == 0) {
+            writeAscii("0.00000", buffer);
+            return;
+        }
+        if (!(value > 0) || Float.isInfinite(value)) {
+            writeAscii(String.format(Locale.ROOT, "%g", value), buffer);
+            return;
+        }
+
+        // scale the value into [10^5,10^6):
+        final double x = value;
+        int exponent = (int) Math.floor(Math.log10(x));
+        double scaled = scale(x, 5 - exponent);
+        if (scaled < 1e5) {
+            exponent--;
+            scaled = scale(x, 5 - exponent);
+        } else if (scaled >= 1e6) {
+            exponent++;
+            scaled = scale(x, 5 - exponent);
+        }
+        final double fraction = scaled - Math.floor(scaled);
+        if (Double.isNaN(scaled) || Math.abs(fraction - 0.5) < 1e-6) {
+            writeAscii(String.format(Locale.ROOT, "%g", value), buffer);
+            return;
+        }
+        int digits = (int) Math.floor(scaled + 0.5);
+        if (digits == 1000000) {
+            digits = 100000;
+            exponent++;
+        }
+
+        if (exponent < -4 || exponent >= 6) { // scientific notation
+            writeDigits(digits, 0, 1, buffer);
+            buffer.write('.');
+            writeDigits(digits, 1, 6, buffer);
+            buffer.write('e');
+            buffer.write(exponent < 0 ? '-' : '+');
+            if (Math.abs(exponent) < 10)
+                buffer.write('0');
+            writeInt(Math.abs(exponent), buffer);
+        } else if (exponent >= 0) {
+            writeDigits(digits, 0, exponent + 1, buffer);
+            if (exponent < 5) {
+                buffer.write('.');
+                writeDigits(digits, exponent + 1, 6, buffer);
+            }
+        } else {
+            buffer.write('0');
+            buffer.write('.');
+            for (int i = -1; i > exponent; i--)
+                buffer.write('0');
+            writeDigits(digits, 0, 6, buffer);
+        }
+    }
+
+    /**
+     * computes x*10^power, or returns NaN if the power is out of range
+     */
+    private static double scale(final double x, final int power) {
+        if (power >= 0)
+            return (power < POWERS_OF_TEN.length ? x * POWERS_OF_TEN[power] : Double.NaN);
+        else
+            return (-power < POWERS_OF_TEN.length ? x / POWERS_OF_TEN[-power] : Double.NaN);
+    }
+
+    /**
+     * write the digits from positions start (inclusive) to end (exclusive) of a six-digit number
+     */
+    private static void writeDigits(final int sixDigits, final int start, final int end, final ReusableByteBuffer buffer) {
+        int power = 100000;
+        for (int i = 0; i < start; i++)
+            power /= 10;
+        for (int i = start; i < end; i++) {
+            buffer.write('0' + (sixDigits / power) % 10);
+            power /= 10;
         }
     }
 
@@ -388,6 +440,37 @@ public class SAMHelper {
         return distance;
     }
 
+    /**
+     * writes a SAM file consisting of the given header followed by the content of the body file. The body is appended
+     * using FileChannel.transferTo(), so its bytes are copied by the operating system and not read into memory.
+     * If the file name ends on .gz, then the body file must be BGZF or gzip compressed and the header is written as BGZF blocks
+     */
+    public static void writeSAMFile(String fileName, String header, String bodyFile) throws IOException {
+        try (FileChannel outChannel = FileChannel.open(Path.of(fileName), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             FileChannel bodyChannel = FileChannel.open(Path.of(bodyFile), StandardOpenOption.READ)) {
+            final OutputStream outs = Channels.newOutputStream(outChannel);
+            if (fileName.endsWith(".gz"))
+                BGZFOutputStream.writeBlocks(header.getBytes(), outs);
+            else
+                outs.write(header.getBytes());
+
+            final long size = bodyChannel.size();
+            long position = 0;
+            while (position < size) {
+                position += bodyChannel.transferTo(position, size - position, outChannel);
+            }
+        }
+    }
+
+    /**
+     * can a SAM file be written by writeSAMFile(), that is, can a header be prepended to the file by concatenation?
+     *
+     * @return true, if not stdout and not zip
+     */
+    public static boolean canWriteSAMFileByConcatenation(String fileName) {
+        return !fileName.equalsIgnoreCase("stdout") && !fileName.endsWith(".zip");
+    }
+
     /**
      * gets the SAM header line
      *
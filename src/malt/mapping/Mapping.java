@@ -19,6 +19,7 @@
 package malt.mapping;
 
 import jloda.util.CanceledException;
+import jloda.util.CollectionUtils;
 import jloda.util.StringUtils;
 import jloda.util.progress.ProgressListener;
 import jloda.util.progress.ProgressPercentage;
@@ -34,6 +35,12 @@ import java.sql.SQLException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 /**
  * Maintains mapping from Reference indices to classification
@@ -42,6 +49,9 @@ import java.util.Map;
 public class Mapping extends RefIndex2ClassId {
     private final static String version = "V1.1";
     private final String fName;
+    private final PackedMappingFile.Column column;
+
+    private static final int CHUNK_SIZE = 10000;
 
     /**
      * construct a table
@@ -50,28 +60,65 @@ public class Mapping extends RefIndex2ClassId {
     public Mapping(String fName, int maxIndex) {
         super(maxIndex);
         this.fName = fName;
+        this.column = null;
+    }
+
+    /**
+     * construct a view of a column of a packed mapping file
+     *
+     */
+    Mapping(String fName, PackedMappingFile.Column column) {
+        super(column.size(), null);
+        this.fName = fName;
+        this.column = column;
+    }
+
+    @Override
+    public int get(int refIndex) {
+        return column != null ? column.get(refIndex) : super.get(refIndex);
+    }
+
+    @Override
+    public void put(int refIndex, int classId) {
+        if (column != null)
+            throw new UnsupportedOperationException("put(): packed mapping is read-only");
+        super.put(refIndex, classId);
+    }
+
+    /**
+     * get the name of the classification
+     *
+     * @return name
+     */
+    public String getFName() {
+        return fName;
     }
 
     /**
-     * compute the mapping for the given reference database
+     * compute the mapping for the given reference database. Reference ranges are processed in parallel, each thread using its own parser
      *
 	 */
-    public static Mapping create(String fName, ISequenceAccessor referencesDB, IdParser classificationMapper, ProgressListener progress) throws IOException {
+    public static Mapping create(String fName, ISequenceAccessor referencesDB, Supplier<IdParser> idParserFactory, int numberOfThreads0, ProgressListener progress) throws IOException {
         final Mapping mapping = new Mapping(fName, referencesDB.getNumberOfSequences());
         final String tag = Classification.createShortTag(fName);
 
-        progress.setMaximum(referencesDB.getNumberOfSequences());
-        progress.setProgress(0);
+        final int numberOfThreads = Math.max(1, Math.min(numberOfThreads0, (referencesDB.getNumberOfSequences() + CHUNK_SIZE - 1) / CHUNK_SIZE));
+        final IdParser[] idParsers = new IdParser[numberOfThreads];
+        for (int t = 0; t < numberOfThreads; t++) {
+            idParsers[t] = idParserFactory.get();
+        }
 
-        for (int i = 0; i < referencesDB.getNumberOfSequences(); i++) {
-			String header = StringUtils.toString(referencesDB.getHeader(i));
-			int classId = classificationMapper.getIdFromHeaderLine(header);
-            if (classId != 0) {
-                mapping.put(i, classId);
-                referencesDB.extendHeader(i, tag, classId);
+        processInParallel(referencesDB.getNumberOfSequences(), numberOfThreads, progress, (threadNumber, from, to) -> {
+            final IdParser idParser = idParsers[threadNumber];
+            for (int i = from; i < to; i++) {
+                String header = StringUtils.toString(referencesDB.getHeader(i));
+                int classId = idParser.getIdFromHeaderLine(header);
+                if (classId != 0) {
+                    mapping.put(i, classId);
+                    referencesDB.extendHeader(i, tag, classId);
+                }
             }
-            progress.incrementProgress();
-        }
+        });
         if (progress instanceof ProgressPercentage)
             progress.close();
 
@@ -79,75 +126,141 @@ public class Mapping extends RefIndex2ClassId {
     }
 
     /**
-     * compute the mapping for the given reference database
+     * compute the mapping for the given reference database. Reference ranges are processed in parallel, each thread looking up
+     * its accessions in batches using its own connection to the mapping database
      *
 	 */
-    public static Map<String, Mapping> create(Collection<String> namesToUse, ISequenceAccessor referencesDB, AccessAccessionMappingDatabase mappingDatabase, ProgressListener progress) throws IOException, SQLException {
+    public static Map<String, Mapping> create(Collection<String> namesToUse, ISequenceAccessor referencesDB, String mappingDBFile, int numberOfThreads0, ProgressListener progress) throws IOException, SQLException {
+        final var mappings = new HashMap<String, Mapping>();
+        final String[] cIndex2Name;
+        final String[] tags;
 
-        final var cNames = mappingDatabase.getClassificationNames();
-        final var maxIndex = cNames.stream().mapToInt(name -> {
-            try {
-                return mappingDatabase.getClassificationIndex(name);
-            } catch (SQLException throwables) {
-                throwables.printStackTrace();
-                return 0;
-            }
-        }).max().orElse(-1);
+        try (var mappingDatabase = new AccessAccessionMappingDatabase(mappingDBFile)) {
+            final var cNames = mappingDatabase.getClassificationNames();
+            final var maxIndex = cNames.stream().mapToInt(name -> {
+                try {
+                    return mappingDatabase.getClassificationIndex(name);
+                } catch (SQLException throwables) {
+                    throwables.printStackTrace();
+                    return 0;
+                }
+            }).max().orElse(-1);
 
-        final var mappings = new HashMap<String, Mapping>();
-        final var cIndex2Name = new String[maxIndex + 1];
-        final var tags = new String[maxIndex + 1];
+            cIndex2Name = new String[maxIndex + 1];
+            tags = new String[maxIndex + 1];
 
-        {
-            int c = 0;
             for (var cName : cNames) {
                 final var index = mappingDatabase.getClassificationIndex(cName) - 2;
                 if (namesToUse.contains(cName)) {
                     mappings.put(cName, new Mapping(cName, referencesDB.getNumberOfSequences()));
                     cIndex2Name[index] = cName;
-                    tags[c] = Classification.createShortTag(cName);
+                    tags[index] = Classification.createShortTag(cName);
                 }
-                c++;
             }
         }
 
-        progress.setMaximum(referencesDB.getNumberOfSequences());
-        progress.setProgress(0);
-
-        final var chunkSize = 10000;
-        final var accessions = new String[chunkSize];
-
-        for (var offset = 0; offset < referencesDB.getNumberOfSequences(); offset += chunkSize) {
-
-            final var numberInChunk = Math.min(chunkSize, referencesDB.getNumberOfSequences() - offset * chunkSize);
-            for (var r = 0; r < numberInChunk; r++) {
-                accessions[r] = getFirstWordAccession(referencesDB.getHeader(offset + r));
+        final int numberOfThreads = Math.max(1, Math.min(numberOfThreads0, (referencesDB.getNumberOfSequences() + CHUNK_SIZE - 1) / CHUNK_SIZE));
+        final var mappingDatabases = new AccessAccessionMappingDatabase[numberOfThreads];
+        try {
+            for (var t = 0; t < numberOfThreads; t++) {
+                mappingDatabases[t] = new AccessAccessionMappingDatabase(mappingDBFile);
             }
-            final var accession2ids = mappingDatabase.getValues(accessions, numberInChunk);
-            for (var r = 0; r < numberInChunk; r++) {
-                if (accessions[r].length() > 0) {
-                    final var ids = accession2ids.get(accessions[r]);
-                    if (ids != null) {
-                        //System.err.println((offset+r)+" -> "+Basic.toString(referencesDB.getHeader(offset + r))+" -> "+accessions[r]);
-
-                        for (var c = 0; c < cIndex2Name.length; c++) {
-                            if (cIndex2Name[c] != null) {
-                                final var index = ids[c];
-                                if (index != 0) {
-                                    //System.err.println(accessions[r] +": "+cIndex2Name[c]+" -> "+index);
-                                    mappings.get(cIndex2Name[c]).put(offset + r, index);
-                                    referencesDB.extendHeader(c, tags[c], index);
+
+            processInParallel(referencesDB.getNumberOfSequences(), numberOfThreads, progress, (threadNumber, from, to) -> {
+                final var numberInChunk = to - from;
+                final var accessions = new String[numberInChunk];
+                for (var r = 0; r < numberInChunk; r++) {
+                    accessions[r] = getFirstWordAccession(referencesDB.getHeader(from + r));
+                }
+                final var accession2ids = mappingDatabases[threadNumber].getValues(accessions, numberInChunk);
+                for (var r = 0; r < numberInChunk; r++) {
+                    if (accessions[r].length() > 0) {
+                        final var ids = accession2ids.get(accessions[r]);
+                        if (ids != null) {
+                            for (var c = 0; c < cIndex2Name.length; c++) {
+                                if (cIndex2Name[c] != null) {
+                                    final var index = ids[c];
+                                    if (index != 0) {
+                                        mappings.get(cIndex2Name[c]).put(from + r, index);
+                                        referencesDB.extendHeader(from + r, tags[c], index);
+                                    }
                                 }
                             }
                         }
                     }
                 }
+            });
+        } finally {
+            for (var mappingDatabase : mappingDatabases) {
+                if (mappingDatabase != null)
+                    mappingDatabase.close();
             }
-            progress.setProgress(offset + numberInChunk);
         }
         return mappings;
     }
 
+    /**
+     * process all references in chunks of consecutive indices, using the given number of threads.
+     * Each reference is processed by exactly one thread, so header extensions don't depend on the scheduling
+     *
+     */
+    private static void processInParallel(int numberOfReferences, int numberOfThreads, ProgressListener progress, RangeTask task) throws IOException {
+        final var nextChunk = new AtomicInteger(0);
+        final var countsForProgress = new long[numberOfThreads];
+        final var exception = new AtomicReference<Exception>();
+
+        progress.setMaximum(numberOfReferences);
+        progress.setProgress(0);
+
+        final var executor = Executors.newFixedThreadPool(numberOfThreads);
+        final var countDownLatch = new CountDownLatch(numberOfThreads);
+        try {
+            for (var t = 0; t < numberOfThreads; t++) {
+                final var threadNumber = t;
+                executor.execute(() -> {
+                    try {
+                        long from;
+                        while (exception.get() == null && (from = (long) nextChunk.getAndIncrement() * CHUNK_SIZE) < numberOfReferences) {
+                            final var to = (int) Math.min(numberOfReferences, from + CHUNK_SIZE);
+                            task.apply(threadNumber, (int) from, to);
+                            countsForProgress[threadNumber] += to - from;
+                        }
+                    } catch (Exception ex) {
+                        exception.compareAndSet(null, ex);
+                    } finally {
+                        countDownLatch.countDown();
+                    }
+                });
+            }
+
+            // wait for jobs to complete, reporting progress:
+            try {
+                while (!countDownLatch.await(500, TimeUnit.MILLISECONDS)) {
+                    progress.setProgress(CollectionUtils.getSum(countsForProgress));
+                }
+            } catch (CanceledException e) {
+                exception.compareAndSet(null, e);
+                countDownLatch.await();
+            }
+            progress.setProgress(numberOfReferences);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            executor.shutdown();
+        }
+        if (exception.get() instanceof IOException ioException)
+            throw ioException;
+        else if (exception.get() != null)
+            throw new IOException(exception.get());
+    }
+
+    /**
+     * processes a range of references
+     */
+    private interface RangeTask {
+        void apply(int threadNumber, int from, int to) throws Exception;
+    }
+
     public static String getFirstWordAccession(byte[] bytes) {
         final var aLine = StringUtils.toString(bytes);
         var a = 0;
@@ -185,6 +298,7 @@ public class Mapping extends RefIndex2ClassId {
     public Mapping(String fName, File file) throws IOException, CanceledException {
         super(file, makeMagicNumber(fName));
         this.fName = fName;
+        this.column = null;
     }
 
     private static byte[] makeMagicNumber(String fName) {
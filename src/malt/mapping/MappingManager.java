@@ -26,6 +26,8 @@ import megan.classification.ClassificationManager;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * manages MALT mapping files
@@ -37,13 +39,15 @@ public class MappingManager {
     private static Mapping[] mappings;
 
     /**
-     * load all mappings
+     * load all mappings, using the packed mapping file, if present
      *
 	 */
     public static void loadMappings(String[] cNames, String indexDirectory) throws IOException, CanceledException {
         MappingManager.cNames = cNames;
         mappings = new Mapping[cNames.length];
         taxonomyIndex = -1;
+        final File packedFile = new File(indexDirectory, PackedMappingFile.FILE_NAME);
+        final Map<String, Mapping> packedMappings = (packedFile.exists() ? PackedMappingFile.load(packedFile) : Collections.emptyMap());
         for (int i = 0; i < cNames.length; i++) {
             String cName = cNames[i];
             if (cName.equals(Classification.Taxonomy))
@@ -51,7 +55,9 @@ public class MappingManager {
             String fileName = cName.toLowerCase() + ".idx";
             ClassificationManager.ensureTreeIsLoaded(cName);
             final File file = new File(indexDirectory, fileName);
-            if (file.exists())
+            if (packedMappings.containsKey(cName))
+                mappings[i] = packedMappings.get(cName);
+            else if (file.exists())
                 mappings[i] = new Mapping(cName, file);
             else
                 mappings[i] = null;
@@ -0,0 +1,257 @@
+/*
+ * PackedMappingFile.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.mapping;
+
+import jloda.util.Basic;
+import jloda.util.progress.ProgressListener;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * a single file that holds the mappings of all classifications. Each classification is stored as a column of bit-packed
+ * codes, using as few bits per reference as possible. If this saves bits, codes are indices into a per-column dictionary of class ids,
+ * otherwise they are the class ids themselves. The file is memory-mapped, so loading takes constant time and no heap
+ * Daniel Huson, 10.2026
+ */
+public class PackedMappingFile {
+    public static final String FILE_NAME = "mappings.pck";
+    private static final byte[] MAGIC_NUMBER = "MAPackedV1.0.".getBytes();
+
+    private static final int BLOCK_BITS = 27; // number of longs per block is 2^27, i.e. 1GB
+    private static final long BLOCK_MASK = (1L << BLOCK_BITS) - 1;
+
+    /**
+     * save the given mappings to a single packed file
+     */
+    public static void save(File file, Collection<Mapping> mappings, ProgressListener progress) throws IOException {
+        final var numberOfReferences = mappings.stream().mapToInt(Mapping::size).max().orElse(0);
+
+        final var names = new String[mappings.size()];
+        final var dictionaries = new int[mappings.size()][];
+        final var bits = new int[mappings.size()];
+        final var words = new long[mappings.size()];
+        {
+            var c = 0;
+            for (var mapping : mappings) {
+                names[c] = mapping.getFName();
+                final var distinct = computeDistinctIds(mapping);
+                final var dictionaryBits = bitsNeeded(distinct.length - 1);
+                if (distinct[0] >= 0 && bitsNeeded(distinct[distinct.length - 1]) <= dictionaryBits) {
+                    dictionaries[c] = new int[0];
+                    bits[c] = bitsNeeded(distinct[distinct.length - 1]);
+                } else {
+                    dictionaries[c] = distinct;
+                    bits[c] = dictionaryBits;
+                }
+                words[c] = ((long) numberOfReferences * bits[c] + 63) / 64 + 1; // one extra word, so that a read of the following word never fails
+                c++;
+            }
+        }
+
+        final var dictionaryOffsets = new long[names.length];
+        final var dataOffsets = new long[names.length];
+        var offset = align(writeHeader(new DataOutputStream(OutputStream.nullOutputStream()), numberOfReferences, names, bits, dictionaries, dictionaryOffsets, dataOffsets, words));
+        for (var c = 0; c < names.length; c++) {
+            dictionaryOffsets[c] = offset;
+            offset = align(offset + 4L * dictionaries[c].length);
+            dataOffsets[c] = offset;
+            offset += 8 * words[c];
+        }
+
+        progress.setMaximum((long) names.length * numberOfReferences);
+        progress.setProgress(0);
+
+        try (var outs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20))) {
+            var position = writeHeader(outs, numberOfReferences, names, bits, dictionaries, dictionaryOffsets, dataOffsets, words);
+            var c = 0;
+            for (var mapping : mappings) {
+                position = pad(outs, position, dictionaryOffsets[c]);
+                for (var id : dictionaries[c]) {
+                    outs.writeInt(id);
+                }
+                position = pad(outs, position + 4L * dictionaries[c].length, dataOffsets[c]);
+
+                final var dictionary = dictionaries[c];
+                final var b = bits[c];
+                var current = 0L;
+                var filled = 0;
+                var written = 0L;
+                if (b > 0) {
+                    for (var r = 0; r < numberOfReferences; r++) {
+                        final long value = (dictionary.length > 0 ? Arrays.binarySearch(dictionary, mapping.get(r)) : mapping.get(r));
+                        current |= (value << filled);
+                        filled += b;
+                        if (filled >= 64) {
+                            outs.writeLong(current);
+                            written++;
+                            filled -= 64;
+                            current = (filled > 0 ? value >>> (b - filled) : 0L);
+                        }
+                        if ((r & 0xFFFF) == 0)
+                            progress.setProgress((long) c * numberOfReferences + r);
+                    }
+                    if (filled > 0) {
+                        outs.writeLong(current);
+                        written++;
+                    }
+                }
+                for (; written < words[c]; written++) {
+                    outs.writeLong(0L);
+                }
+                position += 8 * words[c];
+                c++;
+            }
+        }
+        progress.setProgress((long) names.length * numberOfReferences);
+    }
+
+    /**
+     * load all mappings contained in the given file. Only the header is read, all data is memory-mapped
+     *
+     * @return mappings, by classification name
+     */
+    public static Map<String, Mapping> load(File file) throws IOException {
+        final var mappings = new LinkedHashMap<String, Mapping>();
+        try (var ins = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+             var raf = new RandomAccessFile(file, "r"); var channel = raf.getChannel()) {
+            Basic.readAndVerifyMagicNumber(ins, MAGIC_NUMBER);
+            final var numberOfReferences = ins.readInt();
+            final var numberOfColumns = ins.readInt();
+            for (var c = 0; c < numberOfColumns; c++) {
+                final var name = ins.readUTF();
+                final var bits = ins.readInt();
+                final var dictionarySize = ins.readInt();
+                final var dictionaryOffset = ins.readLong();
+                final var dataOffset = ins.readLong();
+                final var words = ins.readLong();
+
+                final var dictionary = (dictionarySize > 0 ? channel.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, 4L * dictionarySize).asIntBuffer() : null);
+                final var blocks = new LongBuffer[(int) (((words - 1) >>> BLOCK_BITS) + 1)];
+                for (var b = 0; b < blocks.length; b++) {
+                    final var start = ((long) b << BLOCK_BITS);
+                    final var length = Math.min(words - start, BLOCK_MASK + 2); // blocks overlap by one word
+                    blocks[b] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + 8 * start, 8 * length).asLongBuffer();
+                }
+                mappings.put(name, new Mapping(name, new Column(numberOfReferences, bits, dictionary, blocks)));
+            }
+        }
+        return mappings;
+    }
+
+    /**
+     * a read-only column of bit-packed class ids
+     */
+    static class Column {
+        private final int size;
+        private final int bits;
+        private final long mask;
+        private final IntBuffer dictionary;
+        private final LongBuffer[] blocks;
+
+        private Column(int size, int bits, IntBuffer dictionary, LongBuffer[] blocks) {
+            this.size = size;
+            this.bits = bits;
+            this.mask = (1L << bits) - 1;
+            this.dictionary = dictionary;
+            this.blocks = blocks;
+        }
+
+        /**
+         * get, indices start at 0
+         *
+         * @return class id for given reference id
+         */
+        int get(int refIndex) {
+            final var bitPosition = (long) refIndex * bits;
+            final var word = bitPosition >>> 6;
+            final var shift = (int) (bitPosition & 63);
+            final var block = blocks[(int) (word >>> BLOCK_BITS)];
+            final var index = (int) (word & BLOCK_MASK);
+            var value = block.get(index) >>> shift;
+            if (shift + bits > 64)
+                value |= block.get(index + 1) << (64 - shift);
+            value &= mask;
+            return (dictionary != null ? dictionary.get((int) value) : (int) value);
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    /**
+     * writes the header
+     *
+     * @return number of bytes written
+     */
+    private static long writeHeader(DataOutputStream outs, int numberOfReferences, String[] names, int[] bits, int[][] dictionaries, long[] dictionaryOffsets, long[] dataOffsets, long[] words) throws IOException {
+        final var start = outs.size();
+        outs.write(MAGIC_NUMBER);
+        outs.writeInt(numberOfReferences);
+        outs.writeInt(names.length);
+        for (var c = 0; c < names.length; c++) {
+            outs.writeUTF(names[c]);
+            outs.writeInt(bits[c]);
+            outs.writeInt(dictionaries[c].length);
+            outs.writeLong(dictionaryOffsets[c]);
+            outs.writeLong(dataOffsets[c]);
+            outs.writeLong(words[c]);
+        }
+        return outs.size() - start;
+    }
+
+    /**
+     * determines all distinct class ids, always including 0 for unmapped references
+     *
+     * @return sorted distinct ids
+     */
+    private static int[] computeDistinctIds(Mapping mapping) {
+        final var nonNegative = new BitSet();
+        final var negative = new TreeSet<Integer>();
+        nonNegative.set(0);
+        for (var r = 0; r < mapping.size(); r++) {
+            final var id = mapping.get(r);
+            if (id >= 0)
+                nonNegative.set(id);
+            else
+                negative.add(id);
+        }
+        return IntStream.concat(negative.stream().mapToInt(Integer::intValue), nonNegative.stream()).toArray();
+    }
+
+    private static int bitsNeeded(int value) {
+        return 32 - Integer.numberOfLeadingZeros(value);
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static long pad(DataOutputStream outs, long position, long offset) throws IOException {
+        for (; position < offset; position++) {
+            outs.write(0);
+        }
+        return position;
+    }
+}
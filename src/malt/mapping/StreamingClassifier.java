@@ -0,0 +1,296 @@
+/*
+ * StreamingClassifier.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.mapping;
+
+import jloda.graph.Node;
+import jloda.util.ListOfLongs;
+import jloda.util.StringUtils;
+import malt.MaltOptions;
+import malt.data.ReadMatch;
+import megan.classification.Classification;
+import megan.classification.ClassificationManager;
+import megan.classification.IdMapper;
+import megan.classification.data.ClassificationFullTree;
+import megan.rma6.RMA6FileCreator;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * assigns reads to classes while they are being aligned, so that the RMA6 file does not have to be read again to compute assignments.
+ * A read is assigned to the naive LCA of the taxa of its matches and, in all other classifications, to the class of its best match.
+ * Each thread collects the uids of the reads assigned to each class in its own tables, which are merged at the end
+ * Daniel Huson, 10.2026
+ */
+public class StreamingClassifier {
+    private final String[] cNames;
+    private final int taxonomyIndex;
+    private final ClassificationFullTree taxonomyTree;
+
+    private final float minScore;
+    private final float maxExpected;
+    private final float minPercentIdentity;
+    private final float topPercent;
+    private final int minSupport;
+    private final float minSupportPercent;
+
+    private final List<Tables> allTables = new ArrayList<>();
+    private final ThreadLocal<Tables> tables = ThreadLocal.withInitial(this::createTables);
+
+    /**
+     * constructor
+     */
+    public StreamingClassifier(MaltOptions maltOptions) {
+        cNames = MappingManager.getCNames();
+        taxonomyIndex = StringUtils.getIndex(Classification.Taxonomy, Arrays.asList(cNames));
+        taxonomyTree = (taxonomyIndex >= 0 ? ClassificationManager.get(Classification.Taxonomy, true).getFullTree() : null);
+
+        minScore = (float) maltOptions.getMinBitScore();
+        maxExpected = (float) maltOptions.getMaxExpected();
+        minPercentIdentity = maltOptions.getMinPercentIdentityLCA();
+        topPercent = maltOptions.getTopPercentLCA();
+        minSupport = maltOptions.getMinSupportLCA();
+        minSupportPercent = maltOptions.getMinSupportPercentLCA();
+    }
+
+    /**
+     * determines the class ids of a read, for each classification
+     *
+     * @param match2classification2id class ids of the matches, see RMA6Writer
+     * @param classIds                the class ids of the read are returned here
+     */
+    public void computeClassIds(ReadMatch[] matches, int numberOfMatches, int[][] match2classification2id, int[] classIds) {
+        float bestScore = 0;
+        for (int m = 0; m < numberOfMatches; m++) {
+            if (isActive(matches[m]))
+                bestScore = Math.max(bestScore, matches[m].getBitScore());
+        }
+        if (bestScore == 0) {
+            Arrays.fill(classIds, IdMapper.NOHITS_ID);
+            return;
+        }
+        final float minTopScore = bestScore * (1 - topPercent / 100);
+
+        for (int i = 0; i < cNames.length; i++) {
+            if (i == taxonomyIndex)
+                classIds[i] = computeLCA(matches, numberOfMatches, match2classification2id, minTopScore);
+            else { // best hit
+                classIds[i] = IdMapper.UNASSIGNED_ID;
+                float best = 0;
+                for (int m = 0; m < numberOfMatches; m++) {
+                    if (match2classification2id[m][i] > 0 && isActive(matches[m]) && matches[m].getBitScore() > best) {
+                        best = matches[m].getBitScore();
+                        classIds[i] = match2classification2id[m][i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * is the match used in assignment?
+     */
+    private boolean isActive(ReadMatch match) {
+        return match.getBitScore() >= minScore && match.getExpected() <= maxExpected && match.getPercentIdentity() >= minPercentIdentity;
+    }
+
+    /**
+     * computes the naive LCA of the taxa of all active matches whose score is within top percent of the best score.
+     * Maintains the path from the current LCA to the root and shortens it for each further taxon
+     *
+     * @return LCA or unassigned
+     */
+    private int computeLCA(ReadMatch[] matches, int numberOfMatches, int[][] match2classification2id, float minTopScore) {
+        final Tables tables = this.tables.get();
+        int length = 0;
+        for (int m = 0; m < numberOfMatches; m++) {
+            final int taxonId = match2classification2id[m][taxonomyIndex];
+            if (taxonId > 0 && isActive(matches[m]) && matches[m].getBitScore() >= minTopScore) {
+                if (length == 0)
+                    length = tables.setPathToRoot(taxonId);
+                else if (tables.path[0] != taxonId) {
+                    Node v = taxonomyTree.getTaxon2Node(taxonId);
+                    while (v != null) {
+                        final int pos = indexOf(tables.path, length, (Integer) v.getInfo());
+                        if (pos != -1) {
+                            System.arraycopy(tables.path, pos, tables.path, 0, length - pos);
+                            length -= pos;
+                            break;
+                        }
+                        v = getParent(v);
+                    }
+                }
+            }
+        }
+        return (length > 0 ? tables.path[0] : IdMapper.UNASSIGNED_ID);
+    }
+
+    /**
+     * adds the read with the given uid to its classes
+     *
+     * @param classIds as computed by computeClassIds
+     */
+    public void add(long uid, int[] classIds) {
+        final Tables tables = this.tables.get();
+        for (int i = 0; i < cNames.length; i++) {
+            tables.class2uids[i].computeIfAbsent(classIds[i], k -> new ListOfLongs()).add(uid);
+        }
+    }
+
+    /**
+     * merges the tables of all threads, applies the min-support filter to the taxonomy and writes the classifications
+     */
+    public void writeClassifications(RMA6FileCreator rma6FileCreator) throws IOException {
+        final Map<Integer, ListOfLongs>[] class2uids = createMaps();
+        for (Tables tables : allTables) {
+            for (int i = 0; i < cNames.length; i++) {
+                for (var entry : tables.class2uids[i].entrySet()) {
+                    addAll(entry.getValue(), class2uids[i].computeIfAbsent(entry.getKey(), k -> new ListOfLongs()));
+                }
+            }
+        }
+        allTables.clear();
+
+        if (taxonomyIndex >= 0)
+            applyMinSupport(class2uids[taxonomyIndex]);
+
+        final Map<Integer, Float>[] class2weight = newMapArray(cNames.length);
+        for (int i = 0; i < cNames.length; i++) {
+            class2weight[i] = new HashMap<>();
+            for (var entry : class2uids[i].entrySet()) {
+                class2weight[i].put(entry.getKey(), (float) entry.getValue().size());
+            }
+        }
+        rma6FileCreator.writeClassifications(cNames, class2uids, class2weight);
+    }
+
+    /**
+     * moves the reads of each taxon that has less than the required support to its parent, starting with the deepest taxa
+     */
+    private void applyMinSupport(Map<Integer, ListOfLongs> taxon2uids) {
+        long numberOfAssigned = 0;
+        for (var entry : taxon2uids.entrySet()) {
+            if (entry.getKey() > 0)
+                numberOfAssigned += entry.getValue().size();
+        }
+        final int threshold = (minSupportPercent > 0 ? Math.max(1, (int) (minSupportPercent / 100 * numberOfAssigned)) : minSupport);
+        if (threshold <= 1)
+            return;
+
+        final PriorityQueue<int[]> queue = new PriorityQueue<>((a, b) -> Integer.compare(b[0], a[0])); // pairs of depth and taxon, deepest first
+        final Set<Integer> queued = new HashSet<>();
+        for (var taxonId : taxon2uids.keySet()) {
+            if (taxonId > 0 && queued.add(taxonId))
+                queue.add(new int[]{getDepth(taxonId), taxonId});
+        }
+        while (!queue.isEmpty()) {
+            final int[] item = queue.poll();
+            final int taxonId = item[1];
+            final ListOfLongs uids = taxon2uids.get(taxonId);
+            if (uids != null && uids.size() < threshold) {
+                final Node v = taxonomyTree.getTaxon2Node(taxonId);
+                final Node parent = (v != null ? getParent(v) : null);
+                if (parent != null) {
+                    final int parentId = (Integer) parent.getInfo();
+                    taxon2uids.remove(taxonId);
+                    addAll(uids, taxon2uids.computeIfAbsent(parentId, k -> new ListOfLongs()));
+                    if (queued.add(parentId))
+                        queue.add(new int[]{item[0] - 1, parentId});
+                }
+            }
+        }
+    }
+
+    /**
+     * gets the depth of a taxon in the taxonomy
+     */
+    private int getDepth(int taxonId) {
+        int depth = 0;
+        for (Node v = taxonomyTree.getTaxon2Node(taxonId); v != null; v = getParent(v))
+            depth++;
+        return depth;
+    }
+
+    private static Node getParent(Node v) {
+        return (v.getInDegree() > 0 ? v.getFirstInEdge().getSource() : null);
+    }
+
+    private static int indexOf(int[] array, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (array[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    private static void addAll(ListOfLongs source, ListOfLongs target) {
+        for (int i = 0; i < source.size(); i++)
+            target.add(source.get(i));
+    }
+
+    private Map<Integer, ListOfLongs>[] createMaps() {
+        final Map<Integer, ListOfLongs>[] maps = newMapArray(cNames.length);
+        for (int i = 0; i < cNames.length; i++)
+            maps[i] = new HashMap<>();
+        return maps;
+    }
+
+    /**
+     * creates an array of maps, as required by RMA6FileCreator. Java doesn't allow generic array creation, so this is the one unchecked cast
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> Map<Integer, V>[] newMapArray(int length) {
+        return (Map<Integer, V>[]) new Map[length];
+    }
+
+    private Tables createTables() {
+        final Tables tables = new Tables(createMaps());
+        synchronized (allTables) {
+            allTables.add(tables);
+        }
+        return tables;
+    }
+
+    /**
+     * the per-thread assignments, and a buffer for the path from a taxon to the root
+     */
+    private class Tables {
+        final Map<Integer, ListOfLongs>[] class2uids;
+        int[] path = new int[100];
+
+        Tables(Map<Integer, ListOfLongs>[] class2uids) {
+            this.class2uids = class2uids;
+        }
+
+        /**
+         * sets the path to the path from the given taxon to the root
+         *
+         * @return length of path, 0, if taxon unknown
+         */
+        int setPathToRoot(int taxonId) {
+            int length = 0;
+            for (Node v = taxonomyTree.getTaxon2Node(taxonId); v != null; v = getParent(v)) {
+                if (length == path.length)
+                    path = Arrays.copyOf(path, 2 * length);
+                path[length++] = (Integer) v.getInfo();
+            }
+            return length;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * AlignerDifferentialTester.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.util;
+
+import jloda.seq.BlastMode;
+import malt.align.AlignerOptions;
+import malt.align.BandedAligner;
+import malt.align.DNAScoringMatrix;
+import malt.align.ProteinScoringMatrix;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * differential test of the scalar and the vectorized (--aligner simd) banded aligner on random related sequences.
+ * Reports all cases in which raw scores or trace back alignments differ
+ * usage (JVM option --add-modules jdk.incubator.vector): AlignerDifferentialTester [DNA|Protein] [number-of-cases] [random-seed]
+ * defaults: Protein, 100000 cases, random seed 666
+ * Daniel Huson, 10.2026
+ */
+public class AlignerDifferentialTester {
+    private static final byte[] DNA_LETTERS = "ACGT".getBytes();
+    private static final byte[] PROTEIN_LETTERS = "ARNDCQEGHILKMFPSTWYV".getBytes();
+
+    public static void main(String[] args) throws IOException {
+        final boolean dna = (args.length > 0 && args[0].equalsIgnoreCase("DNA"));
+        final int numberOfCases = (args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+        final Random random = new Random(args.length > 2 ? Long.parseLong(args[2]) : 666);
+
+        final AlignerOptions alignerOptions = new AlignerOptions();
+        final BlastMode mode;
+        final byte[] letters;
+        final int seedLength;
+        if (dna) {
+            mode = BlastMode.BlastN;
+            alignerOptions.setScoringMatrix(new DNAScoringMatrix(alignerOptions.getMatchScore(), alignerOptions.getMismatchScore()));
+            alignerOptions.setReferenceIsDNA(true);
+            letters = DNA_LETTERS;
+            seedLength = 14;
+        } else {
+            mode = BlastMode.BlastP;
+            alignerOptions.setScoringMatrix(ProteinScoringMatrix.create("BLOSUM62"));
+            alignerOptions.setReferenceIsDNA(false);
+            alignerOptions.setGapOpenPenalty(11);
+            alignerOptions.setGapExtensionPenalty(1);
+            letters = PROTEIN_LETTERS;
+            seedLength = 8;
+        }
+
+        alignerOptions.setAlignerType(AlignerOptions.AlignerType.scalar);
+        final BandedAligner scalarAligner = new BandedAligner(alignerOptions, mode);
+        alignerOptions.setAlignerType(AlignerOptions.AlignerType.simd);
+        final BandedAligner simdAligner = new BandedAligner(alignerOptions, mode);
+        if (!simdAligner.isUsingVectorizedScorer())
+            throw new IOException("Vectorized scorer not available (--add-modules jdk.incubator.vector) or not supported for band: " + alignerOptions.getBand());
+
+        int differences = 0;
+        for (int i = 0; i < numberOfCases; i++) {
+            final byte[] reference = randomSequence(random, letters, 20 + random.nextInt(2000));
+            final int start = random.nextInt(reference.length - seedLength);
+            final int end = Math.min(reference.length, start + seedLength + random.nextInt(400));
+            final int refPos = start + random.nextInt(Math.min(seedLength, end - start - seedLength) + 1);
+
+            // query is a mutated copy of reference[start,end), plus random flanks, the seed is kept unchanged
+            final byte[] left = randomSequence(random, letters, random.nextInt(50));
+            final byte[] middleLeft = mutate(random, letters, Arrays.copyOfRange(reference, start, refPos), random.nextDouble() * 0.4);
+            final byte[] seed = Arrays.copyOfRange(reference, refPos, refPos + seedLength);
+            final byte[] middleRight = mutate(random, letters, Arrays.copyOfRange(reference, refPos + seedLength, Math.max(refPos + seedLength, end)), random.nextDouble() * 0.4);
+            final byte[] right = randomSequence(random, letters, random.nextInt(50));
+            final byte[] query = concatenate(left, middleLeft, seed, middleRight, right);
+            final int queryPos = left.length + middleLeft.length;
+
+            scalarAligner.computeAlignment(query, query.length, reference, reference.length, queryPos, refPos, seedLength);
+            simdAligner.computeAlignment(query, query.length, reference, reference.length, queryPos, refPos, seedLength);
+
+            boolean same = (scalarAligner.getRawScore() == simdAligner.getRawScore());
+            if (same && scalarAligner.getRawScore() > 0) {
+                scalarAligner.computeAlignmentByTraceBack();
+                simdAligner.computeAlignmentByTraceBack();
+                same = scalarAligner.getStartQuery() == simdAligner.getStartQuery() && scalarAligner.getEndQuery() == simdAligner.getEndQuery()
+                       && scalarAligner.getStartReference() == simdAligner.getStartReference() && scalarAligner.getEndReference() == simdAligner.getEndReference()
+                       && Arrays.equals(scalarAligner.getAlignmentSimpleText(), simdAligner.getAlignmentSimpleText());
+            }
+            if (!same) {
+                if (differences++ < 10)
+                    System.err.printf("Case %d differs: scalar raw score: %d, simd raw score: %d%nquery:     %s%nreference: %s%nqueryPos: %d refPos: %d%n",
+                            i, scalarAligner.getRawScore(), simdAligner.getRawScore(), new String(query), new String(reference), queryPos, refPos);
+            }
+        }
+        System.err.printf("Cases: %,d differences: %,d%n", numberOfCases, differences);
+        System.exit(differences == 0 ? 0 : 1);
+    }
+
+    private static byte[] randomSequence(Random random, byte[] letters, int length) {
+        final byte[] sequence = new byte[length];
+        for (int i = 0; i < length; i++)
+            sequence[i] = letters[random.nextInt(letters.length)];
+        return sequence;
+    }
+
+    /**
+     * introduce substitutions, insertions and deletions at the given rate
+     */
+    private static byte[] mutate(Random random, byte[] letters, byte[] sequence, double rate) {
+        final byte[] result = new byte[2 * sequence.length + 1];
+        int length = 0;
+        for (byte a : sequence) {
+            if (random.nextDouble() < rate) {
+                switch (random.nextInt(4)) {
+                    case 0 -> { // deletion
+                    }
+                    case 1 -> { // insertion
+                        result[length++] = letters[random.nextInt(letters.length)];
+                        result[length++] = a;
+                    }
+                    default -> result[length++] = letters[random.nextInt(letters.length)];
+                }
+            } else
+                result[length++] = a;
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    private static byte[] concatenate(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts)
+            length += part.length;
+        final byte[] result = new byte[length];
+        int pos = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, result, pos, part.length);
+            pos += part.length;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * FastAReaderDifferentialTester.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.util;
+
+import malt.data.DNA5;
+import malt.data.IAlphabet;
+import malt.io.BGZFOutputStream;
+import malt.io.FastAReader;
+import malt.io.FastARecord;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * differential test of the batch-based FastAReader against the original lock-based reader, on generated FastA and FastQ
+ * inputs with line feeds and with carriage returns, gzip and block-gzip compressed, and interleaved or in two files.
+ * Inputs contain records that span the 1MB read buffers and many batches, and a large FastQ file spans mapped windows.
+ * The original reader is given the line-feed, uncompressed and interleaved version of each input, as it stops at the first
+ * FastQ record that ends on a carriage return. Headers are compared without their leading '>', which the original FastA reader
+ * only kept for the first record
+ * usage: FastAReaderDifferentialTester [number-of-threads] [megabytes-of-large-input]
+ * defaults: 8 threads, 80 MB
+ * Daniel Huson, 10.2026
+ */
+public class FastAReaderDifferentialTester {
+    private static final byte[] LETTERS = "ACGTACGTACGTNacgtRY".getBytes();
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final int numberOfThreads = (args.length > 0 ? Integer.parseInt(args[0]) : 8);
+        final int largeMegaBytes = (args.length > 1 ? Integer.parseInt(args[1]) : 80);
+
+        final File directory = Files.createTempDirectory("malt-reader").toFile();
+        final Random random = new Random(666);
+
+        final File fastA = write(directory, "reads.fa", createFastA(random, 20000), Encoding.plain);
+        final File fastQ = write(directory, "reads.fq", createFastQ(random, 20000), Encoding.plain);
+        final File interleaved = write(directory, "pairs.fq", createFastQ(random, 20000), Encoding.plain);
+        final File[] mates = splitPairs(directory, interleaved);
+
+        final ArrayList<File> files = new ArrayList<>(Arrays.asList(fastA, fastQ, interleaved, mates[0], mates[1]));
+        int differences = 0;
+        differences += compare("FastA", fastA, null, false, fastA, numberOfThreads);
+        differences += compare("FastA CRLF", add(files, write(directory, "reads-crlf.fa", Files.readAllBytes(fastA.toPath()), Encoding.crlf)), null, false, fastA, numberOfThreads);
+        differences += compare("FastA BGZF", add(files, write(directory, "reads-bgzf.fa.gz", Files.readAllBytes(fastA.toPath()), Encoding.bgzf)), null, false, fastA, numberOfThreads);
+        differences += compare("FastQ", fastQ, null, false, fastQ, numberOfThreads);
+        differences += compare("FastQ CRLF", add(files, write(directory, "reads-crlf.fq", Files.readAllBytes(fastQ.toPath()), Encoding.crlf)), null, false, fastQ, numberOfThreads);
+        differences += compare("FastQ gzip", add(files, write(directory, "reads.fq.gz", Files.readAllBytes(fastQ.toPath()), Encoding.gzip)), null, false, fastQ, numberOfThreads);
+        differences += compare("FastQ BGZF", add(files, write(directory, "reads-bgzf.fq.gz", Files.readAllBytes(fastQ.toPath()), Encoding.bgzf)), null, false, fastQ, numberOfThreads);
+        differences += compare("FastQ interleaved", interleaved, null, true, interleaved, numberOfThreads);
+        differences += compare("FastQ interleaved CRLF", add(files, write(directory, "pairs-crlf.fq", Files.readAllBytes(interleaved.toPath()), Encoding.crlf)), null, true, interleaved, numberOfThreads);
+        differences += compare("FastQ paired files", mates[0], mates[1], false, interleaved, numberOfThreads);
+        differences += compare("FastQ paired files BGZF", add(files, write(directory, "pairs_1.fq.gz", Files.readAllBytes(mates[0].toPath()), Encoding.bgzf)),
+                add(files, write(directory, "pairs_2.fq.gz", Files.readAllBytes(mates[1].toPath()), Encoding.bgzf)), false, interleaved, numberOfThreads);
+        if (largeMegaBytes > 0) {
+            final File large = add(files, write(directory, "large.fq", createFastQ(random, (int) (largeMegaBytes * 1024L * 1024L / 330)), Encoding.plain));
+            differences += compare("FastQ " + (large.length() >> 20) + " MB", large, null, false, large, numberOfThreads);
+        }
+
+        for (File file : files) {
+            if (!file.delete())
+                System.err.println("Failed to delete: " + file);
+        }
+        if (!directory.delete())
+            System.err.println("Failed to delete: " + directory);
+        System.err.printf("Total differences: %,d%n", differences);
+        System.exit(differences == 0 ? 0 : 1);
+    }
+
+    /**
+     * compares the records read by the FastAReader using the given number of threads with those read by the original reader
+     *
+     * @return number of differences
+     */
+    private static int compare(String label, File file, File mateFile, boolean interleaved, File baselineFile, int numberOfThreads) throws IOException, InterruptedException {
+        final IAlphabet alphabet = DNA5.getInstance();
+
+        long[] expected = new long[1024];
+        int count = 0;
+        try (BaselineFastAReader reader = new BaselineFastAReader(baselineFile.getPath(), alphabet)) {
+            long digest;
+            while ((digest = reader.readDigest()) != -1) {
+                if (count == expected.length)
+                    expected = Arrays.copyOf(expected, 2 * count);
+                expected[count++] = digest;
+            }
+        }
+        final int numberOfRecords = count;
+
+        final long[] got = new long[numberOfRecords];
+        final AtomicInteger numberRead = new AtomicInteger();
+        final AtomicInteger badIds = new AtomicInteger();
+        final long start = System.currentTimeMillis();
+        final FastAReader reader = new FastAReader(file.getPath(), (mateFile != null ? mateFile.getPath() : null), interleaved, alphabet, null, numberOfThreads);
+        final IOException[] exception = new IOException[1];
+        final Thread[] threads = new Thread[numberOfThreads];
+        for (int t = 0; t < numberOfThreads; t++) {
+            threads[t] = new Thread(() -> {
+                final FastARecord record = FastAReader.createFastARecord(1000, true);
+                try {
+                    while (reader.readAsFastA(record)) {
+                        numberRead.incrementAndGet();
+                        final long digest = digest(record.getHeader(), record.getHeaderLength(), record.getSequence(), record.getSequenceLength(),
+                                (reader.isFastQ() ? record.getQualityValues() : null), record.getSequenceLength());
+                        if (record.getId() >= 1 && record.getId() <= numberOfRecords)
+                            got[record.getId() - 1] = digest;
+                        else
+                            badIds.incrementAndGet();
+                    }
+                } catch (IOException ex) {
+                    synchronized (exception) {
+                        exception[0] = ex;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        reader.close();
+        if (exception[0] != null)
+            throw exception[0];
+
+        int differences = badIds.get() + Math.abs(numberRead.get() - numberOfRecords);
+        for (int i = 0; i < numberOfRecords; i++) {
+            if (got[i] != expected[i]) {
+                if (differences++ < 10)
+                    System.err.println(label + ": record " + (i + 1) + " differs");
+            }
+        }
+        System.err.printf("%-26s records: %,10d read: %,10d bad ids: %,d differences: %,d (%,d ms)%n", label + ":", numberOfRecords, numberRead.get(), badIds.get(), differences,
+                System.currentTimeMillis() - start);
+        return differences;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a record, header without leading '>'
+     */
+    private static long digest(byte[] header, int headerLength, byte[] sequence, int sequenceLength, byte[] qualityValues, int qualityLength) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = (headerLength > 0 && header[0] == '>' ? 1 : 0); i < headerLength; i++)
+            hash = (hash ^ (header[i] & 0xff)) * 0x100000001b3L;
+        hash = (hash ^ 0x100) * 0x100000001b3L;
+        for (int i = 0; i < sequenceLength; i++)
+            hash = (hash ^ (sequence[i] & 0xff)) * 0x100000001b3L;
+        hash = (hash ^ 0x100) * 0x100000001b3L;
+        if (qualityValues != null) {
+            for (int i = 0; i < qualityLength; i++)
+                hash = (hash ^ (qualityValues[i] & 0xff)) * 0x100000001b3L;
+        }
+        return hash & Long.MAX_VALUE; // never -1
+    }
+
+    /**
+     * creates FastA records with single-line and multi-line sequences, including some that are longer than the read buffer
+     */
+    private static byte[] createFastA(Random random, int numberOfRecords) {
+        final ByteArrayOutputStream outs = new ByteArrayOutputStream();
+        for (int r = 1; r <= numberOfRecords; r++) {
+            writeAscii(outs, ">read" + r + (random.nextBoolean() ? " description " + random.nextInt(1000) : "") + "\n");
+            final int length = (r % 5000 == 0 ? FastAReader.BUFFER_SIZE + random.nextInt(2 * FastAReader.BUFFER_SIZE) : 1 + random.nextInt(600));
+            final int lineLength = (random.nextBoolean() ? length : 60 + random.nextInt(20));
+            for (int i = 0; i < length; i++) {
+                outs.write(LETTERS[random.nextInt(LETTERS.length)]);
+                if ((i + 1) % lineLength == 0 || i + 1 == length)
+                    outs.write('\n');
+            }
+            if (random.nextInt(20) == 0)
+                outs.write('\n'); // empty line
+        }
+        return outs.toByteArray();
+    }
+
+    /**
+     * creates FastQ records of varying length
+     */
+    private static byte[] createFastQ(Random random, int numberOfRecords) {
+        final ByteArrayOutputStream outs = new ByteArrayOutputStream();
+        for (int r = 1; r <= numberOfRecords; r++) {
+            writeAscii(outs, "@read" + r + (random.nextBoolean() ? "/" + (2 - r % 2) : "") + "\n");
+            final int length = 1 + random.nextInt(300);
+            for (int i = 0; i < length; i++)
+                outs.write(LETTERS[random.nextInt(LETTERS.length)]);
+            writeAscii(outs, (random.nextBoolean() ? "\n+\n" : "\n+read" + r + "\n"));
+            for (int i = 0; i < length; i++)
+                outs.write(33 + random.nextInt(41));
+            outs.write('\n');
+        }
+        return outs.toByteArray();
+    }
+
+    private static void writeAscii(ByteArrayOutputStream outs, String string) {
+        outs.writeBytes(string.getBytes());
+    }
+
+    /**
+     * splits an interleaved FastQ file into files containing the first and the second mates
+     */
+    private static File[] splitPairs(File directory, File interleaved) throws IOException {
+        final File[] files = {new File(directory, "pairs_1.fq"), new File(directory, "pairs_2.fq")};
+        try (BufferedReader r = new BufferedReader(new FileReader(interleaved));
+             Writer w1 = new BufferedWriter(new FileWriter(files[0])); Writer w2 = new BufferedWriter(new FileWriter(files[1]))) {
+            String line;
+            for (int i = 0; (line = r.readLine()) != null; i++)
+                ((i / 4) % 2 == 0 ? w1 : w2).write(line + "\n");
+        }
+        return files;
+    }
+
+    private enum Encoding {plain, crlf, gzip, bgzf}
+
+    /**
+     * writes the given line-feed separated text in the given encoding
+     */
+    private static File write(File directory, String name, byte[] text, Encoding encoding) throws IOException {
+        final File file = new File(directory, name);
+        try (OutputStream outs = switch (encoding) {
+            case gzip -> new GZIPOutputStream(new FileOutputStream(file), 65536);
+            case bgzf -> new BGZFOutputStream(new FileOutputStream(file), 4);
+            default -> new FileOutputStream(file);
+        }; OutputStream buffered = new BufferedOutputStream(outs, 1024 * 1024)) {
+            if (encoding == Encoding.crlf) {
+                for (byte a : text) {
+                    if (a == '\n')
+                        buffered.write('\r');
+                    buffered.write(a);
+                }
+            } else
+                buffered.write(text);
+        }
+        return file;
+    }
+
+    private static File add(ArrayList<File> files, File file) {
+        files.add(file);
+        return file;
+    }
+
+    /**
+     * the original, lock-based reader, reduced to reading records one by one in a single thread
+     */
+    private static class BaselineFastAReader implements Closeable {
+        private final IAlphabet alphabet;
+        private final BufferedInputStream inputStream;
+        private final boolean isFastQ;
+
+        private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream qualityValues = new ByteArrayOutputStream();
+
+        BaselineFastAReader(String fileName, IAlphabet alphabet) throws IOException {
+            this.alphabet = alphabet;
+            final InputStream ins = new FileInputStream(fileName);
+            inputStream = new BufferedInputStream(fileName.endsWith(".gz") ? new GZIPInputStream(ins) : ins, 8192);
+            inputStream.mark(1);
+            final int value = inputStream.read();
+            if (value != '@' && value != '>')
+                throw new IOException("Input file '" + fileName + "' does not appear to be in FastA or FastQ format");
+            isFastQ = (value == '@');
+            inputStream.reset();
+        }
+
+        /**
+         * reads the next record
+         *
+         * @return digest of the record, or -1, if there are no more records
+         */
+        long readDigest() throws IOException {
+            if (isFastQ) { // expect four lines per read
+                readLine(header, false);
+                if (header.size() == 0)
+                    return -1;
+                readLine(sequence, true);
+                if (sequence.size() == 0)
+                    return -1;
+                readLine(null, false);
+                readLine(qualityValues, false);
+                if (qualityValues.size() != sequence.size())
+                    throw new IOException("Error reading quality values: wrong number of bytes");
+                final byte[] headerBytes = header.toByteArray();
+                headerBytes[0] = '>';
+                return digest(headerBytes, headerBytes.length, sequence.toByteArray(), sequence.size(), qualityValues.toByteArray(), qualityValues.size());
+            } else {
+                readLine(header, false);
+                sequence.reset();
+                // read the sequence, which might be spread over multiple lines, up to the next '>'
+                while (true) {
+                    final int value = inputStream.read();
+                    if (Character.isWhitespace(value))
+                        continue;
+                    if (value == '>' || value == -1) {
+                        if (sequence.size() == 0)
+                            return -1;
+                        return digest(header.toByteArray(), header.size(), sequence.toByteArray(), sequence.size(), null, 0);
+                    }
+                    sequence.write(alphabet.getNormalized((byte) value));
+                }
+            }
+        }
+
+        /**
+         * reads a line up to the first carriage-return or line-feed, which is consumed
+         */
+        private void readLine(ByteArrayOutputStream line, boolean normalize) throws IOException {
+            if (line != null)
+                line.reset();
+            int value = inputStream.read();
+            while (value != '\r' && value != '\n' && value != -1) {
+                if (line != null)
+                    line.write(normalize ? alphabet.getNormalized((byte) value) : value);
+                value = inputStream.read();
+            }
+        }
+
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+}
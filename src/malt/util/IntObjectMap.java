@@ -0,0 +1,149 @@
+/*
+ * IntObjectMap.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from int keys to objects, using open addressing with linear probing, so that keys are not boxed.
+ * Entries are iterated in order of insertion, using getKey(i) and getValue(i) for i=0,...,size()-1,
+ * and clear() only touches the slots that were used. Null values are not supported
+ * Daniel Huson, 10.2026
+ */
+public class IntObjectMap<V> {
+    private int[] keys;
+    private Object[] values; // null marks an empty slot
+    private int mask;
+    private int[] insertedSlots; // slots in order of insertion
+    private int size;
+
+    /**
+     * constructor
+     *
+     * @param expectedSize expected number of entries
+     */
+    public IntObjectMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < 2L * expectedSize)
+            capacity *= 2;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        insertedSlots = new int[capacity / 2];
+    }
+
+    /**
+     * get the value for a key
+     *
+     * @return value or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        for (int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key)
+                return (V) values[slot];
+        }
+        return null;
+    }
+
+    /**
+     * put a value for a key, replacing any previous value
+     */
+    public void put(int key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("value is null");
+        int slot = hash(key) & mask;
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                values[slot] = value;
+                return;
+            }
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        insertedSlots[size++] = slot;
+        if (size == insertedSlots.length)
+            grow();
+    }
+
+    /**
+     * number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * get the i-th key in order of insertion
+     */
+    public int getKey(int i) {
+        return keys[insertedSlots[i]];
+    }
+
+    /**
+     * get the i-th value in order of insertion
+     */
+    @SuppressWarnings("unchecked")
+    public V getValue(int i) {
+        return (V) values[insertedSlots[i]];
+    }
+
+    /**
+     * remove all entries, only touching the slots used
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            values[insertedSlots[i]] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * double the capacity, keeping the order of insertion
+     */
+    private void grow() {
+        final int[] oldKeys = keys;
+        final Object[] oldValues = values;
+        final int[] oldInsertedSlots = insertedSlots;
+        final int oldSize = size;
+
+        keys = new int[2 * oldKeys.length];
+        values = new Object[2 * oldValues.length];
+        mask = keys.length - 1;
+        insertedSlots = Arrays.copyOf(insertedSlots, keys.length / 2);
+        size = 0;
+        for (int i = 0; i < oldSize; i++) {
+            final int oldSlot = oldInsertedSlots[i];
+            int slot = hash(oldKeys[oldSlot]) & mask;
+            while (values[slot] != null)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[oldSlot];
+            values[slot] = oldValues[oldSlot];
+            insertedSlots[size++] = slot;
+        }
+    }
+
+    /**
+     * mix the bits of the key, as consecutive keys are common
+     */
+    private static int hash(int key) {
+        final int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * RankedWriterBenchmark.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.util;
+
+import jloda.util.Basic;
+import jloda.util.FileUtils;
+import malt.io.FileWriterRanked;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * measures the throughput of the ranked output writers, comparing the ring-buffer FileWriterRanked with the original
+ * polling implementation (kept here as PollingFileWriterRanked), for different numbers of producer threads
+ * usage: RankedWriterBenchmark [number-of-records] [threads,threads,...]
+ * Daniel Huson, 10.2026
+ */
+public class RankedWriterBenchmark {
+    /**
+     * the two methods of a ranked writer used by the producers
+     */
+    private interface RankedWriter {
+        void writeByRank(int threadId, long rank, byte[][] strings);
+
+        void skipByRank(int threadId, int rank);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int numberOfRecords = (args.length > 0 ? Integer.parseInt(args[0]) : 2000000);
+        final int[] threadCounts = Arrays.stream((args.length > 1 ? args[1] : "1,8,64").split(",")).mapToInt(Integer::parseInt).toArray();
+
+        // SAM-like records, every tenth read is skipped:
+        final byte[][] records = new byte[1000][];
+        for (int i = 0; i < records.length; i++) {
+            final StringBuilder buf = new StringBuilder("read" + i + "\t0\tref" + (7 * i) + "\t" + (13 * i) + "\t255\t100M\t*\t0\t0\t");
+            for (int j = 0; j < 100; j++)
+                buf.append("ACGT".charAt((i + j * j) % 4));
+            buf.append("\t*\tAS:i:").append(i % 97).append("\tMD:Z:100");
+            records[i] = buf.toString().getBytes();
+        }
+
+        final File directory = Files.createTempDirectory("malt-writer").toFile();
+        directory.deleteOnExit();
+
+        for (int numberOfThreads : threadCounts) {
+            final File pollingFile = new File(directory, "polling.txt");
+            final long pollingTime;
+            {
+                final long start = System.currentTimeMillis();
+                final PollingFileWriterRanked writer = new PollingFileWriterRanked(pollingFile.getPath(), numberOfThreads, 1);
+                run(numberOfRecords, numberOfThreads, records, writer);
+                writer.close();
+                pollingTime = Math.max(1, System.currentTimeMillis() - start);
+            }
+            final File ringFile = new File(directory, "ring.txt");
+            final long ringTime;
+            {
+                final long start = System.currentTimeMillis();
+                final FileWriterRanked writer = new FileWriterRanked(ringFile.getPath(), numberOfThreads, 1);
+                run(numberOfRecords, numberOfThreads, records, new RankedWriter() {
+                    public void writeByRank(int threadId, long rank, byte[][] strings) {
+                        writer.writeByRank(threadId, rank, strings);
+                    }
+
+                    public void skipByRank(int threadId, int rank) {
+                        writer.skipByRank(threadId, rank);
+                    }
+                });
+                writer.close();
+                ringTime = Math.max(1, System.currentTimeMillis() - start);
+            }
+            final boolean same = Arrays.equals(Files.readAllBytes(pollingFile.toPath()), Files.readAllBytes(ringFile.toPath()));
+            final double megaBytes = ringFile.length() / (1024.0 * 1024.0);
+
+            System.err.printf("threads: %3d polling: %8.1f MB/s ring buffer: %8.1f MB/s speedup: %6.2f output identical: %s%n", numberOfThreads,
+                    1000 * megaBytes / pollingTime, 1000 * megaBytes / ringTime, (double) pollingTime / ringTime, same);
+
+            if (!pollingFile.delete() || !ringFile.delete())
+                System.err.println("Failed to delete temporary files in: " + directory);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * run the producers, each taking the next rank and writing or skipping it
+     */
+    private static void run(int numberOfRecords, int numberOfThreads, byte[][] records, RankedWriter writer) throws InterruptedException {
+        final AtomicLong nextRank = new AtomicLong(1);
+        final ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numberOfThreads; t++) {
+            final int threadId = t;
+            final Thread thread = new Thread(() -> {
+                long rank;
+                while ((rank = nextRank.getAndIncrement()) <= numberOfRecords) {
+                    if (rank % 10 == 0)
+                        writer.skipByRank(threadId, (int) rank);
+                    else
+                        writer.writeByRank(threadId, rank, new byte[][]{records[(int) (rank % records.length)]});
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+    }
+
+    /**
+     * the original ranked writer, using one queue per thread and a polling collector thread. Baseline for the benchmark only
+     */
+    private static class PollingFileWriterRanked implements RankedWriter {
+        private final static int QUEUE_LENGTH = 1000000;
+        private final static PollingOutputItem SENTINEL = new PollingOutputItem(0, null);
+
+        private final ArrayBlockingQueue<PollingOutputItem> outputQueue;
+        private final ArrayBlockingQueue<PollingOutputItem>[] threadSpecificWaitQueues;
+        private final Writer writer;
+        private final boolean isFile;
+
+        private long nextRank;
+        private volatile boolean isClosing = false;
+        private final CountDownLatch hasFinishedOutput = new CountDownLatch(1);
+
+        @SuppressWarnings("unchecked")
+        PollingFileWriterRanked(String fileName, final int numberOfThreads, int smallestRank) throws IOException {
+            // one wait queue for each thread:
+            threadSpecificWaitQueues = new ArrayBlockingQueue[numberOfThreads];
+            for (int i = 0; i < threadSpecificWaitQueues.length; i++)
+                threadSpecificWaitQueues[i] = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+            // the output queue:
+            outputQueue = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+
+            final OutputStream outs;
+            if (fileName == null || fileName.equalsIgnoreCase("stdout")) {
+                isFile = false;
+                outs = System.out;
+            } else {
+                isFile = true;
+                outs = FileUtils.getOutputStreamPossiblyZIPorGZIP(fileName);
+            }
+            writer = new BufferedWriter(new OutputStreamWriter(outs), 10 * 1024 * 1024);
+            nextRank = smallestRank;
+
+            // this thread collects output items in order from thread-specific waiting queues and places them on the output queue
+            final Thread thread1 = new Thread(() -> {
+                try {
+                    while (true) {
+                        boolean allEmpty = true;
+                        for (ArrayBlockingQueue<PollingOutputItem> queue : threadSpecificWaitQueues) {
+                            PollingOutputItem item = queue.peek();
+                            while (item != null && item.rank == nextRank) {
+                                allEmpty = false;
+                                outputQueue.put(item);
+                                nextRank++;
+                                item = queue.poll(); // don't use take(), don't want to block here...
+                            }
+                        }
+                        if (allEmpty) {
+                            if (isClosing) {
+                                outputQueue.put(SENTINEL);
+                                return;
+                            } else
+                                Thread.sleep(1);
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    Basic.caught(ex);
+                }
+            });
+            thread1.start();
+
+            // this thread writes output to file
+            final Thread thread2 = new Thread(() -> {
+                try {
+                    while (true) {
+                        final PollingOutputItem item = outputQueue.take();
+                        if (item == SENTINEL) {
+                            hasFinishedOutput.countDown();
+                            return;
+                        }
+                        if (item.strings != null) {
+                            for (byte[] string : item.strings) {
+                                byte b = 0;
+                                for (byte aString : string) {
+                                    b = aString;
+                                    if (b == 0)
+                                        break; // zero-terminated byte string
+                                    writer.write((char) b);
+                                }
+                                if (b != '\t') // if this ends on a tab, don't add new line, it is the query-name for BlastTab or SAM
+                                    writer.write('\n');
+                            }
+                        }
+                    }
+                } catch (Exception ex) {
+                    Basic.caught(ex);
+                }
+            });
+            thread2.start();
+        }
+
+        void close() throws IOException {
+            isClosing = true;
+            try {
+                hasFinishedOutput.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            writer.flush();
+            if (isFile)
+                writer.close();
+        }
+
+        public void writeByRank(int threadId, long rank, byte[][] strings) {
+            try {
+                threadSpecificWaitQueues[threadId].put(new PollingOutputItem(rank, strings));
+            } catch (InterruptedException e) {
+                Basic.caught(e);
+            }
+        }
+
+        public void skipByRank(int threadId, int rank) {
+            try {
+                threadSpecificWaitQueues[threadId].put(new PollingOutputItem(rank, null));
+            } catch (InterruptedException e) {
+                Basic.caught(e);
+            }
+        }
+    }
+
+    /**
+     * output item consists of rank and bytes to write
+     */
+    private static class PollingOutputItem {
+        final long rank;
+        final byte[][] strings;
+
+        PollingOutputItem(long rank, byte[][] strings) {
+            this.rank = rank;
+            this.strings = strings;
+        }
+    }
+}
@@ -0,0 +1,599 @@
+/*
+ * SAMGoldenFileTester.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.util;
+
+import jloda.seq.BlastMode;
+import jloda.util.ReusableByteBuffer;
+import malt.data.DNA5;
+import malt.io.SAMHelper;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * golden-file test for the SAM line encoder: SAM lines for a fixed set of pseudo-random alignments are checked byte-for-byte
+ * against a golden file. The bundled golden file malt/resources/sam-golden.txt holds the first 200 cases as produced by the
+ * original String.format-based encoder, which is kept here as BaselineSAMEncoder. Only that encoder may produce a golden file,
+ * so "record" uses it and never overwrites an existing file.
+ * Cases with a non-ASCII query or reference header are skipped: the original encoder cast header bytes to char and relied on
+ * the platform charset to encode them, whereas header bytes are now written as is
+ * usage: SAMGoldenFileTester [check [golden-file]] | record golden-file [number-of-cases]
+ * Daniel Huson, 10.2026
+ */
+public class SAMGoldenFileTester {
+    public static final String GOLDEN_FILE_RESOURCE = "/malt/resources/sam-golden.txt";
+
+    private static final byte[] DNA_LETTERS = "ACGTN".getBytes();
+    private static final byte[] PROTEIN_LETTERS = "ACDEFGHIKLMNPQRSTVWYX".getBytes();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && !(args[0].equals("record") || args[0].equals("check")) || args.length > 0 && args[0].equals("record") && args.length < 2)
+            throw new IOException("Usage: SAMGoldenFileTester [check [golden-file]] | record golden-file [number-of-cases]");
+        if (args.length > 0 && args[0].equals("record"))
+            record(new File(args[1]), (args.length > 2 ? Integer.parseInt(args[2]) : 200));
+        else {
+            final InputStream ins = (args.length > 1 ? new FileInputStream(args[1]) : SAMGoldenFileTester.class.getResourceAsStream(GOLDEN_FILE_RESOURCE));
+            if (ins == null)
+                throw new IOException("Resource not found: " + GOLDEN_FILE_RESOURCE);
+            System.exit(check(ins) == 0 ? 0 : 1);
+        }
+    }
+
+    /**
+     * records the SAM lines of the given number of cases, as produced by the original encoder
+     */
+    private static void record(File file, int numberOfCases) throws IOException {
+        if (file.exists())
+            throw new IOException("Golden file exists, won't overwrite: " + file);
+        final Random random = new Random(666);
+        int skipped = 0;
+        try (OutputStream outs = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (int c = 0; c < numberOfCases; ) {
+                final SAMCase samCase = new SAMCase(random);
+                if (!samCase.hasAsciiHeaders())
+                    skipped++;
+                else {
+                    outs.write(BaselineSAMEncoder.createSAMLine(samCase).getBytes(StandardCharsets.US_ASCII));
+                    outs.write('\n');
+                    c++;
+                }
+            }
+        }
+        System.err.printf("Recorded %,d SAM lines to: %s%n", numberOfCases, file);
+        reportSkipped(skipped);
+    }
+
+    /**
+     * checks the current implementation against all lines of a golden file
+     *
+     * @return number of differences
+     */
+    private static int check(InputStream ins) throws IOException {
+        final ReusableByteBuffer buffer = new ReusableByteBuffer(10000);
+        final Random random = new Random(666);
+        int cases = 0;
+        int skipped = 0;
+        int differences = 0;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(ins, StandardCharsets.US_ASCII))) {
+            String expected;
+            while ((expected = r.readLine()) != null) {
+                SAMCase samCase;
+                while (!(samCase = new SAMCase(random)).hasAsciiHeaders())
+                    skipped++;
+                buffer.reset();
+                samCase.write(buffer);
+                final String got = new String(buffer.makeCopy(), StandardCharsets.US_ASCII);
+                if (!got.equals(expected)) {
+                    if (differences++ < 10)
+                        System.err.println("Case " + cases + ":\nexpected: " + expected + "\ngot:      " + got);
+                }
+                cases++;
+            }
+        }
+        System.err.printf("Checked %,d SAM lines, differences: %,d%n", cases, differences);
+        reportSkipped(skipped);
+        return differences;
+    }
+
+    private static void reportSkipped(int skipped) {
+        if (skipped > 0)
+            System.err.printf("Skipped %,d cases with non-ASCII headers (not covered, the original encoder did not write header bytes as is)%n", skipped);
+    }
+
+    /**
+     * a pseudo-random alignment, with all arguments of a SAM line
+     */
+    private static class SAMCase {
+        final BlastMode mode;
+        final byte[] queryHeader;
+        final byte[] querySequence;
+        final int queryStart;
+        final int queryStartBlastX;
+        final int queryEnd;
+        final int queryLength;
+        final byte[] alignedQuery;
+        final byte[] referenceHeader;
+        final int referenceStart;
+        final int referenceEnd;
+        final byte[] alignedReference;
+        final int referenceLength;
+        final double bitScore;
+        final int rawScore;
+        final double expected;
+        final float percentIdentity;
+        final int frame;
+        final byte[] qualityValues;
+        final boolean softClipped;
+
+        SAMCase(Random random) {
+            mode = new BlastMode[]{BlastMode.BlastN, BlastMode.BlastP, BlastMode.BlastX}[random.nextInt(3)];
+            final byte[] letters = (mode == BlastMode.BlastN ? DNA_LETTERS : PROTEIN_LETTERS);
+
+            queryLength = 20 + random.nextInt(200);
+            querySequence = randomSequence(random, letters, queryLength);
+            qualityValues = (random.nextBoolean() ? randomQualityValues(random, queryLength) : null);
+
+            // build an alignment of a segment of the query, starting and ending on a match, as produced by the aligner:
+            queryStart = random.nextInt(queryLength / 2);
+            queryEnd = queryStart + 1 + random.nextInt(queryLength - queryStart);
+            final ByteArrayOutputStream alignedQueryStream = new ByteArrayOutputStream();
+            final ByteArrayOutputStream alignedReferenceStream = new ByteArrayOutputStream();
+            int referenceLetters = 0;
+            for (int i = queryStart; i < queryEnd; ) {
+                final int what = random.nextInt(20);
+                if (what == 0 && i > queryStart && i < queryEnd - 1) { // gap in query
+                    alignedQueryStream.write('-');
+                    alignedReferenceStream.write(letters[random.nextInt(letters.length)]);
+                    referenceLetters++;
+                } else if (what == 1 && i > queryStart && i < queryEnd - 1) { // gap in reference
+                    alignedQueryStream.write(querySequence[i++]);
+                    alignedReferenceStream.write('-');
+                } else {
+                    final byte a = querySequence[i++];
+                    alignedQueryStream.write(a);
+                    alignedReferenceStream.write(random.nextInt(5) == 0 ? letters[random.nextInt(letters.length)] : a);
+                    referenceLetters++;
+                }
+            }
+            alignedQuery = alignedQueryStream.toByteArray();
+            alignedReference = alignedReferenceStream.toByteArray();
+
+            final boolean reverse = (mode != BlastMode.BlastP && random.nextBoolean());
+            referenceStart = 1 + random.nextInt(100000);
+            referenceEnd = (reverse ? referenceStart - referenceLetters + 1 : referenceStart + referenceLetters - 1);
+
+            expected = switch (random.nextInt(4)) {
+                case 0 -> 0;
+                case 1 -> random.nextInt(1000) / 100.0;
+                default -> Math.pow(10, -45 + 83 * random.nextDouble());
+            };
+
+            queryHeader = randomHeader(random, "read");
+            queryStartBlastX = 1 + random.nextInt(3 * queryLength);
+            referenceHeader = randomHeader(random, "ref");
+            referenceLength = referenceEnd + random.nextInt(1000);
+            bitScore = 100 * random.nextDouble();
+            rawScore = random.nextInt(1000);
+            percentIdentity = 100 * random.nextFloat();
+            frame = (random.nextBoolean() ? 1 : -1) * (1 + random.nextInt(3));
+            softClipped = random.nextBoolean();
+        }
+
+        boolean hasAsciiHeaders() {
+            return isAscii(queryHeader) && isAscii(referenceHeader);
+        }
+
+        /**
+         * writes the SAM line using the current implementation
+         */
+        void write(ReusableByteBuffer buffer) {
+            SAMHelper.writeSAMLine(buffer, mode, queryHeader, querySequence, queryStart, queryStartBlastX, queryEnd, queryLength, alignedQuery,
+                    referenceHeader, referenceStart, referenceEnd, alignedReference, referenceLength,
+                    bitScore, rawScore, expected, percentIdentity, frame, qualityValues, softClipped);
+        }
+    }
+
+    private static boolean isAscii(byte[] bytes) {
+        for (byte a : bytes) {
+            if (a < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] randomSequence(Random random, byte[] letters, int length) {
+        final byte[] sequence = new byte[length];
+        for (int i = 0; i < length; i++)
+            sequence[i] = letters[random.nextInt(letters.length)];
+        return sequence;
+    }
+
+    private static byte[] randomQualityValues(Random random, int length) {
+        final byte[] values = new byte[length];
+        for (int i = 0; i < length; i++)
+            values[i] = (byte) (33 + random.nextInt(41));
+        return values;
+    }
+
+    private static byte[] randomHeader(Random random, String prefix) {
+        final StringBuilder buf = new StringBuilder();
+        if (random.nextBoolean())
+            buf.append('>');
+        buf.append(prefix).append(random.nextInt(1000000));
+        if (random.nextInt(10) == 0)
+            buf.append((char) (0x80 + random.nextInt(128)));
+        if (random.nextBoolean())
+            buf.append(" description ").append(random.nextInt(1000));
+        final byte[] header = new byte[buf.length()];
+        for (int i = 0; i < header.length; i++)
+            header[i] = (byte) buf.charAt(i);
+        return header;
+    }
+
+    /**
+     * the original String.format-based SAM line encoder, with Locale.ROOT number formatting. Note that its CIGAR string
+     * drops a gap at the start of an alignment, so generated alignments start and end on a match
+     */
+    private static class BaselineSAMEncoder {
+        static String createSAMLine(SAMCase c) {
+            return createSAMLine(c.mode, c.queryHeader, c.querySequence, c.queryStart, c.queryStartBlastX, c.queryEnd, c.queryLength, c.alignedQuery,
+                    c.referenceHeader, c.referenceStart, c.referenceEnd, c.alignedReference, c.referenceLength,
+                    c.bitScore, c.rawScore, c.expected, c.percentIdentity, c.frame, c.qualityValues, c.softClipped);
+        }
+
+        /**
+         * creates a SAM line. If queryHeader==null, does not output the initial query token
+         */
+        static String createSAMLine(final BlastMode mode, final byte[] queryHeader, final byte[] querySequence, final int queryStart, final int queryStartBlastX, final int queryEnd, final int queryLength, final byte[] alignedQuery,
+                                    final byte[] referenceHeader, final int referenceStart, final int referenceEnd, final byte[] alignedReference, final int referenceLength,
+                                    final double bitScore, final int rawScore, final double expected, final float percentIdentity, int frame, final byte[] qualityValues, boolean softClipped) {
+
+            if (querySequence == null && softClipped)
+                softClipped = false;
+
+            final StringBuilder buffer = new StringBuilder();
+
+            // QNAME:
+            boolean first = true;
+            if (queryHeader != null) {
+                for (byte a : queryHeader) {
+                    if (first && a == '>') {
+                        first = false;
+                        continue;
+                    }
+                    if (a == 0 || Character.isSpaceChar(a))
+                        break;
+                    buffer.append((char) a);
+                }
+                buffer.append('\t');
+            }
+
+            // FLAG
+            final boolean reverseComplemented = ((queryStart < queryEnd) != (referenceStart < referenceEnd));
+            final int queryOffset;
+
+            switch (mode) {
+                case BlastN:
+                    if (reverseComplemented) {
+                        queryOffset = queryLength - queryEnd;
+                        buffer.append(0x10); // SEQ is reverse complemented
+                    } else {
+                        queryOffset = queryStart;
+                        buffer.append(0);
+                    }
+                    break;
+                case BlastX:
+                    if (reverseComplemented)
+                        buffer.append(0x10); // SEQ is reverse complemented
+                    else
+                        buffer.append(0);
+                    queryOffset = 0;  // will explicitly save query start and query end
+                    break;
+                default:
+                case BlastP:
+                    queryOffset = queryStart;
+                    buffer.append(0);
+            }
+            buffer.append('\t');
+
+            // RNAME:
+            first = true;
+            for (byte a : referenceHeader) {
+                if (first && a == '>') {
+                    first = false;
+                    continue;
+                }
+                if (a == 0 || Character.isSpaceChar(a))
+                    break;
+                buffer.append((char) a);
+            }
+            buffer.append('\t');
+
+            // POS:
+            int pos = Math.min(referenceStart, referenceEnd);
+            buffer.append(pos);
+            buffer.append('\t');
+
+            // MAPQ
+            buffer.append("255"); // unknown
+            buffer.append('\t');
+
+            // CIGAR
+            appendCigar(alignedQuery, queryOffset, queryLength, alignedReference, reverseComplemented, softClipped, buffer);
+            buffer.append('\t');
+
+            // RNEXT
+            buffer.append("*"); // unknown
+            buffer.append('\t');
+
+            // PNEXT
+            buffer.append("0"); // unknown
+            buffer.append('\t');
+
+            // TLEN
+            buffer.append("0");
+            buffer.append('\t');
+
+            // SEQ
+            if (softClipped && querySequence != null) {
+                if (reverseComplemented) {
+                    for (int i = queryLength - 1; i >= 0; i--) {
+                        buffer.append((char) DNA5.getInstance().getBaseComplement(querySequence[i]));
+                    }
+                } else {
+                    for (int i = 0; i < queryLength; i++)
+                        buffer.append((char) querySequence[i]);
+                }
+            } else {
+                if (reverseComplemented) {
+                    for (int i = alignedQuery.length - 1; i >= 0; i--) {
+                        byte a = alignedQuery[i];
+                        if (a != '-')
+                            buffer.append((char) DNA5.getInstance().getBaseComplement(a));
+                    }
+                } else {
+                    for (byte a : alignedQuery) {
+                        if (a != '-')
+                            buffer.append((char) a);
+                    }
+                }
+            }
+            buffer.append('\t');
+
+            // QUAL
+            if (qualityValues == null)
+                buffer.append("*");
+            else {
+                if (softClipped) {
+                    if (reverseComplemented) {
+                        for (int i = queryLength - 1; i >= 0; i--)
+                            buffer.append((char) qualityValues[i]);
+                    } else {
+                        for (int i = 0; i < queryLength; i++)
+                            buffer.append((char) qualityValues[i]);
+                    }
+                } else {
+                    if (reverseComplemented) {
+                        for (int i = queryStart; i < queryEnd; i++)
+                            buffer.append((char) qualityValues[queryLength - (i + 1)]);
+                    } else {
+                        for (int i = queryStart; i < queryEnd; i++)
+                            buffer.append((char) qualityValues[i]);
+                    }
+                }
+            }
+            buffer.append('\t');
+
+            // optional stuff:
+            buffer.append(String.format(Locale.ROOT, "AS:i:%d\t", (int) Math.round(bitScore)));
+            buffer.append(String.format(Locale.ROOT, "NM:i:%d\t", computeEditDistance(alignedQuery, alignedReference)));
+            buffer.append(String.format(Locale.ROOT, "ZL:i:%d\t", referenceLength));
+            buffer.append(String.format(Locale.ROOT, "ZR:i:%d\t", rawScore));
+            buffer.append(String.format(Locale.ROOT, "ZE:f:%g\t", (float) expected));
+            buffer.append(String.format(Locale.ROOT, "ZI:i:%d\t", Math.round(percentIdentity)));
+            if (mode == BlastMode.BlastX) {
+                buffer.append(String.format(Locale.ROOT, "ZF:i:%d\t", frame));
+                buffer.append(String.format(Locale.ROOT, "ZS:i:%d\t", queryStartBlastX));
+            }
+
+            appendMDString(alignedQuery, alignedReference, reverseComplemented, buffer);
+
+            return buffer.toString();
+        }
+
+        /**
+         * append the cigar string
+         */
+        private static void appendCigar(byte[] alignedQuery, int queryOffset, int queryLength, byte[] alignedReference, boolean reverseComplemented, boolean softClipped, StringBuilder buffer) {
+            int clip = (!reverseComplemented ? queryOffset : (queryLength - queryOffset - alignedQuery.length));
+            if (clip > 0) {
+                buffer.append(clip).append(softClipped ? "S" : "H");
+            }
+
+            if (reverseComplemented) {
+                char state = 'M'; // M in match, I insert, D deletion
+                int count = 0;
+                for (int i = alignedQuery.length - 1; i >= 0; i--) {
+                    if (alignedQuery[i] == '-') {
+                        if (state == 'D') {
+                            count++;
+                        } else if (count > 0) {
+                            buffer.append(count).append(state);
+                            state = 'D';
+                            count = 1;
+                        }
+                    } else if (alignedReference[i] == '-') {
+                        if (state == 'I') {
+                            count++;
+                        } else if (count > 0) {
+                            buffer.append(count).append(state);
+                            state = 'I';
+                            count = 1;
+                        }
+                    } else {  // match or mismatch
+                        if (state == 'M') {
+                            count++;
+                        } else if (count > 0) {
+                            buffer.append(count).append(state);
+                            state = 'M';
+                            count = 1;
+                        }
+                    }
+                }
+                if (count > 0) {
+                    buffer.append(count).append(state);
+
+                }
+            } else {
+                char cigarState = 'M'; // M in match, D deletion, I insertion
+                int count = 0;
+                for (int i = 0; i < alignedQuery.length; i++) {
+                    if (alignedQuery[i] == '-') {
+                        if (cigarState == 'D') {
+                            count++;
+                        } else if (count > 0) {
+                            buffer.append(count).append(cigarState);
+                            cigarState = 'D';
+                            count = 1;
+                        }
+                    } else if (alignedReference[i] == '-') {
+                        if (cigarState == 'I') {
+                            count++;
+                        } else if (count > 0) {
+                            buffer.append(count).append(cigarState);
+                            cigarState = 'I';
+                            count = 1;
+                        }
+                    } else {  // match or mismatch
+                        if (cigarState == 'M') {
+                            count++;
+                        } else if (count > 0) {
+                            buffer.append(count).append(cigarState);
+                            cigarState = 'M';
+                            count = 1;
+                        }
+                    }
+                }
+                if (count > 0) {
+                    buffer.append(count).append(cigarState);
+
+                }
+            }
+
+            clip = (reverseComplemented ? queryOffset : (queryLength - queryOffset - alignedQuery.length));
+            if (clip > 0) {
+                buffer.append(clip).append(softClipped ? "S" : "H");
+            }
+        }
+
+        /**
+         * append the MD string
+         */
+        private static void appendMDString(final byte[] alignedQuery, final byte[] alignedReference, final boolean reverseComplemented, final StringBuilder buffer) {
+            buffer.append("MD:Z:");
+            if (reverseComplemented) {
+                int countMatches = 0;
+                boolean inDeletion = false;
+                for (int i = alignedQuery.length - 1; i >= 0; i--) {
+                    if (alignedQuery[i] == '-') { // gap in query
+                        if (countMatches > 0) {
+                            buffer.append(countMatches);
+                            countMatches = 0;
+                        }
+                        if (!inDeletion) {
+                            buffer.append("^");
+                            inDeletion = true;
+                        }
+                        buffer.append((char) (DNA5.getInstance().getBaseComplement(alignedReference[i])));
+                    } else if (alignedReference[i] != '-') {  // match or mismatch
+                        if (alignedQuery[i] == alignedReference[i]) {
+                            countMatches++;
+                        } else {
+                            if (inDeletion)
+                                buffer.append(0);
+                            if (countMatches > 0) {
+                                buffer.append(countMatches);
+                                countMatches = 0;
+                            }
+                            buffer.append((char) (DNA5.getInstance().getBaseComplement(alignedReference[i])));
+                        }
+                        if (inDeletion)
+                            inDeletion = false;
+                    }
+                    // else alignedReference[i] == '-': this has no effect
+                }
+                if (countMatches > 0)
+                    buffer.append(countMatches);
+                else if (inDeletion)
+                    buffer.append(0);
+            } else {
+                int countMatches = 0;
+                boolean inDeletion = false;
+                for (int i = 0; i < alignedQuery.length; i++) {
+                    if (alignedQuery[i] == '-') { // gap in query
+                        if (countMatches > 0) {
+                            buffer.append(countMatches);
+                            countMatches = 0;
+                        }
+                        if (!inDeletion) {
+                            buffer.append("^");
+                            inDeletion = true;
+                        }
+                        buffer.append((char) alignedReference[i]);
+                    } else if (alignedReference[i] != '-') {  // match or mismatch
+                        if (alignedQuery[i] == alignedReference[i]) {
+                            countMatches++;
+                        } else {
+                            if (inDeletion)
+                                buffer.append("0");
+                            if (countMatches > 0) {
+                                buffer.append(countMatches);
+                                countMatches = 0;
+                            }
+                            buffer.append((char) alignedReference[i]);
+                        }
+                        if (inDeletion)
+                            inDeletion = false;
+                    }
+                    // else alignedReference[i] == '-': this has no effect
+                }
+                if (countMatches > 0)
+                    buffer.append(countMatches);
+                else if (inDeletion)
+                    buffer.append(0);
+            }
+        }
+
+        /**
+         * compute edit distance from alignment
+         *
+         * @return edit distance
+         */
+        private static int computeEditDistance(byte[] alignedQuery, byte[] alignedReference) {
+            int distance = 0;
+            for (int i = 0; i < alignedQuery.length; i++) {
+                if (alignedQuery[i] == '-' || alignedReference[i] == '-' || alignedQuery[i] != alignedReference[i])
+                    distance++;
+            }
+            return distance;
+        }
+    }
+}
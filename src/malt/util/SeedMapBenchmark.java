@@ -0,0 +1,139 @@
+/*
+ * SeedMapBenchmark.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.util;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * compares HashMap<Integer,...> and IntObjectMap on the seed-hit pattern of the alignment inner loop:
+ * for each read, look up or insert the reference index of every seed hit, then iterate over all entries and clear
+ * usage: SeedMapBenchmark [trace-file] [rounds]
+ * The trace file contains one line per read, listing the reference indices of its seed hits, separated by white space.
+ * If no trace file is given, a synthetic trace with a skewed distribution of reference indices is used
+ * Daniel Huson, 10.2026
+ */
+public class SeedMapBenchmark {
+    public static void main(String[] args) throws IOException {
+        final int[][] trace = (args.length > 0 && !args[0].equals("-") ? readTrace(args[0]) : syntheticTrace(10000, 20000, 1000000, 666));
+        final int rounds = (args.length > 1 ? Integer.parseInt(args[1]) : 10);
+
+        long hits = 0;
+        for (int[] read : trace)
+            hits += read.length;
+        System.err.printf("Reads: %,d seed hits: %,d%n", trace.length, hits);
+
+        final Map<Integer, int[]> hashMap = new HashMap<>(10000, 0.9f);
+        final IntObjectMap<int[]> intObjectMap = new IntObjectMap<>(10000);
+
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            final long checkHashMap = runHashMap(trace, hashMap);
+            final double hashMapSeconds = (System.nanoTime() - start) / 1.0e9;
+
+            start = System.nanoTime();
+            final long checkIntObjectMap = runIntObjectMap(trace, intObjectMap);
+            final double intObjectMapSeconds = (System.nanoTime() - start) / 1.0e9;
+
+            if (checkHashMap != checkIntObjectMap)
+                throw new IOException("Checksums differ: " + checkHashMap + " != " + checkIntObjectMap);
+            System.err.printf("round: %2d HashMap: %7.3fs IntObjectMap: %7.3fs speedup: %5.2f%n", round + 1, hashMapSeconds, intObjectMapSeconds, hashMapSeconds / intObjectMapSeconds);
+        }
+    }
+
+    private static long runHashMap(int[][] trace, Map<Integer, int[]> map) {
+        long check = 0;
+        for (int[] read : trace) {
+            for (int refIndex : read) {
+                int[] count = map.get(refIndex);
+                if (count == null) {
+                    count = new int[1];
+                    map.put(refIndex, count);
+                }
+                count[0]++;
+            }
+            for (Integer refIndex : map.keySet()) {
+                check += (long) refIndex * map.get(refIndex)[0];
+            }
+            map.clear();
+        }
+        return check;
+    }
+
+    private static long runIntObjectMap(int[][] trace, IntObjectMap<int[]> map) {
+        long check = 0;
+        for (int[] read : trace) {
+            for (int refIndex : read) {
+                int[] count = map.get(refIndex);
+                if (count == null) {
+                    count = new int[1];
+                    map.put(refIndex, count);
+                }
+                count[0]++;
+            }
+            for (int k = 0; k < map.size(); k++) {
+                check += (long) map.getKey(k) * map.getValue(k)[0];
+            }
+            map.clear();
+        }
+        return check;
+    }
+
+    /**
+     * read a recorded trace, one read per line
+     */
+    private static int[][] readTrace(String fileName) throws IOException {
+        final List<int[]> reads = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new FileReader(fileName))) {
+            String aLine;
+            while ((aLine = r.readLine()) != null) {
+                aLine = aLine.trim();
+                if (aLine.length() > 0) {
+                    final String[] tokens = aLine.split("\\s+");
+                    final int[] read = new int[tokens.length];
+                    for (int i = 0; i < tokens.length; i++)
+                        read[i] = Integer.parseInt(tokens[i]);
+                    reads.add(read);
+                }
+            }
+        }
+        return reads.toArray(new int[0][]);
+    }
+
+    /**
+     * a synthetic trace in which a few references receive most of the hits
+     */
+    private static int[][] syntheticTrace(int numberOfReads, int hitsPerRead, int numberOfReferences, int seed) {
+        final Random random = new Random(seed);
+        final int[][] trace = new int[numberOfReads][hitsPerRead];
+        for (int[] read : trace) {
+            for (int i = 0; i < read.length; i++) {
+                final double x = random.nextDouble();
+                read[i] = (int) (numberOfReferences * x * x * x);
+            }
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * TableBuildScalingTester.java Copyright (C) 2024 Daniel H. Huson
+ *
+ * (Some files contain contributions from other authors, who are then mentioned separately.)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package malt.util;
+
+import malt.data.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * measures how building a seed table scales with the number of threads (as set by MaltBuild --threads)
+ * usage: TableBuildScalingTester references.fasta [DNA|Protein] [threads,threads,...]
+ * Daniel Huson, 10.2026
+ */
+public class TableBuildScalingTester {
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0)
+            throw new IOException("Usage: TableBuildScalingTester references.fasta [DNA|Protein] [1,2,4,8,16,32,64]");
+
+        final List<String> fileNames = List.of(args[0]);
+        final SequenceType sequenceType = (args.length > 1 ? SequenceType.valueOfIgnoreCase(args[1]) : SequenceType.Protein);
+        final int[] threadCounts = Arrays.stream((args.length > 2 ? args[2] : "1,2,4,8,16,32,64").split(",")).mapToInt(Integer::parseInt).toArray();
+
+        final IAlphabet referenceAlphabet;
+        final IAlphabet seedAlphabet;
+        final SeedShape seedShape;
+        if (sequenceType == SequenceType.DNA) {
+            referenceAlphabet = DNA5.getInstance();
+            seedAlphabet = DNA5.getInstance();
+            seedShape = new SeedShape(seedAlphabet, SeedShape.SINGLE_DNA_SEED);
+        } else {
+            referenceAlphabet = ProteinAlphabet.getInstance();
+            seedAlphabet = new ReducedAlphabet("DIAMOND_11");
+            seedShape = new SeedShape(seedAlphabet, SeedShape.SINGLE_PROTEIN_SEED);
+        }
+
+        final ReferencesDBBuilder referencesDB = new ReferencesDBBuilder();
+        referencesDB.loadFastAFiles(fileNames, referenceAlphabet);
+
+        final File directory = Files.createTempDirectory("malt-scaling").toFile();
+        directory.deleteOnExit();
+
+        double firstTime = 0;
+        for (int numberOfThreads : threadCounts) {
+            final File tableIndexFile = new File(directory, "table0.idx");
+            final File tableDataFile = new File(directory, "table0.db");
+
+            final long start = System.currentTimeMillis();
+            final ReferencesHashTableBuilder builder = new ReferencesHashTableBuilder(sequenceType, seedAlphabet, seedShape,
+                    referencesDB.getNumberOfSequences(), referencesDB.getNumberOfLetters(), 666, 1000, 0.9f, 1);
+            builder.buildTable(tableIndexFile, tableDataFile, referencesDB, numberOfThreads, true);
+            final double seconds = (System.currentTimeMillis() - start) / 1000.0;
+            if (firstTime == 0)
+                firstTime = seconds * threadCounts[0];
+
+            System.err.printf("threads: %3d time: %8.1fs speedup: %6.2f%n", numberOfThreads, seconds, firstTime / seconds);
+
+            if (!tableIndexFile.delete() || !tableDataFile.delete())
+                System.err.println("Failed to delete temporary table files in: " + directory);
+        }
+        System.exit(0);
+    }
+}
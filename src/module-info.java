@@ -1,6 +1,7 @@
 module malt {
     requires transitive jloda;
     requires transitive megan;
+    requires static jdk.incubator.vector;
 
     exports malt.tools;
     exports malt;